@@ -2,37 +2,84 @@
 
 package com.example.demospring.controller;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.util.WebUtils;
 
 import com.example.controller.CodeExecutionRequest;
 import com.example.demospring.dto.CodeExecutionResponse;
-import com.example.lang.Lexer;
-import com.example.lang.Parser;
-import com.example.lang.Token;
+import com.example.demospring.dto.ExecutionError;
+import com.example.lang.ExecutionBudget;
+import com.example.lang.IncrementalParser;
+import com.example.lang.ScriptRunner;
+import com.example.lang.ScriptStore;
+import com.example.lang.StreamingConsole;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpSession;
 
 @Controller
 public class CodeController {
 
     /**
-     * Dynamically fetch the project's path from the current working directory.
-     * This avoids having a hard-coded path.
+     * Session attribute holding the user's IncrementalParser, so each check
+     * only re-parses what changed since the last one.
+     */
+    private static final String PARSER_ATTRIBUTE = "incrementalParser";
+
+    /**
+     * Chars of output a /streamCode program may print ahead of what has been
+     * sent to the client before it has to wait.
      */
-    private static final String PROJECT_PATH = System.getProperty("user.dir");
+    private static final int STREAM_BUFFER_CHARS = 64 * 1024;
 
-    private static final String SCRIPT_PATH = "scripts" + File.separator + "example.txt";
+    /**
+     * How much longer than the time budget a /streamCode response may stay
+     * open, to send the last lines and the "done" event.
+     */
+    private static final long STREAM_GRACE_MILLIS = 10_000;
+
+    /**
+     * Programs submitted to /runCode, by the SHA-256 of their code, so that
+     * code sent again is not lexed and parsed again.
+     */
+    private final ScriptStore scripts = new ScriptStore();
+
+    /**
+     * Runs every /runCode and /streamCode program on a virtual thread of
+     * its own. Programs spend most of their time waiting on the database,
+     * input or their events, and a blocked virtual thread leaves its carrier
+     * to others.
+     */
+    private final ExecutorService runners = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Limits on every /runCode and /streamCode run, from nuvo.budget.* in
+     * application.properties, so that one runaway program cannot hold a CPU
+     * or fill the heap shared by all the others.
+     */
+    @Value("${nuvo.budget.steps:100000000}")
+    private long maxSteps;
+
+    @Value("${nuvo.budget.millis:30000}")
+    private long maxMillis;
+
+    @Value("${nuvo.budget.bytes:268435456}")
+    private long maxBytes;
 
     /**
      * Handles GET requests to the root URL and returns the index.html template.
@@ -42,109 +89,259 @@ public class CodeController {
         return "index"; // Renders src/main/resources/templates/index.html
     }
 
+    /**
+     * Stops programs still running when the application shuts down.
+     */
+    @PreDestroy
+    public void shutdown() {
+        runners.shutdownNow();
+    }
+
     /**
      * Handles POST requests to /runCode. Processes the submitted code,
-     * executes it, and returns a JSON response with the results.
+     * executes it, and returns a JSON response with the results. The
+     * program runs on a virtual thread; the request thread is released
+     * until it is done.
      */
     @PostMapping("/runCode")
     @ResponseBody
-    public ResponseEntity<CodeExecutionResponse> runCode(@RequestBody CodeExecutionRequest request) {
+    public CompletableFuture<ResponseEntity<CodeExecutionResponse>> runCode(@RequestBody CodeExecutionRequest request, HttpSession session) {
         CodeExecutionResponse response = new CodeExecutionResponse();
         String code = request.getCode();
 
         // Validate input
         if (code == null || code.trim().isEmpty()) {
             response.setMessage("Error: Code input is empty.");
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response));
         }
         
-        // Step 1: Save user's code to scripts/example.txt
-        File scriptFile = new File(PROJECT_PATH, SCRIPT_PATH);
-        try (FileWriter fw = new FileWriter(scriptFile)) {
-            fw.write(code);
+        // Step 1: Tokenize and parse the code, reporting every syntax error
+        String parseOutput = parseOutput(code, session);
+
+        // Step 2: Run the program in this JVM, with a fresh interpreter and its output captured
+        ScriptStore.Script script;
+        try {
+            script = scripts.get(code, parserFor(session)); // from the statements parseOutput just parsed
+        } catch (RuntimeException e) {
+            response.setMessage("Parsing failed.");
+            response.setCompileOutput(parseOutput);
+            response.setOutput(formatRuntimeOutput("Error: " + e.getMessage()));
+            return CompletableFuture.completedFuture(ResponseEntity.ok(response));
+        }
+        String input = request.getInput() != null ? request.getInput() : "";
+        ExecutionBudget budget = budget();
+        return CompletableFuture.supplyAsync(() -> {
+            ScriptRunner.Result result = ScriptRunner.run(script.program(), input, budget,
+                    ScriptRunner.DEFAULT_EVENT_TIMEOUT_MILLIS);
+            String runOutput = result.getOutput();
+            if (script.parseError() != null) {
+                runOutput = "Parse Error: " + script.parseError() + "\n" + runOutput;
+            }
+
+            // Combine outputs and set in the response
+            ExecutionBudget.Exceeded exceeded = result.getBudgetExceeded();
+            if (exceeded != null) {
+                response.setMessage("Execution stopped: " + exceeded.getMessage());
+                response.setError(errorOf(exceeded));
+            } else {
+                response.setMessage("Code executed successfully.");
+            }
+            response.setCompileOutput(parseOutput);
+            response.setOutput(formatRuntimeOutput(runOutput.isEmpty() ? "No output generated." : runOutput));
+
+            return ResponseEntity.ok(response);
+        }, runners);
+    }
+
+    /**
+     * Handles POST requests to /streamCode: runs the code like /runCode, but
+     * sends the output as Server-Sent Events while the program runs. Events:
+     * "compile" with the parse result, one "line" per line printed, then
+     * "done" with the closing message, which says which limit was exceeded
+     * if the run went over its budget.
+     *
+     * The program prints into a StreamingConsole holding at most
+     * STREAM_BUFFER_CHARS chars, and a second virtual thread sends on what
+     * it holds. When the client reads slowly, sending blocks, the buffer
+     * fills up and the program waits at its next print, until its time
+     * budget is spent. When the client goes away, the program fails at its
+     * next print. The response times out STREAM_GRACE_MILLIS after the time
+     * budget, which closes the console and so ends a run still waiting.
+     */
+    @PostMapping(value = "/streamCode", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamCode(@RequestBody CodeExecutionRequest request, HttpSession session) {
+        SseEmitter emitter = new SseEmitter(maxMillis > Long.MAX_VALUE - STREAM_GRACE_MILLIS ? Long.MAX_VALUE
+                : maxMillis + STREAM_GRACE_MILLIS);
+        String code = request.getCode();
+        String input = request.getInput() != null ? request.getInput() : "";
+        if (code == null || code.trim().isEmpty()) {
+            sendAndComplete(emitter, "Error: Code input is empty.");
+            return emitter;
+        }
+
+        ScriptStore.Script script;
+        try {
+            emitter.send(event("compile", parseOutput(code, session)));
+            script = scripts.get(code, parserFor(session)); // from the statements parseOutput just parsed
         } catch (IOException e) {
-            response.setMessage("Error writing to example.txt: " + e.getMessage());
-            response.setCompileOutput("");
-            response.setOutput("");
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+            emitter.completeWithError(e);
+            return emitter;
+        } catch (RuntimeException e) {
+            try {
+                emitter.send(event("line", "Error: " + e.getMessage()));
+            } catch (IOException ignored) {
+                // Completed below all the same
+            }
+            sendAndComplete(emitter, "Parsing failed.");
+            return emitter;
+        }
+
+        ExecutionBudget budget = budget();
+        ExecutionBudget.Exceeded[] exceeded = new ExecutionBudget.Exceeded[1]; // read after console.take() returns null
+        StreamingConsole console = new StreamingConsole(input, STREAM_BUFFER_CHARS, budget.getMaxMillis());
+        emitter.onCompletion(console::close);
+        emitter.onTimeout(console::close);
+        emitter.onError(e -> console.close());
+        runners.execute(() -> {
+            try {
+                if (script.parseError() != null) {
+                    console.println("Parse Error: " + script.parseError());
+                }
+                exceeded[0] = ScriptRunner.run(script.program(), console, budget,
+                        ScriptRunner.DEFAULT_EVENT_TIMEOUT_MILLIS);
+            } catch (ExecutionBudget.Exceeded e) {
+                exceeded[0] = e; // the client stopped reading until the time ran out
+            } catch (RuntimeException e) {
+                // The client went away; nobody is left to tell
+            } finally {
+                console.finish();
+            }
+        });
+        runners.execute(() -> {
+            try {
+                String line;
+                while ((line = console.take()) != null) {
+                    emitter.send(event("line", line));
+                }
+                sendAndComplete(emitter, exceeded[0] != null ? "Execution stopped: " + exceeded[0].getMessage()
+                        : "Code executed successfully.");
+            } catch (IOException e) {
+                console.close(); // the program fails at its next print
+            } catch (InterruptedException e) {
+                console.close();
+                emitter.complete();
+            }
+        });
+        return emitter;
+    }
+
+    /**
+     * Handles POST requests to /checkSyntax, sent by the editor as the user
+     * types. Parses the code without running it and returns every syntax
+     * error, one per line, in compileOutput.
+     */
+    @PostMapping("/checkSyntax")
+    @ResponseBody
+    public ResponseEntity<CodeExecutionResponse> checkSyntax(@RequestBody CodeExecutionRequest request, HttpSession session) {
+        CodeExecutionResponse response = new CodeExecutionResponse();
+        String code = request.getCode() != null ? request.getCode() : "";
+
+        IncrementalParser parser = parserFor(session);
+        List<String> errors;
+        synchronized (parser) {
+            parser.parse(code);
+            errors = parser.getErrors();
         }
 
-        // Step 2: Tokenize and parse the code
+        response.setMessage(errors.isEmpty() ? "No syntax errors." : errors.size() + " syntax error(s).");
+        response.setCompileOutput(String.join("\n", errors));
+        response.setOutput("");
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Parses the code with the session's IncrementalParser and lists the
+     * parsed statements and every syntax error, for the compile output.
+     */
+    private String parseOutput(String code, HttpSession session) {
         StringBuilder parseOutput = new StringBuilder();
         try {
-            Lexer lexer = new Lexer(code);
-            List<Token> tokens = lexer.tokenize();
-
-            Parser parser = new Parser(tokens);
-            String parseResult = parser.getParseResultAsString();
+            IncrementalParser parser = parserFor(session);
+            List<String> errors;
+            String parseResult;
+            synchronized (parser) {
+                parser.parse(code);
+                errors = parser.getErrors();
+                parseResult = parser.getParseResultAsString();
+            }
 
             parseOutput.append("--- PARSE RESULT ---\n");
             for (String line : parseResult.split("\n")) {
                 parseOutput.append(formatNode(line)).append("\n");
             }
+            for (String error : errors) {
+                parseOutput.append("[Parse Error] ").append(error).append("\n");
+            }
         } catch (Exception e) {
             parseOutput.append("[Parse Error] ").append(e.getMessage()).append("\n");
         }
+        return parseOutput.toString();
+    }
 
-        // Step 3: Compile the code
-        // Adjust commands if necessary (e.g., for OS-specific path separators)
-        String compileCommand = "javac -cp \"lib/*;bin\" -d bin src" + File.separator + "main"
-                + File.separator + "java" + File.separator + "com" + File.separator + "example"
-                + File.separator + "lang" + File.separator + "*.java";
-        StringBuilder compileOutput = executeCommand(compileCommand, "Compilation", PROJECT_PATH);
-        if (compileOutput == null) {
-            response.setMessage("Compilation failed.");
-            response.setCompileOutput(parseOutput.toString());
-            response.setOutput("");
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+    /**
+     * An event of the stream with {@code text} as its data, one data field
+     * per line, since a line break inside a field would end it.
+     */
+    private static SseEmitter.SseEventBuilder event(String name, String text) {
+        SseEmitter.SseEventBuilder event = SseEmitter.event().name(name);
+        for (String part : text.split("\n", -1)) {
+            event.data(part);
         }
+        return event;
+    }
 
-        // Step 4: Run the compiled class
-        String runCommand = "java -cp \"lib/*;bin\" com.example.lang.Main " + SCRIPT_PATH.replace(File.separator, "/");
-        StringBuilder runOutput = executeCommand(runCommand, "Execution", PROJECT_PATH);
+    /**
+     * The budget every run gets.
+     */
+    private ExecutionBudget budget() {
+        return new ExecutionBudget(maxSteps, maxMillis, maxBytes);
+    }
 
-        // Combine outputs and set in the response
-        response.setMessage("Code executed successfully.");
-        response.setCompileOutput(parseOutput.toString() + "\n" + compileOutput.toString());
-        response.setOutput(formatRuntimeOutput(runOutput != null ? runOutput.toString() : "No output generated."));
+    /**
+     * The limit a run went over, as the structured error of the response.
+     */
+    private static ExecutionError errorOf(ExecutionBudget.Exceeded exceeded) {
+        return new ExecutionError(exceeded.getLimit().name(), exceeded.getMaximum(), exceeded.getUsed(),
+                exceeded.getMessage());
+    }
 
-        return ResponseEntity.ok(response);
+    /**
+     * Ends the stream with a "done" event carrying {@code message}.
+     */
+    private void sendAndComplete(SseEmitter emitter, String message) {
+        try {
+            emitter.send(event("done", message));
+            emitter.complete();
+        } catch (IOException e) {
+            emitter.completeWithError(e);
+        }
     }
 
     /**
-     * Helper method to execute a system command and capture its output.
+     * Returns the session's IncrementalParser, creating it on first use.
      *
-     * @param command   The command to execute.
-     * @param stage     The stage name (e.g., "Compilation", "Execution") for
-     *                  logging.
-     * @param directory The directory to execute the command in.
-     * @return The output of the command or null if the command failed.
-     */
-    private StringBuilder executeCommand(String command, String stage, String directory) {
-        StringBuilder output = new StringBuilder();
-        ProcessBuilder processBuilder = new ProcessBuilder("cmd.exe", "/c", command);
-        processBuilder.directory(new File(directory));
-        processBuilder.redirectErrorStream(true);
-
-        try {
-            Process process = processBuilder.start();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append("\n");
-                }
-            }
-            int exitCode = process.waitFor();
-            if (exitCode != 0) {
-                output.append(stage).append(" failed with exit code ").append(exitCode).append("\n");
-                return null;
+     * @param session The user's HTTP session.
+     * @return The parser holding the last version of the user's code.
+     */
+    private IncrementalParser parserFor(HttpSession session) {
+        synchronized (WebUtils.getSessionMutex(session)) {
+            IncrementalParser parser = (IncrementalParser) session.getAttribute(PARSER_ATTRIBUTE);
+            if (parser == null) {
+                parser = new IncrementalParser();
+                session.setAttribute(PARSER_ATTRIBUTE, parser);
             }
-        } catch (IOException | InterruptedException e) {
-            output.append(stage).append(" error: ").append(e.getMessage()).append("\n");
-            return null;
+            return parser;
         }
-
-        return output;
     }
 
     /**
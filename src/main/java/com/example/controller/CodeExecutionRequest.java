@@ -1,6 +1,7 @@
 package com.example.controller;
 public class CodeExecutionRequest {
     private String code;
+    private String input; // lines the program's input statements read, may be null
 
     public String getCode() {
         return code;
@@ -9,4 +10,12 @@ public class CodeExecutionRequest {
     public void setCode(String code) {
         this.code = code;
     }
+
+    public String getInput() {
+        return input;
+    }
+
+    public void setInput(String input) {
+        this.input = input;
+    }
 }
@@ -6,6 +6,7 @@ public class CodeExecutionResponse {
     private String message;
     private String compileOutput;
     private String output;
+    private ExecutionError error; // null unless the run was stopped
 
     // Default Constructor
     public CodeExecutionResponse() {}
@@ -41,4 +42,12 @@ public class CodeExecutionResponse {
     public void setOutput(String output) {
         this.output = output;
     }
+
+    public ExecutionError getError() {
+        return error;
+    }
+
+    public void setError(ExecutionError error) {
+        this.error = error;
+    }
 }
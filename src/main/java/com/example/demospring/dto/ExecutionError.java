@@ -0,0 +1,59 @@
+// src/main/java/com/example/demospring/dto/ExecutionError.java
+
+package com.example.demospring.dto;
+
+/**
+ * Why a run was stopped before its program finished, for clients to act on
+ * without reading the message: which limit of the execution budget it went
+ * over, what the limit was and how much was used.
+ */
+public class ExecutionError {
+    private String type; // STEPS, TIME or MEMORY
+    private long limit;
+    private long used;
+    private String message;
+
+    // Default Constructor
+    public ExecutionError() {}
+
+    // Parameterized Constructor
+    public ExecutionError(String type, long limit, long used, String message) {
+        this.type = type;
+        this.limit = limit;
+        this.used = used;
+        this.message = message;
+    }
+
+    // Getters and Setters
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    public void setUsed(long used) {
+        this.used = used;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
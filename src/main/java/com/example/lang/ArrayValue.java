@@ -0,0 +1,271 @@
+package com.example.lang;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * The list type of the language. A list whose elements are all Integers is
+ * stored in an {@code int[]}, one of Integers and Longs in a {@code long[]}
+ * and one of Doubles in a {@code double[]}; elements are boxed again when
+ * read. Writing any other value, or mixing Integers with Doubles (which print
+ * differently), moves the list to an {@code Object[]} for good.
+ *
+ * Storage grows by half its size when full, like {@link java.util.ArrayList}.
+ */
+final class ArrayValue extends AbstractList<Object> implements RandomAccess {
+    private static final int INTS = 0;
+    private static final int LONGS = 1;
+    private static final int DOUBLES = 2;
+    private static final int OBJECTS = 3;
+
+    private int kind = INTS;
+    // Only the array for the current kind is set
+    private int[] ints;
+    private long[] longs;
+    private double[] doubles;
+    private Object[] objects;
+    private int size;
+
+    ArrayValue() {
+        this(10);
+    }
+
+    ArrayValue(int capacity) {
+        ints = new int[capacity];
+    }
+
+    ArrayValue(Collection<?> elements) {
+        this(Math.max(10, elements.size()));
+        addAll(elements);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object get(int index) {
+        checkIndex(index);
+        switch (kind) {
+            case INTS:
+                return ints[index];
+            case LONGS:
+                return Numbers.narrow(longs[index]);
+            case DOUBLES:
+                return doubles[index];
+            default:
+                return objects[index];
+        }
+    }
+
+    @Override
+    public Object set(int index, Object value) {
+        checkIndex(index);
+        Object previous = get(index);
+        store(index, value);
+        return previous;
+    }
+
+    @Override
+    public boolean add(Object value) {
+        ensureCapacity(size + 1);
+        size++;
+        store(size - 1, value);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, Object value) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        ensureCapacity(size + 1);
+        Object array = array();
+        System.arraycopy(array, index, array, index + 1, size - index);
+        size++;
+        store(index, value);
+        modCount++;
+    }
+
+    @Override
+    public Object remove(int index) {
+        Object previous = get(index);
+        Object array = array();
+        System.arraycopy(array, index + 1, array, index, size - index - 1);
+        size--;
+        if (kind == OBJECTS) {
+            objects[size] = null;
+        }
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    public boolean addAll(Collection<?> elements) {
+        // Copied first, like ArrayList does, so a list can be added to itself
+        Object[] values = elements.toArray();
+        ensureCapacity(size + values.length);
+        for (Object value : values) {
+            add(value);
+        }
+        return values.length > 0;
+    }
+
+    @Override
+    public void clear() {
+        if (kind == OBJECTS) {
+            Arrays.fill(objects, 0, size, null);
+        }
+        size = 0;
+        modCount++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    // Writes a value at index < size, changing the storage first if it cannot hold it
+    private void store(int index, Object value) {
+        switch (kind) {
+            case INTS:
+                if (value instanceof Integer) {
+                    ints[index] = (Integer) value;
+                    return;
+                }
+                break;
+            case LONGS:
+                if (value instanceof Integer || isWideLong(value)) {
+                    longs[index] = ((Number) value).longValue();
+                    return;
+                }
+                break;
+            case DOUBLES:
+                if (value instanceof Double) {
+                    doubles[index] = (Double) value;
+                    return;
+                }
+                break;
+            default:
+                objects[index] = value;
+                return;
+        }
+        convert(value, index);
+        store(index, value);
+    }
+
+    // Longs in int range would read back as Integers, so they need generic storage
+    private static boolean isWideLong(Object value) {
+        return value instanceof Long && (int) (long) (Long) value != (Long) value;
+    }
+
+    /**
+     * Moves to storage that can hold {@code value} as well as the current
+     * elements, other than the one at {@code skip}, which is about to be
+     * overwritten.
+     */
+    private void convert(Object value, int skip) {
+        int capacity = capacity();
+        int target;
+        if (size == 1) {
+            // Nothing to keep: start over with the kind of the new value
+            target = value instanceof Integer ? INTS
+                    : isWideLong(value) ? LONGS : value instanceof Double ? DOUBLES : OBJECTS;
+        } else if (kind == INTS && isWideLong(value)) {
+            target = LONGS;
+        } else {
+            target = OBJECTS;
+        }
+        if (target == LONGS) {
+            longs = new long[capacity];
+            for (int i = 0; kind == INTS && i < size; i++) {
+                longs[i] = ints[i];
+            }
+        } else if (target == OBJECTS) {
+            objects = new Object[capacity];
+            for (int i = 0; i < size; i++) {
+                if (i != skip) {
+                    objects[i] = get(i);
+                }
+            }
+        } else if (target == DOUBLES) {
+            doubles = new double[capacity];
+        } else {
+            ints = new int[capacity];
+        }
+        if (kind != target) {
+            release(kind);
+        }
+        kind = target;
+    }
+
+    private void release(int oldKind) {
+        switch (oldKind) {
+            case INTS:
+                ints = null;
+                break;
+            case LONGS:
+                longs = null;
+                break;
+            case DOUBLES:
+                doubles = null;
+                break;
+            default:
+                objects = null;
+                break;
+        }
+    }
+
+    private Object array() {
+        switch (kind) {
+            case INTS:
+                return ints;
+            case LONGS:
+                return longs;
+            case DOUBLES:
+                return doubles;
+            default:
+                return objects;
+        }
+    }
+
+    private int capacity() {
+        switch (kind) {
+            case INTS:
+                return ints.length;
+            case LONGS:
+                return longs.length;
+            case DOUBLES:
+                return doubles.length;
+            default:
+                return objects.length;
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        int capacity = capacity();
+        if (needed <= capacity) {
+            return;
+        }
+        int grown = Math.max(needed, capacity + (capacity >> 1) + 1);
+        switch (kind) {
+            case INTS:
+                ints = Arrays.copyOf(ints, grown);
+                break;
+            case LONGS:
+                longs = Arrays.copyOf(longs, grown);
+                break;
+            case DOUBLES:
+                doubles = Arrays.copyOf(doubles, grown);
+                break;
+            default:
+                objects = Arrays.copyOf(objects, grown);
+                break;
+        }
+    }
+}
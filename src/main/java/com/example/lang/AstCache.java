@@ -0,0 +1,665 @@
+package com.example.lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Parsed programs kept on disk, so that a script run again unchanged is not
+ * lexed and parsed again. The tree of {@code script.txt} goes in
+ * {@code script.nvc} next to it, keyed by the content of the source and the
+ * version of this format; a file that does not match both is ignored and
+ * written again.
+ *
+ * The content key is the length of the source with its CRC32C and CRC32.
+ * It only has to tell an edited script from the one the file was written
+ * for, and both checksums are intrinsics even before the JIT starts, where
+ * a cryptographic digest of a large script cost more than parsing it.
+ *
+ * The file holds the nodes as the parser builds them: what the resolver,
+ * the optimizer and the engines fill in later is not stored. Names are
+ * stored as strings, once each, so every use of a name shares one String.
+ *
+ * Programs the parser stopped in (see {@link Parser#failed()}) are not
+ * stored, so the error is reported on every run.
+ */
+final class AstCache {
+    static final String EXTENSION = ".nvc";
+
+    // Bump whenever the parser or the node classes change what a program parses to
+    private static final int VERSION = 1;
+    private static final int MAGIC = 0x4E564331; // "NVC1"
+    // Operators are stored as TokenType ordinals, so the file is also keyed on the token types
+    private static final int TOKEN_TYPES = Arrays.toString(TokenType.values()).hashCode();
+
+    // Node tags; 0 is a missing node
+    private static final int NONE = 0;
+    private static final int BINARY = 1;
+    private static final int UNARY = 2;
+    private static final int LITERAL = 3;
+    private static final int VARIABLE = 4;
+    private static final int ASSIGN = 5;
+    private static final int PRINT = 6;
+    private static final int IF = 7;
+    private static final int EXPRESSION = 8;
+    private static final int FOR = 9;
+    private static final int INPUT = 10;
+    private static final int WHILE = 11;
+    private static final int FUNCTION_DEF = 12;
+    private static final int FUNCTION_CALL = 13;
+    private static final int RETURN = 14;
+    private static final int ARRAY = 15;
+    private static final int MAP = 16;
+    private static final int SET = 17;
+    private static final int EVENT_TRIGGER = 18;
+    private static final int USE = 19;
+    private static final int METHOD_CALL = 20;
+    private static final int INDEX = 21;
+    private static final int ASSIGN_INDEX = 22;
+
+    // Literal tags
+    private static final int NULL = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int BIG_INTEGER = 3;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 5;
+    private static final int TRUE = 6;
+    private static final int FALSE = 7;
+
+    private static final TokenType[] TOKEN_TYPE_VALUES = TokenType.values();
+
+    private AstCache() {
+    }
+
+    /**
+     * The program in {@code script}: loaded from its {@code .nvc} file if that
+     * is fresh, otherwise parsed, and stored for the next run.
+     */
+    static List<Node> parse(Path script) throws IOException {
+        ByteBuffer source;
+        try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return new Parser(Lexer.forFile(script)).parse();
+            }
+            // The mapping stays valid after the channel is closed
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        byte[] key = contentKey(source);
+        Path cache = cacheFile(script);
+        List<Node> program = load(cache, key);
+        if (program != null) {
+            return program;
+        }
+        Parser parser = new Parser(new Lexer(source));
+        program = parser.parse();
+        if (!parser.failed()) {
+            store(cache, key, program);
+        }
+        return program;
+    }
+
+    /**
+     * Where the tree of {@code script} is kept: the same name with the
+     * extension replaced by {@code .nvc}.
+     */
+    static Path cacheFile(Path script) {
+        String name = script.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return script.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + EXTENSION);
+    }
+
+    /**
+     * The program stored in {@code cache} for a source with the given key,
+     * or null if there is none or it is stale or unreadable.
+     */
+    static List<Node> load(Path cache, byte[] key) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(cache);
+        } catch (IOException e) {
+            return null; // not written yet
+        }
+        try {
+            Reader in = new Reader(bytes);
+            if (in.int32() != MAGIC || in.int32() != VERSION || in.int32() != TOKEN_TYPES
+                    || !Arrays.equals(in.bytes(key.length), key)) {
+                return null;
+            }
+            in.strings();
+            List<Node> program = in.nodes();
+            return in.pos == bytes.length ? program : null;
+        } catch (RuntimeException e) {
+            return null; // a truncated or damaged file is as good as none; it is written again
+        }
+    }
+
+    /**
+     * Stores a program for a source with the given key. Failing to write it
+     * is not an error: the script is simply parsed again next time.
+     */
+    static void store(Path cache, byte[] key, List<Node> program) {
+        Writer out = new Writer();
+        out.int32(MAGIC);
+        out.int32(VERSION);
+        out.int32(TOKEN_TYPES);
+        out.write(key, 0, key.length);
+        byte[] tree = encode(program);
+        if (tree == null) {
+            return;
+        }
+        out.write(tree, 0, tree.length);
+
+        // Written aside and moved in, so another run never reads half a file
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(cache.toAbsolutePath().getParent(), cache.getFileName().toString(), ".tmp");
+            Files.write(temp, out.toByteArray());
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+
+    /**
+     * The string table and nodes of a program, as in the file but without
+     * the header; null if the program has a node this format does not know.
+     * {@link ScriptStore} keeps programs in memory this way.
+     */
+    static byte[] encode(List<Node> program) {
+        Writer body = new Writer();
+        try {
+            body.nodes(program);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+        Writer out = new Writer();
+        out.strings(body.strings);
+        byte[] tree = body.toByteArray();
+        out.write(tree, 0, tree.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * A new tree of the program {@link #encode} turned into {@code bytes}.
+     */
+    static List<Node> decode(byte[] bytes) {
+        Reader in = new Reader(bytes);
+        in.strings();
+        return in.nodes();
+    }
+
+    /**
+     * The key of a source text (see above), from its position to its limit;
+     * the buffer itself is left as it was.
+     */
+    static byte[] contentKey(ByteBuffer source) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(source.duplicate());
+        CRC32 crc32 = new CRC32();
+        crc32.update(source.duplicate());
+        return ByteBuffer.allocate(16)
+                .putLong(source.remaining())
+                .putInt((int) crc32c.getValue())
+                .putInt((int) crc32.getValue())
+                .array();
+    }
+
+    // Numbers are varints (zigzag where they can be negative), so small ones take a byte
+    private static final class Writer extends ByteArrayOutputStream {
+        final Map<String, Integer> indexes = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+
+        Writer() {
+            super(4096);
+        }
+
+        void int32(int value) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                write(value >>> shift);
+            }
+        }
+
+        void int64(long value) {
+            int32((int) (value >>> 32));
+            int32((int) value);
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void bool(boolean value) {
+            write(value ? 1 : 0);
+        }
+
+        void strings(List<String> table) {
+            varint(table.size());
+            for (String string : table) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                varint(utf8.length);
+                write(utf8, 0, utf8.length);
+            }
+        }
+
+        // An index into the string table, + 1; 0 is null
+        void string(String value) {
+            if (value == null) {
+                varint(0);
+                return;
+            }
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = strings.size();
+                indexes.put(value, index);
+                strings.add(value);
+            }
+            varint(index + 1);
+        }
+
+        void op(TokenType op) {
+            varint(op == null ? 0 : op.ordinal() + 1);
+        }
+
+        // Size + 1; 0 is null
+        void nodes(List<Node> nodes) {
+            if (nodes == null) {
+                varint(0);
+                return;
+            }
+            varint(nodes.size() + 1);
+            for (Node node : nodes) {
+                node(node);
+            }
+        }
+
+        void node(Node node) {
+            if (node == null) {
+                write(NONE);
+            } else if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                write(BINARY);
+                op(binary.op);
+                node(binary.left);
+                node(binary.right);
+            } else if (node instanceof UnaryNode) {
+                UnaryNode unary = (UnaryNode) node;
+                write(UNARY);
+                op(unary.op);
+                bool(unary.postfix);
+                node(unary.expr);
+            } else if (node instanceof LiteralNode) {
+                write(LITERAL);
+                literal(((LiteralNode) node).value);
+            } else if (node instanceof VariableNode) {
+                write(VARIABLE);
+                string(((VariableNode) node).name);
+            } else if (node instanceof AssignNode) {
+                AssignNode assign = (AssignNode) node;
+                write(ASSIGN);
+                string(assign.name);
+                op(assign.op);
+                node(assign.value);
+            } else if (node instanceof PrintNode) {
+                write(PRINT);
+                node(((PrintNode) node).expr);
+            } else if (node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+                write(IF);
+                node(ifNode.condition);
+                nodes(ifNode.ifBranch);
+                nodes(ifNode.elseBranch);
+            } else if (node instanceof ExpressionStatement) {
+                write(EXPRESSION);
+                node(((ExpressionStatement) node).expr);
+            } else if (node instanceof ForNode) {
+                ForNode forNode = (ForNode) node;
+                write(FOR);
+                node(forNode.initialization);
+                node(forNode.condition);
+                node(forNode.increment);
+                nodes(forNode.body);
+            } else if (node instanceof InputNode) {
+                InputNode input = (InputNode) node;
+                write(INPUT);
+                node(input.prompt);
+                node(input.variable);
+            } else if (node instanceof WhileNode) {
+                WhileNode whileNode = (WhileNode) node;
+                write(WHILE);
+                node(whileNode.condition);
+                nodes(whileNode.body);
+            } else if (node instanceof FunctionDefNode) {
+                FunctionDefNode function = (FunctionDefNode) node;
+                write(FUNCTION_DEF);
+                string(function.name);
+                bool(function.memoize);
+                varint(function.parameters.size());
+                for (String parameter : function.parameters) {
+                    string(parameter);
+                }
+                nodes(function.body);
+            } else if (node instanceof FunctionCallNode) {
+                FunctionCallNode call = (FunctionCallNode) node;
+                write(FUNCTION_CALL);
+                string(call.name);
+                nodes(call.arguments);
+            } else if (node instanceof ReturnNode) {
+                write(RETURN);
+                node(((ReturnNode) node).value);
+            } else if (node instanceof ArrayLiteralNode) {
+                write(ARRAY);
+                nodes(((ArrayLiteralNode) node).elements);
+            } else if (node instanceof MapLiteralNode) {
+                MapLiteralNode map = (MapLiteralNode) node;
+                write(MAP);
+                nodes(map.keys);
+                nodes(map.values);
+            } else if (node instanceof SetLiteralNode) {
+                write(SET);
+                nodes(((SetLiteralNode) node).elements);
+            } else if (node instanceof EventTriggerNode) {
+                EventTriggerNode trigger = (EventTriggerNode) node;
+                write(EVENT_TRIGGER);
+                node(trigger.timeExpr);
+                string(trigger.unit);
+                node(trigger.action);
+                node(trigger.timesExpr);
+            } else if (node instanceof UseNode) {
+                write(USE);
+                string(((UseNode) node).libraryName);
+            } else if (node instanceof ObjectMethodCallNode) {
+                ObjectMethodCallNode call = (ObjectMethodCallNode) node;
+                write(METHOD_CALL);
+                node(call.target);
+                string(call.methodName);
+                nodes(call.arguments);
+            } else if (node instanceof IndexNode) {
+                IndexNode index = (IndexNode) node;
+                write(INDEX);
+                node(index.target);
+                node(index.index);
+            } else if (node instanceof AssignIndexNode) {
+                AssignIndexNode assign = (AssignIndexNode) node;
+                write(ASSIGN_INDEX);
+                node(assign.target);
+                node(assign.index);
+                op(assign.op);
+                node(assign.value);
+            } else {
+                throw new IllegalStateException("Cannot store " + node.getClass().getSimpleName());
+            }
+        }
+
+        void literal(Object value) {
+            if (value == null) {
+                write(NULL);
+            } else if (value instanceof Integer) {
+                write(INT);
+                int n = (Integer) value;
+                varint((n << 1) ^ (n >> 31));
+            } else if (value instanceof Long) {
+                write(LONG);
+                int64((Long) value);
+            } else if (value instanceof BigInteger) {
+                write(BIG_INTEGER);
+                byte[] bytes = ((BigInteger) value).toByteArray();
+                varint(bytes.length);
+                write(bytes, 0, bytes.length);
+            } else if (value instanceof Double) {
+                write(DOUBLE);
+                int64(Double.doubleToRawLongBits((Double) value));
+            } else if (value instanceof String) {
+                write(STRING);
+                string((String) value);
+            } else if (value instanceof Boolean) {
+                write((Boolean) value ? TRUE : FALSE);
+            } else {
+                throw new IllegalStateException("Cannot store a " + value.getClass().getSimpleName() + " literal");
+            }
+        }
+    }
+
+    // Reads what Writer wrote; a damaged file ends in a RuntimeException
+    private static final class Reader {
+        final byte[] bytes;
+        int pos;
+        String[] strings;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int byte8() {
+            return bytes[pos++] & 0xFF;
+        }
+
+        int int32() {
+            return byte8() << 24 | byte8() << 16 | byte8() << 8 | byte8();
+        }
+
+        long int64() {
+            return (long) int32() << 32 | (int32() & 0xFFFFFFFFL);
+        }
+
+        int varint() {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                int b = byte8();
+                value |= (b & 0x7F) << shift;
+                if (b < 0x80) {
+                    return value;
+                }
+            }
+        }
+
+        boolean bool() {
+            return byte8() != 0;
+        }
+
+        byte[] bytes(int length) {
+            if (length > bytes.length - pos) {
+                throw new IllegalStateException("Truncated file");
+            }
+            byte[] result = Arrays.copyOfRange(bytes, pos, pos + length);
+            pos += length;
+            return result;
+        }
+
+        void strings() {
+            strings = new String[varint()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = varint();
+                if (length > bytes.length - pos) {
+                    throw new IllegalStateException("Truncated string");
+                }
+                strings[i] = new String(bytes, pos, length, StandardCharsets.UTF_8);
+                pos += length;
+            }
+        }
+
+        String string() {
+            int index = varint();
+            return index == 0 ? null : strings[index - 1];
+        }
+
+        // A name that is never null: its index in the string table
+        int name() {
+            return varint() - 1;
+        }
+
+        TokenType op() {
+            int ordinal = varint();
+            return ordinal == 0 ? null : TOKEN_TYPE_VALUES[ordinal - 1];
+        }
+
+        List<Node> nodes() {
+            int size = varint() - 1;
+            if (size < 0) {
+                return null;
+            }
+            if (size > bytes.length - pos) {
+                throw new IllegalStateException("Truncated list"); // each node takes a byte at least
+            }
+            List<Node> nodes = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                nodes.add(node());
+            }
+            return nodes;
+        }
+
+        Node node() {
+            int tag = byte8();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case BINARY: {
+                    TokenType op = op();
+                    Node left = node();
+                    return new BinaryNode(left, op, node());
+                }
+                case UNARY: {
+                    TokenType op = op();
+                    boolean postfix = bool();
+                    return new UnaryNode(op, node(), postfix);
+                }
+                case LITERAL:
+                    return new LiteralNode(literal());
+                case VARIABLE: {
+                    int name = name();
+                    return new VariableNode(strings[name]);
+                }
+                case ASSIGN: {
+                    int name = name();
+                    TokenType op = op();
+                    return new AssignNode(strings[name], op, node());
+                }
+                case PRINT:
+                    return new PrintNode(node());
+                case IF: {
+                    Node condition = node();
+                    List<Node> ifBranch = nodes();
+                    return new IfNode(condition, ifBranch, nodes());
+                }
+                case EXPRESSION:
+                    return new ExpressionStatement(node());
+                case FOR: {
+                    Node initialization = node();
+                    Node condition = node();
+                    Node increment = node();
+                    return new ForNode(initialization, condition, increment, nodes());
+                }
+                case INPUT: {
+                    Node prompt = node();
+                    return new InputNode(prompt, node());
+                }
+                case WHILE: {
+                    Node condition = node();
+                    return new WhileNode(condition, nodes());
+                }
+                case FUNCTION_DEF: {
+                    int name = name();
+                    boolean memoize = bool();
+                    int count = varint();
+                    List<String> parameters = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        parameters.add(strings[name()]);
+                    }
+                    FunctionDefNode function = new FunctionDefNode(strings[name], parameters, nodes());
+                    function.memoize = memoize;
+                    return function;
+                }
+                case FUNCTION_CALL: {
+                    int name = name();
+                    return new FunctionCallNode(strings[name], nodes());
+                }
+                case RETURN:
+                    return new ReturnNode(node());
+                case ARRAY:
+                    return new ArrayLiteralNode(nodes());
+                case MAP: {
+                    List<Node> keys = nodes();
+                    return new MapLiteralNode(keys, nodes());
+                }
+                case SET:
+                    return new SetLiteralNode(nodes());
+                case EVENT_TRIGGER: {
+                    Node timeExpr = node();
+                    String unit = string();
+                    Node action = node();
+                    return new EventTriggerNode(timeExpr, unit, action, node());
+                }
+                case USE:
+                    return new UseNode(string());
+                case METHOD_CALL: {
+                    Node target = node();
+                    String methodName = string();
+                    return new ObjectMethodCallNode(target, methodName, nodes());
+                }
+                case INDEX: {
+                    Node target = node();
+                    return new IndexNode(target, node());
+                }
+                case ASSIGN_INDEX: {
+                    Node target = node();
+                    Node index = node();
+                    TokenType op = op();
+                    return new AssignIndexNode(target, index, op, node());
+                }
+                default:
+                    throw new IllegalStateException("Unknown node tag " + tag);
+            }
+        }
+
+        Object literal() {
+            int tag = byte8();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case INT: {
+                    int n = varint();
+                    return (n >>> 1) ^ -(n & 1);
+                }
+                case LONG:
+                    return int64();
+                case BIG_INTEGER:
+                    return new BigInteger(bytes(varint()));
+                case DOUBLE:
+                    return Double.longBitsToDouble(int64());
+                case STRING:
+                    return string();
+                case TRUE:
+                    return true;
+                case FALSE:
+                    return false;
+                default:
+                    throw new IllegalStateException("Unknown literal tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.example.lang;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Runs benchmark scripts on every execution engine and prints the timings.
+ *
+ * Usage: java com.example.lang.Benchmark [--runs=N] [--jit[=threshold]] [--budget] [--tables] [--startup]
+ *        [--requests[=clients]] [script_file...]
+ * Without script arguments every *.txt file in scripts/bench is used.
+ * {@code --budget} runs the scripts under an {@link ExecutionBudget} too
+ * large to be reached, so that the cost of its checks shows.
+ * {@code --tables} instead times the map type of the language against
+ * java.util.HashMap.
+ * {@code --startup} instead times how long a new JVM takes to get each
+ * script ready to run, lexing and parsing it versus loading its
+ * {@code .nvc} file (see {@link AstCache}); use it on large scripts.
+ * {@code --requests} instead load-tests the way the web server runs code:
+ * {@code clients} threads (default 4) each send requests back to back, run
+ * in process by {@link ScriptRunner}, parsed each time or kept in a
+ * {@link ScriptStore} as /runCode does, and, as /runCode used to, by
+ * compiling this package with javac and starting a JVM on Main. It prints
+ * requests per second and the median latency of each; {@code --runs} is the
+ * number of requests per client. The javac step needs the sources under
+ * src/main/java.
+ *
+ * A script may declare how many operations (calls, iterations...) one run
+ * performs with a {@code // ops: N} line; the throughput is then printed too.
+ */
+public class Benchmark {
+    private static final int WARMUP_RUNS = 2;
+    // Checked like any budget, but no benchmark comes near it
+    private static final ExecutionBudget UNREACHED_BUDGET = new ExecutionBudget(Long.MAX_VALUE / 2,
+            TimeUnit.HOURS.toMillis(1), Long.MAX_VALUE / 2);
+    private static final Path SOURCES = Paths.get("src", "main", "java", "com", "example", "lang");
+
+    public static void main(String[] args) throws IOException {
+        int runs = 5;
+        int jitThreshold = -1;
+        boolean budget = false;
+        boolean tables = false;
+        boolean startup = false;
+        int clients = 0;
+        List<Path> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else if (arg.equals("--jit")) {
+                jitThreshold = JitCompiler.DEFAULT_THRESHOLD;
+            } else if (arg.startsWith("--jit=")) {
+                jitThreshold = Integer.parseInt(arg.substring("--jit=".length()));
+            } else if (arg.equals("--budget")) {
+                budget = true;
+            } else if (arg.equals("--tables")) {
+                tables = true;
+            } else if (arg.equals("--startup")) {
+                startup = true;
+            } else if (arg.equals("--requests")) {
+                clients = 4;
+            } else if (arg.startsWith("--requests=")) {
+                clients = Integer.parseInt(arg.substring("--requests=".length()));
+            } else if (arg.startsWith("--load=")) {
+                // A child started by --startup
+                printLoadTime(Paths.get(arg.substring("--load=".length())), false);
+                return;
+            } else if (arg.startsWith("--load-cached=")) {
+                printLoadTime(Paths.get(arg.substring("--load-cached=".length())), true);
+                return;
+            } else {
+                scripts.add(Paths.get(arg));
+            }
+        }
+        if (tables) {
+            compareTables(runs);
+            return;
+        }
+        if (scripts.isEmpty()) {
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("scripts", "bench"), "*.txt")) {
+                dir.forEach(scripts::add);
+            }
+            scripts.sort(null);
+        }
+        if (startup) {
+            for (Path script : scripts) {
+                System.out.println("== " + script.getFileName() + " (" + Files.size(script) / 1024 + " KB) ==");
+                timeStartup("parse", runs, "--load=" + script);
+                timeStartup("cached", runs, "--load-cached=" + script);
+            }
+            return;
+        }
+        if (clients > 0) {
+            for (Path script : scripts) {
+                String code = new String(Files.readAllBytes(script));
+                System.out.println("== " + script.getFileName() + " (" + clients + " clients) ==");
+                timeRequests("process", clients, runs, () -> runInChild(script));
+                timeRequests("inproc", clients, runs,
+                        () -> ScriptRunner.run(ScriptRunner.parse(code), "", ExecutionBudget.NONE,
+                                ScriptRunner.DEFAULT_EVENT_TIMEOUT_MILLIS).getOutput());
+                ScriptStore store = new ScriptStore();
+                timeRequests("stored", clients, runs,
+                        () -> ScriptRunner.run(store.get(code).program(), "", ExecutionBudget.NONE,
+                                ScriptRunner.DEFAULT_EVENT_TIMEOUT_MILLIS).getOutput());
+            }
+            return;
+        }
+
+        int threshold = jitThreshold;
+        ExecutionBudget limits = budget ? UNREACHED_BUDGET : ExecutionBudget.NONE;
+        for (Path script : scripts) {
+            String code = new String(Files.readAllBytes(script));
+            long ops = declaredOps(code);
+            System.out.println("== " + script.getFileName() + " ==");
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                printTimes(engine.name().toLowerCase(), runs, ops, () -> timeRun(code, engine, threshold, limits));
+            }
+        }
+    }
+
+    private static void printTimes(String label, int runs, long ops, LongSupplier run) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run.getAsLong();
+        }
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            times[i] = run.getAsLong();
+        }
+        Arrays.sort(times);
+        System.out.printf("  %-7s median %8.2f ms   min %8.2f ms", label, times[runs / 2] / 1e6, times[0] / 1e6);
+        if (ops > 0) {
+            System.out.printf("   %8.3f M ops/s", ops * 1e3 / times[runs / 2]);
+        }
+        System.out.println();
+    }
+
+    /**
+     * Runs the same put/get/remove workload on {@link MapValue} and on
+     * java.util.HashMap, once with Integer keys and once with String keys.
+     */
+    private static void compareTables(int runs) {
+        int count = 1_000_000;
+        Object[] ints = new Object[count];
+        Object[] strings = new Object[count];
+        for (int i = 0; i < count; i++) {
+            ints[i] = i * 31;
+            strings[i] = "key" + i;
+        }
+        for (Object[] keys : new Object[][] {ints, strings}) {
+            System.out.println("== " + (keys == ints ? "int" : "string") + " keys ==");
+            // Each key is put, got, looked up again, and every other one removed
+            long ops = 3L * count + count / 2;
+            printTimes("map", runs, ops, () -> exercise(new MapValue(), keys));
+            printTimes("hashmap", runs, ops, () -> exercise(new HashMap<>(), keys));
+        }
+    }
+
+    private static long exercise(Map<Object, Object> map, Object[] keys) {
+        long start = System.nanoTime();
+        for (Object key : keys) {
+            map.put(key, key);
+        }
+        long found = 0;
+        for (Object key : keys) {
+            if (map.get(key) != null) {
+                found++;
+            }
+        }
+        for (int i = 0; i < keys.length; i += 2) {
+            map.remove(keys[i]);
+        }
+        for (Object key : keys) {
+            if (map.containsKey(key)) {
+                found++;
+            }
+        }
+        long time = System.nanoTime() - start;
+        if (found != keys.length + keys.length / 2) {
+            throw new IllegalStateException("Wrong lookups: " + found);
+        }
+        return time;
+    }
+
+    /**
+     * Starts a JVM per run that loads a script and exits, and prints the
+     * median time the load took in it and the median for the whole process.
+     * The first runs are not counted; for the cached mode they write the
+     * .nvc file.
+     */
+    private static void timeStartup(String label, int runs, String loadArg) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                Benchmark.class.getName(), loadArg);
+        long[] loads = new long[runs];
+        long[] processes = new long[runs];
+        for (int i = -WARMUP_RUNS; i < runs; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes()).trim();
+            try {
+                if (process.waitFor() != 0) {
+                    throw new IOException("Load failed: " + output);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            if (i >= 0) {
+                processes[i] = System.nanoTime() - start;
+                loads[i] = Long.parseLong(output);
+            }
+        }
+        Arrays.sort(loads);
+        Arrays.sort(processes);
+        System.out.printf("  %-7s load median %8.2f ms   process median %8.2f ms%n", label,
+                loads[runs / 2] / 1e6, processes[runs / 2] / 1e6);
+    }
+
+    /**
+     * Has {@code clients} threads send {@code requests} requests each, after
+     * one unmeasured request per thread, and prints the throughput and the
+     * median and worst latency.
+     */
+    private static void timeRequests(String label, int clients, int requests, Callable<String> request) {
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            List<Callable<long[]>> tasks = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                tasks.add(() -> {
+                    request.call();
+                    long[] latencies = new long[requests];
+                    for (int i = 0; i < requests; i++) {
+                        long start = System.nanoTime();
+                        request.call();
+                        latencies[i] = System.nanoTime() - start;
+                    }
+                    return latencies;
+                });
+            }
+            long start = System.nanoTime();
+            List<Future<long[]>> results = pool.invokeAll(tasks);
+            long time = System.nanoTime() - start;
+            long[] latencies = new long[clients * requests];
+            for (int c = 0; c < clients; c++) {
+                System.arraycopy(results.get(c).get(), 0, latencies, c * requests, requests);
+            }
+            Arrays.sort(latencies);
+            System.out.printf("  %-7s %8.2f req/s   median %8.2f ms   max %8.2f ms%n", label,
+                    latencies.length * 1e9 / time, latencies[latencies.length / 2] / 1e6,
+                    latencies[latencies.length - 1] / 1e6);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Request failed: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * One request the way /runCode served it before it ran code in process:
+     * javac on the whole package, then a JVM running Main on the script. Each
+     * request compiles to a directory of its own so that clients do not
+     * overwrite each other's classes.
+     */
+    private static String runInChild(Path script) throws IOException, InterruptedException {
+        Path bin = Files.createTempDirectory("nuvo-bin");
+        try {
+            String classPath = System.getProperty("java.class.path");
+            List<String> javac = new ArrayList<>(Arrays.asList(
+                    Paths.get(System.getProperty("java.home"), "bin", "javac").toString(),
+                    "-nowarn", "-cp", classPath, "-d", bin.toString()));
+            try (DirectoryStream<Path> sources = Files.newDirectoryStream(SOURCES, "*.java")) {
+                sources.forEach(source -> javac.add(source.toString()));
+            }
+            try (DirectoryStream<Path> sources = Files.newDirectoryStream(SOURCES.resolve("vm"), "*.java")) {
+                sources.forEach(source -> javac.add(source.toString()));
+            }
+            runChild(javac);
+            return runChild(Arrays.asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", bin + File.pathSeparator + classPath, Main.class.getName(), "--no-cache", script.toString()));
+        } finally {
+            try (Stream<Path> files = Files.walk(bin)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private static String runChild(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IOException(command.get(0) + " failed: " + output);
+        }
+        return output;
+    }
+
+    // In the child: the nanoseconds from nothing loaded to the program ready to run
+    private static void printLoadTime(Path script, boolean cached) throws IOException {
+        long start = System.nanoTime();
+        List<Node> program = cached ? AstCache.parse(script) : new Parser(Lexer.forFile(script)).parse();
+        long time = System.nanoTime() - start;
+        if (program.isEmpty()) {
+            throw new IOException("No statements in " + script);
+        }
+        System.out.println(time);
+    }
+
+    private static long declaredOps(String code) {
+        for (String line : code.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("// ops:")) {
+                return Long.parseLong(line.substring("// ops:".length()).trim());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Parses and runs the script once with its output discarded, returning the
+     * execution time in nanoseconds (parsing is not included).
+     */
+    private static long timeRun(String code, Interpreter.Engine engine, int jitThreshold, ExecutionBudget budget) {
+        List<Node> program = new Parser(new Lexer(code).tokenize()).parse();
+        Interpreter interpreter = new Interpreter(engine);
+        if (jitThreshold >= 0) {
+            interpreter.enableJit(jitThreshold);
+        }
+        interpreter.setConsole(Console.of(new PrintStream(OutputStream.nullOutputStream()), InputStream.nullInputStream()));
+        interpreter.setBudget(budget);
+        long start = System.nanoTime();
+        interpreter.execute(program);
+        return System.nanoTime() - start;
+    }
+}
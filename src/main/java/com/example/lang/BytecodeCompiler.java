@@ -0,0 +1,269 @@
+package com.example.lang;
+
+import java.util.List;
+
+import com.example.lang.vm.Chunk;
+import com.example.lang.vm.ChunkBuilder;
+import com.example.lang.vm.FunctionProto;
+import com.example.lang.vm.OpCode;
+
+/**
+ * Compiles a resolved AST into VM instructions. Constructs the VM has no
+ * instruction for (input, event triggers, library imports, encrypted
+ * writes...) are emitted as EXEC/EVAL of the original node so the host runs
+ * them with the tree walker.
+ */
+class BytecodeCompiler {
+    private ChunkBuilder out;
+    private boolean inFunction;
+
+    Chunk compile(List<Node> nodes) {
+        out = new ChunkBuilder("<script>");
+        inFunction = false;
+        compileBlock(nodes);
+        out.emit(OpCode.HALT);
+        return out.build();
+    }
+
+    FunctionProto compileFunction(FunctionDefNode func) {
+        ChunkBuilder enclosing = out;
+        boolean enclosingInFunction = inFunction;
+        out = new ChunkBuilder(func.name);
+        inFunction = true;
+
+        compileBlock(func.body);
+        out.emit(OpCode.NULL);
+        out.emit(OpCode.RETURN);
+        FunctionProto proto = new FunctionProto(func.name, func.parameters.size(), func.frameSize, out.build(),
+                func);
+
+        out = enclosing;
+        inFunction = enclosingInFunction;
+        return proto;
+    }
+
+    private void compileBlock(List<Node> statements) {
+        for (Node stmt : statements) {
+            compileStatement(stmt);
+        }
+    }
+
+    private void compileStatement(Node node) {
+        if (node instanceof PrintNode) {
+            compileExpression(((PrintNode) node).expr, false);
+            out.emit(OpCode.PRINT);
+        } else if (node instanceof ExpressionStatement && isAppend(((ExpressionStatement) node).expr)) {
+            // s = s + x and s += x: the host appends to a Rope in place, which the loads then flatten
+            out.emit(OpCode.EXEC, out.constant(node));
+        } else if (node instanceof ExpressionStatement) {
+            compileExpression(((ExpressionStatement) node).expr, true);
+            out.emit(OpCode.POP);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            compileExpression(ifNode.condition, true);
+            int toElse = out.emitJump(OpCode.JUMP_IF_FALSE);
+            compileBlock(ifNode.ifBranch);
+            if (ifNode.elseBranch != null) {
+                int toEnd = out.emitJump(OpCode.JUMP);
+                out.patch(toElse);
+                compileBlock(ifNode.elseBranch);
+                out.patch(toEnd);
+            } else {
+                out.patch(toElse);
+            }
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            compileExpression(forNode.initialization, true);
+            out.emit(OpCode.POP);
+            int loopStart = out.position();
+            compileExpression(forNode.condition, true);
+            int toEnd = out.emitJump(OpCode.JUMP_IF_FALSE);
+            compileBlock(forNode.body);
+            compileExpression(forNode.increment, true);
+            out.emit(OpCode.POP);
+            out.emit(OpCode.JUMP, loopStart);
+            out.patch(toEnd);
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            int loopStart = out.position();
+            compileExpression(whileNode.condition, true);
+            int toEnd = out.emitJump(OpCode.JUMP_IF_FALSE);
+            compileBlock(whileNode.body);
+            out.emit(OpCode.JUMP, loopStart);
+            out.patch(toEnd);
+        } else if (node instanceof ReturnNode && inFunction) {
+            ReturnNode ret = (ReturnNode) node;
+            if (ret.value instanceof FunctionCallNode) {
+                FunctionCallNode call = (FunctionCallNode) ret.value;
+                out.emit(OpCode.FUNCTION, call.symbol, call.arguments.size());
+                for (Node arg : call.arguments) {
+                    compileExpression(arg, true);
+                }
+                out.emit(OpCode.TAIL_CALL, call.arguments.size());
+                return;
+            }
+            if (ret.value != null) {
+                compileExpression(ret.value, true);
+            } else {
+                out.emit(OpCode.NULL);
+            }
+            out.emit(OpCode.RETURN);
+        } else {
+            // FunctionDefNode, InputNode, EventTriggerNode, UseNode and top-level returns
+            out.emit(OpCode.EXEC, out.constant(node));
+        }
+    }
+
+    private void compileExpression(Node node, boolean decrypt) {
+        if (node instanceof LiteralNode) {
+            Object value = ((LiteralNode) node).value;
+            if (value == null) {
+                out.emit(OpCode.NULL);
+            } else {
+                out.emit(OpCode.CONST, out.constant(value));
+            }
+        } else if (node instanceof VariableNode) {
+            VariableNode var = (VariableNode) node;
+            emitLoad(var.name, var.slot, var.globalSlot, decrypt);
+        } else if (node instanceof ArrayLiteralNode) {
+            List<Node> elements = ((ArrayLiteralNode) node).elements;
+            for (Node elem : elements) {
+                compileExpression(elem, decrypt);
+            }
+            out.emit(OpCode.ARRAY, elements.size());
+        } else if (node instanceof AssignNode && !((AssignNode) node).encrypted) {
+            AssignNode assign = (AssignNode) node;
+            compileExpression(assign.value, decrypt);
+            if (assign.op != TokenType.ASSIGN) {
+                // The right-hand side is evaluated before the variable is read
+                emitLoad(assign.name, assign.slot, assign.globalSlot, true);
+                out.emit(OpCode.SWAP);
+                out.emit(binaryOpcode(Interpreter.operatorFromCompound(assign.op)));
+            }
+            out.emit(OpCode.DUP);
+            emitStore(assign.slot, assign.globalSlot);
+        } else if (node instanceof BinaryNode) {
+            BinaryNode bin = (BinaryNode) node;
+            compileExpression(bin.left, decrypt);
+            compileExpression(bin.right, decrypt);
+            out.emit(binaryOpcode(bin.op));
+        } else if (node instanceof UnaryNode && isPlainUnary((UnaryNode) node)) {
+            UnaryNode un = (UnaryNode) node;
+            if (un.op == TokenType.NOT) {
+                compileExpression(un.expr, decrypt);
+                out.emit(OpCode.NOT);
+            } else {
+                VariableNode var = (VariableNode) un.expr;
+                int op = un.op == TokenType.PLUS_PLUS ? OpCode.INC : OpCode.DEC;
+                emitLoad(var.name, var.slot, var.globalSlot, true);
+                if (un.postfix) {
+                    out.emit(OpCode.DUP);
+                    out.emit(op);
+                } else {
+                    out.emit(op);
+                    out.emit(OpCode.DUP);
+                }
+                emitStore(var.slot, var.globalSlot);
+            }
+        } else if (node instanceof IndexNode) {
+            IndexNode indexNode = (IndexNode) node;
+            compileExpression(indexNode.target, decrypt);
+            compileExpression(indexNode.index, decrypt);
+            out.emit(OpCode.INDEX);
+        } else if (node instanceof AssignIndexNode) {
+            AssignIndexNode assignIndex = (AssignIndexNode) node;
+            compileExpression(assignIndex.target, decrypt);
+            compileExpression(assignIndex.index, decrypt);
+            out.emit(OpCode.CHECK_INDEX);
+            compileExpression(assignIndex.value, decrypt);
+            int compound = assignIndex.op == TokenType.ASSIGN ? -1
+                    : binaryOpcode(Interpreter.operatorFromCompound(assignIndex.op));
+            out.emit(OpCode.STORE_INDEX, compound);
+        } else if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            out.emit(OpCode.FUNCTION, call.symbol, call.arguments.size());
+            for (Node arg : call.arguments) {
+                compileExpression(arg, decrypt);
+            }
+            out.emit(OpCode.CALL, call.arguments.size());
+        } else if (node instanceof ObjectMethodCallNode) {
+            ObjectMethodCallNode om = (ObjectMethodCallNode) node;
+            compileExpression(om.target, decrypt);
+            for (Node arg : om.arguments) {
+                compileExpression(arg, decrypt);
+            }
+            out.emit(OpCode.INVOKE, out.constant(om.methodName), om.arguments.size());
+        } else {
+            // Encrypted writes and anything else the VM has no instruction for
+            out.emit(decrypt ? OpCode.EVAL : OpCode.EVAL_RAW, out.constant(node));
+        }
+    }
+
+    private boolean isAppend(Node node) {
+        return node instanceof AssignNode && ((AssignNode) node).appended != null;
+    }
+
+    private boolean isPlainUnary(UnaryNode un) {
+        if (un.op == TokenType.NOT && !un.postfix) {
+            return true;
+        }
+        return (un.op == TokenType.PLUS_PLUS || un.op == TokenType.MINUS_MINUS)
+                && un.expr instanceof VariableNode && !((VariableNode) un.expr).encrypted;
+    }
+
+    private void emitLoad(String name, int slot, int globalSlot, boolean decrypt) {
+        if (!decrypt) {
+            // Print context: encrypted values are shown as ciphertext
+            out.emit(OpCode.LOAD_VAR_RAW, slot, globalSlot, out.constant(name));
+        } else if (globalSlot < 0) {
+            out.emit(OpCode.LOAD_LOCAL, slot);
+        } else if (slot < 0) {
+            out.emit(OpCode.LOAD_GLOBAL, globalSlot, out.constant(name));
+        } else {
+            out.emit(OpCode.LOAD_VAR, slot, globalSlot, out.constant(name));
+        }
+    }
+
+    private void emitStore(int slot, int globalSlot) {
+        if (globalSlot < 0) {
+            out.emit(OpCode.STORE_LOCAL, slot);
+        } else if (slot < 0) {
+            out.emit(OpCode.STORE_GLOBAL, globalSlot);
+        } else {
+            out.emit(OpCode.STORE_VAR, slot, globalSlot);
+        }
+    }
+
+    static int binaryOpcode(TokenType op) {
+        switch (op) {
+            case PLUS:
+                return OpCode.ADD;
+            case MINUS:
+                return OpCode.SUB;
+            case STAR:
+                return OpCode.MUL;
+            case SLASH:
+                return OpCode.DIV;
+            case MOD:
+                return OpCode.MOD;
+            case EQ_EQ:
+                return OpCode.EQ;
+            case NOT_EQ:
+                return OpCode.NE;
+            case GT:
+                return OpCode.GT;
+            case LT:
+                return OpCode.LT;
+            case GT_EQ:
+                return OpCode.GE;
+            case LT_EQ:
+                return OpCode.LE;
+            case AND_AND:
+                return OpCode.AND;
+            case OR_OR:
+                return OpCode.OR;
+            default:
+                throw new RuntimeException("Unsupported operator: " + op);
+        }
+    }
+}
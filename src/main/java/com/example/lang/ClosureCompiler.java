@@ -0,0 +1,561 @@
+package com.example.lang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.example.lang.vm.Sealed;
+
+/**
+ * Compiles a resolved AST into a tree of Java closures. Every node is
+ * inspected once, at compile time; at run time each closure calls its
+ * pre-linked children directly, so there is no instanceof chain and no
+ * operator switch on the hot path.
+ *
+ * Closures read and write the same frames as the tree walker. Nodes that are
+ * not worth specializing (input, event triggers, library imports, encrypted
+ * variables...) are wrapped so that they run on the tree walker.
+ */
+class ClosureCompiler {
+    interface Expr {
+        Object eval();
+    }
+
+    interface Stmt {
+        void exec();
+    }
+
+    private static final Stmt NOTHING = () -> {
+    };
+
+    private final Interpreter in;
+    private boolean inFunction;
+
+    ClosureCompiler(Interpreter in) {
+        this.in = in;
+    }
+
+    Stmt compileBlock(List<Node> statements) {
+        if (statements == null || statements.isEmpty()) {
+            return NOTHING;
+        }
+        if (statements.size() == 1) {
+            return compileStatement(statements.get(0));
+        }
+        Stmt[] body = new Stmt[statements.size()];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = compileStatement(statements.get(i));
+        }
+        return () -> {
+            for (Stmt stmt : body) {
+                stmt.exec();
+                if (in.returning) {
+                    return;
+                }
+            }
+        };
+    }
+
+    private Stmt compileStatement(Node node) {
+        if (node instanceof PrintNode) {
+            Expr expr = compileExpression(((PrintNode) node).expr, false);
+            return () -> in.print(expr.eval());
+        } else if (node instanceof ExpressionStatement) {
+            Node exprNode = ((ExpressionStatement) node).expr;
+            Expr expr = compileExpression(exprNode, true);
+            if (exprNode instanceof AssignNode && ((AssignNode) exprNode).appended != null) {
+                return compileAppend((AssignNode) exprNode, expr);
+            }
+            return expr::eval;
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            Expr condition = compileExpression(ifNode.condition, true);
+            Stmt ifBranch = compileBlock(ifNode.ifBranch);
+            Stmt elseBranch = compileBlock(ifNode.elseBranch);
+            return () -> {
+                if (isTrue(condition.eval())) {
+                    ifBranch.exec();
+                } else {
+                    elseBranch.exec();
+                }
+            };
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            CountedLoop counted = CountedLoop.analyze(forNode); // before the body, whose indexing it marks
+            Expr initialization = compileExpression(forNode.initialization, true);
+            Expr condition = compileExpression(forNode.condition, true);
+            Expr increment = compileExpression(forNode.increment, true);
+            Stmt body = compileBlock(forNode.body);
+            return () -> {
+                initialization.eval();
+                if (counted != null && counted.run(in, body)) {
+                    return;
+                }
+                while (isTrue(condition.eval())) {
+                    in.step();
+                    body.exec();
+                    if (in.returning) {
+                        return;
+                    }
+                    increment.eval();
+                }
+            };
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            Expr condition = compileExpression(whileNode.condition, true);
+            Stmt body = compileBlock(whileNode.body);
+            return () -> {
+                while (isTrue(condition.eval())) {
+                    in.step();
+                    body.exec();
+                    if (in.returning) {
+                        return;
+                    }
+                }
+            };
+        } else if (node instanceof FunctionDefNode) {
+            FunctionDefNode func = (FunctionDefNode) node;
+            return () -> in.defineFunction(func);
+        } else if (node instanceof ReturnNode && inFunction && ((ReturnNode) node).value instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) ((ReturnNode) node).value;
+            Expr[] arguments = compileAll(call.arguments, true);
+            return () -> {
+                FunctionDefNode func = in.linkFunction(call);
+                Object[] locals = in.newFrame(func);
+                for (int i = 0; i < arguments.length; i++) {
+                    locals[i] = arguments[i].eval();
+                }
+                in.tailCall(func, locals);
+            };
+        } else if (node instanceof ReturnNode && inFunction) {
+            Node valueNode = ((ReturnNode) node).value;
+            Expr value = valueNode != null ? compileExpression(valueNode, true) : () -> null;
+            return () -> {
+                in.returnValue = value.eval();
+                in.returning = true;
+            };
+        }
+        // InputNode, EventTriggerNode, UseNode and top-level returns
+        return () -> in.executeNode(node);
+    }
+
+    private Expr compileExpression(Node node, boolean decrypt) {
+        if (node instanceof LiteralNode) {
+            Object value = ((LiteralNode) node).value;
+            return () -> value;
+        } else if (node instanceof VariableNode) {
+            return compileLoad((VariableNode) node, decrypt);
+        } else if (node instanceof ArrayLiteralNode) {
+            Expr[] elements = compileAll(((ArrayLiteralNode) node).elements, decrypt);
+            return () -> {
+                List<Object> list = new ArrayValue(elements.length);
+                for (Expr elem : elements) {
+                    list.add(elem.eval());
+                }
+                return list;
+            };
+        } else if (node instanceof MapLiteralNode) {
+            Expr[] keys = compileAll(((MapLiteralNode) node).keys, decrypt);
+            Expr[] values = compileAll(((MapLiteralNode) node).values, decrypt);
+            return () -> {
+                Map<Object, Object> map = new MapValue(keys.length);
+                for (int i = 0; i < keys.length; i++) {
+                    Object key = keys[i].eval();
+                    map.put(key, values[i].eval());
+                }
+                return map;
+            };
+        } else if (node instanceof SetLiteralNode) {
+            Expr[] elements = compileAll(((SetLiteralNode) node).elements, decrypt);
+            return () -> {
+                Set<Object> set = new SetValue(elements.length);
+                for (Expr elem : elements) {
+                    set.add(elem.eval());
+                }
+                return set;
+            };
+        } else if (node instanceof AssignNode && !((AssignNode) node).encrypted) {
+            return compileAssign((AssignNode) node, decrypt);
+        } else if (node instanceof BinaryNode) {
+            BinaryNode bin = (BinaryNode) node;
+            return compileBinary(bin.op, compileExpression(bin.left, decrypt), compileExpression(bin.right, decrypt));
+        } else if (node instanceof UnaryNode) {
+            UnaryNode un = (UnaryNode) node;
+            if (un.op == TokenType.NOT && !un.postfix) {
+                Expr expr = compileExpression(un.expr, decrypt);
+                return () -> !in.isTrue(expr.eval());
+            }
+            if ((un.op == TokenType.PLUS_PLUS || un.op == TokenType.MINUS_MINUS)
+                    && un.expr instanceof VariableNode && !((VariableNode) un.expr).encrypted) {
+                return compileIncrement(un, (VariableNode) un.expr);
+            }
+        } else if (node instanceof IndexNode) {
+            IndexNode indexNode = (IndexNode) node;
+            Expr target = compileTarget(indexNode.target, decrypt);
+            Expr index = compileExpression(indexNode.index, decrypt);
+            CountedLoop loop = indexNode.loop;
+            if (loop != null) {
+                return () -> {
+                    Object targetVal = target.eval();
+                    if (loop.inBounds(in)) {
+                        return ((List<?>) targetVal).get(loop.counter);
+                    }
+                    return in.index(targetVal, index.eval());
+                };
+            }
+            return () -> in.index(target.eval(), index.eval());
+        } else if (node instanceof AssignIndexNode) {
+            AssignIndexNode assignIndex = (AssignIndexNode) node;
+            Expr target = compileTarget(assignIndex.target, decrypt);
+            Expr index = compileExpression(assignIndex.index, decrypt);
+            Expr value = compileExpression(assignIndex.value, decrypt);
+            TokenType op = assignIndex.op;
+            return () -> {
+                Object targetVal = target.eval();
+                Object indexVal = index.eval();
+                in.checkIndex(targetVal, indexVal);
+                return in.storeIndex(targetVal, indexVal, op, value.eval());
+            };
+        } else if (node instanceof FunctionCallNode) {
+            return compileCall((FunctionCallNode) node, decrypt);
+        } else if (node instanceof ObjectMethodCallNode) {
+            ObjectMethodCallNode om = (ObjectMethodCallNode) node;
+            Expr target = compileExpression(om.target, decrypt);
+            Expr[] arguments = compileAll(om.arguments, decrypt);
+            String methodName = om.methodName;
+            return () -> {
+                Object targetVal = target.eval();
+                List<Object> argVals = new ArrayList<>(arguments.length);
+                for (Expr arg : arguments) {
+                    argVals.add(arg.eval());
+                }
+                return in.callObjectMethod(targetVal, methodName, argVals);
+            };
+        }
+        // Encrypted writes, returns used as expressions and anything else left to the tree walker
+        return () -> in.evaluate(node, decrypt);
+    }
+
+    private Expr[] compileAll(List<Node> nodes, boolean decrypt) {
+        Expr[] exprs = new Expr[nodes.size()];
+        for (int i = 0; i < exprs.length; i++) {
+            exprs[i] = compileExpression(nodes.get(i), decrypt);
+        }
+        return exprs;
+    }
+
+    private Expr compileLoad(VariableNode var, boolean decrypt) {
+        String name = var.name;
+        int slot = var.slot;
+        int globalSlot = var.globalSlot;
+        if (globalSlot < 0) {
+            // Parameter
+            return () -> unseal(in.frame[slot], decrypt);
+        }
+        if (slot < 0) {
+            // Top-level code
+            return () -> {
+                Object value = in.globals[globalSlot];
+                if (value == Interpreter.UNDEFINED) {
+                    throw new RuntimeException("Undefined variable: " + name);
+                }
+                return unseal(value, decrypt);
+            };
+        }
+        return () -> unseal(in.readVariable(name, slot, globalSlot), decrypt);
+    }
+
+    // Mirrors Interpreter.evaluateTarget
+    private Expr compileTarget(Node target, boolean decrypt) {
+        if (!(target instanceof VariableNode)) {
+            return compileExpression(target, decrypt);
+        }
+        VariableNode var = (VariableNode) target;
+        String name = var.name;
+        int slot = var.slot;
+        int globalSlot = var.globalSlot;
+        return () -> {
+            Object value = in.readVariable(name, slot, globalSlot);
+            if (value instanceof OwnedList) {
+                return ((OwnedList) value).list;
+            }
+            return unseal(value, decrypt);
+        };
+    }
+
+    private Object unseal(Object value, boolean decrypt) {
+        if (value instanceof Sealed) {
+            return in.unseal((Sealed) value, decrypt);
+        }
+        return value;
+    }
+
+    // Mirrors Interpreter.appendInPlace; runs the plain assignment when the variable holds no string or list
+    private Stmt compileAppend(AssignNode assign, Expr assignment) {
+        Expr[] operands = compileAll(assign.appended, true);
+        String name = assign.name;
+        int slot = assign.slot;
+        int globalSlot = assign.globalSlot;
+        boolean compound = assign.op == TokenType.PLUS_EQ;
+        return () -> {
+            Object content = in.peekVariable(slot, globalSlot);
+            if (OwnedList.isList(content) && operands.length == 1) {
+                appendToList(content, operands[0], compound, slot, globalSlot);
+            } else if (Rope.isString(content)) {
+                appendToRope(content, operands, compound, name, slot, globalSlot);
+            } else {
+                assignment.eval();
+            }
+        };
+    }
+
+    private void appendToList(Object content, Expr operand, boolean compound, int slot, int globalSlot) {
+        Object claimed;
+        Object value;
+        if (compound) {
+            // The right-hand side is evaluated before the variable is read
+            value = operand.eval();
+            claimed = OwnedList.claim(in.peekVariable(slot, globalSlot));
+        } else {
+            claimed = OwnedList.claim(content);
+            value = operand.eval();
+        }
+        in.writeVariable(slot, globalSlot, OwnedList.append(claimed, value, in));
+    }
+
+    private void appendToRope(Object content, Expr[] operands, boolean compound, String name, int slot,
+            int globalSlot) {
+        if (compound) {
+            Object value = operands[0].eval();
+            Object current = in.peekVariable(slot, globalSlot);
+            in.writeVariable(slot, globalSlot, Rope.isString(current) ? in.appendCharged(current, value)
+                    : in.applyOp(in.plainValue(in.readVariable(name, slot, globalSlot)), value, TokenType.PLUS));
+            return;
+        }
+        Object rope = content;
+        for (Expr operand : operands) {
+            rope = in.appendCharged(rope, operand.eval());
+        }
+        in.writeVariable(slot, globalSlot, rope);
+    }
+
+    private Expr compileAssign(AssignNode assign, boolean decrypt) {
+        Expr value = compileExpression(assign.value, decrypt);
+        String name = assign.name;
+        int slot = assign.slot;
+        int globalSlot = assign.globalSlot;
+        if (assign.op == TokenType.ASSIGN) {
+            return () -> {
+                Object newVal = value.eval();
+                in.writeVariable(slot, globalSlot, newVal);
+                return newVal;
+            };
+        }
+        BinaryOp operator = operator(Interpreter.operatorFromCompound(assign.op));
+        return () -> {
+            // The right-hand side is evaluated before the variable is read
+            Object right = value.eval();
+            Object left = in.plainValue(in.readVariable(name, slot, globalSlot));
+            Object newVal = operator.apply(left, right);
+            in.writeVariable(slot, globalSlot, newVal);
+            return newVal;
+        };
+    }
+
+    private Expr compileIncrement(UnaryNode un, VariableNode var) {
+        String name = var.name;
+        int slot = var.slot;
+        int globalSlot = var.globalSlot;
+        TokenType op = un.op;
+        boolean postfix = un.postfix;
+        return () -> {
+            Object val = in.plainValue(in.readVariable(name, slot, globalSlot));
+            Object newVal = in.applyUnary(val, op);
+            in.writeVariable(slot, globalSlot, newVal);
+            return postfix ? val : newVal;
+        };
+    }
+
+    private Expr compileCall(FunctionCallNode call, boolean decrypt) {
+        Expr[] arguments = compileAll(call.arguments, decrypt);
+        return () -> {
+            FunctionDefNode func = in.linkFunction(call);
+            Object[] locals = in.newFrame(func);
+            for (int i = 0; i < arguments.length; i++) {
+                locals[i] = arguments[i].eval();
+            }
+            return invoke(func, locals);
+        };
+    }
+
+    private Object invoke(FunctionDefNode func, Object[] locals) {
+        Memoizer.Table table = in.memoTable(func, locals);
+        if (table == null) {
+            return run(func, locals);
+        }
+        Object key = Memoizer.key(func, locals);
+        Object result = Memoizer.lookup(table, key);
+        if (result != Interpreter.UNDEFINED) {
+            in.releaseFrame(func, locals);
+            return result;
+        }
+        result = run(func, locals);
+        Memoizer.store(table, key, result);
+        return result;
+    }
+
+    private Object run(FunctionDefNode func, Object[] locals) {
+        if (in.callDepth >= Interpreter.STACK_CALLS) {
+            return in.callOnHeap(func, locals);
+        }
+        // Tail calls loop here instead of nesting, as in Interpreter.invoke
+        FunctionDefNode callee = func;
+        Object[] calleeFrame = locals;
+        Object[] callerFrame = in.frame;
+        in.callDepth++;
+        try {
+            while (true) {
+                if (in.jit != null) {
+                    Object result = in.jit.call(callee, calleeFrame);
+                    if (result != Interpreter.UNDEFINED) {
+                        return result;
+                    }
+                }
+                if (callee.closure == null) {
+                    boolean enclosingInFunction = inFunction;
+                    inFunction = true;
+                    callee.closure = compileBlock(callee.body);
+                    inFunction = enclosingInFunction;
+                }
+                in.frame = calleeFrame;
+                callee.closure.exec();
+                FunctionDefNode next = in.tailCallee;
+                Object[] nextFrame = in.tailFrame;
+                if (!in.takeTailCall()) {
+                    return in.takeReturnValue();
+                }
+                in.releaseFrame(callee, calleeFrame);
+                callee = next;
+                calleeFrame = nextFrame;
+            }
+        } catch (ReturnException re) {
+            // A return nested in an expression
+            return re.value;
+        } finally {
+            in.frame = callerFrame;
+            in.callDepth--;
+            in.releaseFrame(callee, calleeFrame);
+        }
+    }
+
+    interface BinaryOp {
+        Object apply(Object left, Object right);
+    }
+
+    /**
+     * Picks the closure for one operator. Each operator gets its own lambda,
+     * so the arithmetic behind it is fixed at compile time and HotSpot can
+     * inline it into the site.
+     */
+    private Expr compileBinary(TokenType op, Expr left, Expr right) {
+        switch (op) {
+            case PLUS:
+                return () -> add(left.eval(), right.eval());
+            case MINUS:
+                return () -> subtract(left.eval(), right.eval());
+            case STAR:
+                return () -> multiply(left.eval(), right.eval());
+            case LT:
+                return () -> compare(left.eval(), right.eval(), TokenType.LT);
+            case LT_EQ:
+                return () -> compare(left.eval(), right.eval(), TokenType.LT_EQ);
+            case GT:
+                return () -> compare(left.eval(), right.eval(), TokenType.GT);
+            case GT_EQ:
+                return () -> compare(left.eval(), right.eval(), TokenType.GT_EQ);
+            case EQ_EQ:
+                return () -> compare(left.eval(), right.eval(), TokenType.EQ_EQ);
+            case NOT_EQ:
+                return () -> compare(left.eval(), right.eval(), TokenType.NOT_EQ);
+            default:
+                return () -> in.applyOp(left.eval(), right.eval(), op);
+        }
+    }
+
+    private BinaryOp operator(TokenType op) {
+        switch (op) {
+            case PLUS:
+                return this::add;
+            case MINUS:
+                return this::subtract;
+            case STAR:
+                return this::multiply;
+            default:
+                return (left, right) -> in.applyOp(left, right, op);
+        }
+    }
+
+    // Integer fast paths. Results that overflow an int fall back to applyOp,
+    // which widens them to a long or BigInteger.
+
+    private Object add(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            long result = (long) (Integer) left + (Integer) right;
+            if ((int) result == result) {
+                return (int) result;
+            }
+        }
+        return in.applyOp(left, right, TokenType.PLUS);
+    }
+
+    private Object subtract(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            long result = (long) (Integer) left - (Integer) right;
+            if ((int) result == result) {
+                return (int) result;
+            }
+        }
+        return in.applyOp(left, right, TokenType.MINUS);
+    }
+
+    private Object multiply(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            long result = (long) (Integer) left * (Integer) right;
+            if ((int) result == result) {
+                return (int) result;
+            }
+        }
+        return in.applyOp(left, right, TokenType.STAR);
+    }
+
+    // op is a constant at each call site, so the switch folds away once inlined
+    private Object compare(Object left, Object right, TokenType op) {
+        if (left instanceof Integer && right instanceof Integer) {
+            int l = (Integer) left;
+            int r = (Integer) right;
+            switch (op) {
+                case LT:
+                    return l < r;
+                case LT_EQ:
+                    return l <= r;
+                case GT:
+                    return l > r;
+                case GT_EQ:
+                    return l >= r;
+                case EQ_EQ:
+                    return l == r;
+                default:
+                    return l != r;
+            }
+        }
+        return in.applyOp(left, right, op);
+    }
+
+    private boolean isTrue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return in.isTrue(value);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.lang;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Where a program's output goes and where its input comes from. Print
+ * statements, input prompts and the messages of the libraries all go through
+ * the console of their interpreter (see {@link Interpreter#setConsole}), so
+ * that programs running side by side in one process keep their output apart.
+ *
+ * Scheduled events print from timer threads while the program may be
+ * printing or reading too, so implementations must be thread safe.
+ */
+public interface Console {
+    /**
+     * Writes one line of output. The line may contain line breaks itself.
+     */
+    void println(String line);
+
+    /**
+     * Shows {@code prompt} and reads one line of input.
+     *
+     * @return the line without its line break, or null at the end of input
+     */
+    String readLine(String prompt);
+
+    /**
+     * A console printing to {@code out} and reading from {@code in}.
+     */
+    static Console of(PrintStream out, InputStream in) {
+        return new StreamConsole(out, in);
+    }
+}
+
+class StreamConsole implements Console {
+    private final PrintStream out;
+    private final InputStream in;
+    private BufferedReader reader; // opened on the first read, so a program that reads nothing leaves in alone
+
+    StreamConsole(PrintStream out, InputStream in) {
+        this.out = out;
+        this.in = in;
+    }
+
+    @Override
+    public void println(String line) {
+        out.println(line); // PrintStream locks itself
+    }
+
+    @Override
+    public synchronized String readLine(String prompt) {
+        out.print(prompt);
+        out.flush();
+        if (reader == null) {
+            reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+        try {
+            return reader.readLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.example.lang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A for loop that counts an int variable towards a fixed bound:
+ *
+ * <pre>
+ * for (i = start; i &lt; bound; i++) { ... }
+ * </pre>
+ *
+ * with {@code <}, {@code <=}, {@code >} or {@code >=}, a bound that is an
+ * integer literal or a variable the body does not write, and an increment of
+ * {@code i++}, {@code i--}, {@code i += c}, {@code i -= c} or
+ * {@code i = i + c} for an integer literal {@code c}. The body must not write
+ * the loop variable or call anything that could.
+ *
+ * Such a loop runs on a primitive counter. The variable is only written back
+ * when the body reads it and when the loop ends, and always gets the value
+ * the generic loop would have given it: {@code ++} and {@code --} turn it
+ * into a Double after the first iteration, the other increments keep it an
+ * Integer.
+ *
+ * Indexing {@code a[i]} in the body, with {@code a} not written in the body,
+ * skips the bounds check when the list is long enough for the whole range;
+ * see {@link #inBounds(Interpreter)}.
+ */
+final class CountedLoop {
+    final String name;
+    final int slot;
+    final int globalSlot;
+    final Node bound; // LiteralNode or VariableNode
+    final TokenType comparison;
+    final int step;
+    final boolean doubles; // incremented by ++/--, which produce a Double
+    final boolean bodyReadsCounter; // other than through bounds-check-free indexing
+    private final List<VariableNode> indexedLists;
+
+    // Run time state. The body calls no functions, so a loop is never re-entered while it runs
+    private boolean inBounds; // every a[i] of the body is within bounds for the current run
+    private int checkedAt; // Interpreter.handOvers when inBounds was set
+    int counter; // current value of the loop variable while inBounds is set
+
+    private CountedLoop(AssignNode init, Node bound, TokenType comparison, int step, boolean doubles,
+            boolean bodyReadsCounter, List<VariableNode> indexedLists) {
+        this.name = Resolver.stripPrefix(init.name);
+        this.slot = init.slot;
+        this.globalSlot = init.globalSlot;
+        this.bound = bound;
+        this.comparison = comparison;
+        this.step = step;
+        this.doubles = doubles;
+        this.bodyReadsCounter = bodyReadsCounter;
+        this.indexedLists = indexedLists;
+    }
+
+    /**
+     * Recognizes a counted loop. Must run after the Resolver.
+     *
+     * @return null if the loop does not have the required shape.
+     */
+    static CountedLoop analyze(ForNode forNode) {
+        if (!(forNode.initialization instanceof AssignNode) || !(forNode.condition instanceof BinaryNode)) {
+            return null;
+        }
+        AssignNode init = (AssignNode) forNode.initialization;
+        if (init.op != TokenType.ASSIGN || init.encrypted) {
+            return null;
+        }
+        String name = Resolver.stripPrefix(init.name);
+
+        BinaryNode condition = (BinaryNode) forNode.condition;
+        TokenType comparison = condition.op;
+        if (comparison != TokenType.LT && comparison != TokenType.LT_EQ && comparison != TokenType.GT
+                && comparison != TokenType.GT_EQ) {
+            return null;
+        }
+        if (!isVariable(condition.left, name)) {
+            return null;
+        }
+        Node bound = condition.right;
+        boolean intLiteral = bound instanceof LiteralNode && ((LiteralNode) bound).value instanceof Integer;
+        boolean plainVariable = bound instanceof VariableNode && !((VariableNode) bound).encrypted;
+        if (!intLiteral && !plainVariable) {
+            return null;
+        }
+
+        Integer step = null;
+        boolean doubles = false;
+        Node increment = forNode.increment;
+        if (increment instanceof UnaryNode && isVariable(((UnaryNode) increment).expr, name)) {
+            UnaryNode un = (UnaryNode) increment;
+            if (un.op == TokenType.PLUS_PLUS || un.op == TokenType.MINUS_MINUS) {
+                step = un.op == TokenType.PLUS_PLUS ? 1 : -1;
+                doubles = true;
+            }
+        } else if (increment instanceof AssignNode && !((AssignNode) increment).encrypted
+                && Resolver.stripPrefix(((AssignNode) increment).name).equals(name)) {
+            AssignNode assign = (AssignNode) increment;
+            if (assign.op == TokenType.PLUS_EQ || assign.op == TokenType.MINUS_EQ) {
+                step = intLiteral(assign.value);
+                if (step != null && assign.op == TokenType.MINUS_EQ) {
+                    step = -step;
+                }
+            } else if (assign.op == TokenType.ASSIGN && assign.value instanceof BinaryNode) {
+                BinaryNode bin = (BinaryNode) assign.value;
+                if ((bin.op == TokenType.PLUS || bin.op == TokenType.MINUS) && isVariable(bin.left, name)) {
+                    step = intLiteral(bin.right);
+                    if (step != null && bin.op == TokenType.MINUS) {
+                        step = -step;
+                    }
+                }
+            }
+        }
+        // The counter has to move towards the bound
+        boolean up = comparison == TokenType.LT || comparison == TokenType.LT_EQ;
+        if (step == null || step == 0 || step == Integer.MIN_VALUE || (step > 0) != up) {
+            return null;
+        }
+
+        String boundName = plainVariable ? Resolver.stripPrefix(((VariableNode) bound).name) : null;
+        if (name.equals(boundName)) {
+            return null;
+        }
+        Scan scan = new Scan(name, boundName);
+        for (Node stmt : forNode.body) {
+            scan.visit(stmt);
+        }
+        if (!scan.ok) {
+            return null;
+        }
+        // Lists the body assigns to may change length, indexing them keeps its checks
+        List<IndexNode> unchecked = new ArrayList<>();
+        List<VariableNode> indexedLists = new ArrayList<>();
+        boolean readsCounter = scan.readsCounter;
+        for (IndexNode indexNode : scan.indexing) {
+            if (scan.written.contains(Resolver.stripPrefix(((VariableNode) indexNode.target).name))) {
+                readsCounter = true;
+            } else {
+                unchecked.add(indexNode);
+                indexedLists.add((VariableNode) indexNode.target);
+            }
+        }
+        CountedLoop loop = new CountedLoop(init, bound, comparison, step, doubles, readsCounter, indexedLists);
+        for (IndexNode indexNode : unchecked) {
+            indexNode.loop = loop;
+        }
+        return loop;
+    }
+
+    /**
+     * Runs the loop, once its initialization has been evaluated.
+     *
+     * @return false if the values at hand rule out a counted loop, e.g. a
+     *         bound that is not an Integer. Nothing has happened then and the
+     *         caller runs the generic loop.
+     */
+    boolean run(Interpreter in, ClosureCompiler.Stmt body) {
+        if (!in.onRunner()) {
+            return false; // inBounds and counter are the program's; an event's loop must not change them
+        }
+        Object startValue = in.peekVariable(slot, globalSlot);
+        Object limitValue = bound instanceof LiteralNode ? ((LiteralNode) bound).value
+                : in.peekVariable(((VariableNode) bound).slot, ((VariableNode) bound).globalSlot);
+        if (!(startValue instanceof Integer) || !(limitValue instanceof Integer) || !fits((Integer) limitValue)) {
+            return false;
+        }
+        int start = (Integer) startValue;
+        int limit = (Integer) limitValue;
+        boolean unchecked = indicesInBounds(in, start, limit);
+        // Without the unchecked path, a[i] reads the variable. Events can end the unchecked path at any
+        // step, and only events scheduled by now can run (the body schedules none)
+        boolean writeBack = bodyReadsCounter || ((!unchecked || in.eventsScheduled) && !indexedLists.isEmpty());
+
+        int i = start;
+        boolean incremented = false;
+        inBounds = unchecked;
+        checkedAt = in.handOvers;
+        try {
+            while (test(i, limit)) {
+                in.step();
+                if (inBounds && checkedAt != in.handOvers) {
+                    // Events had a turn and may have replaced or shrunk the lists
+                    inBounds = indicesInBounds(in, i, limit);
+                    checkedAt = in.handOvers;
+                }
+                if (writeBack && incremented) {
+                    in.writeVariable(slot, globalSlot, value(i));
+                }
+                counter = i;
+                body.exec();
+                if (in.returning) {
+                    return true;
+                }
+                i += step;
+                incremented = true;
+            }
+        } finally {
+            inBounds = false;
+            if (incremented) {
+                in.writeVariable(slot, globalSlot, value(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether {@code a[i]} in the body may skip its bounds check: the loop
+     * runs on this thread, and no event had a turn since the lists were
+     * checked, which may happen in the middle of the body.
+     */
+    boolean inBounds(Interpreter in) {
+        return inBounds && checkedAt == in.handOvers && in.onRunner();
+    }
+
+    /**
+     * Whether the counter stays within int range up to the bound, so int
+     * increments never saturate. Otherwise the generic loop has to run it.
+     */
+    boolean fits(int limit) {
+        long last = (long) limit + step;
+        return last >= Integer.MIN_VALUE && last <= Integer.MAX_VALUE;
+    }
+
+    boolean test(long counter, int limit) {
+        switch (comparison) {
+            case LT:
+                return counter < limit;
+            case LT_EQ:
+                return counter <= limit;
+            case GT:
+                return counter > limit;
+            default:
+                return counter >= limit;
+        }
+    }
+
+    /**
+     * The value the generic loop gives the variable, once it has been
+     * incremented at least once.
+     */
+    Object value(int counter) {
+        return doubles ? (Object) (double) counter : (Object) counter;
+    }
+
+    /**
+     * Checks whether every index the counter takes from {@code start} on is
+     * valid for every list indexed with it, given their current sizes.
+     */
+    boolean indicesInBounds(Interpreter in, int start, int limit) {
+        if (indexedLists.isEmpty() || !test(start, limit)) {
+            return false;
+        }
+        // Range of counter values the body runs with
+        long first = start;
+        long last = comparison == TokenType.LT ? limit - 1L
+                : comparison == TokenType.GT ? limit + 1L : limit;
+        long low = Math.min(first, last);
+        long high = Math.max(first, last);
+        if (low < 0) {
+            return false;
+        }
+        for (VariableNode var : indexedLists) {
+            List<?> list = OwnedList.peek(in.peekVariable(var.slot, var.globalSlot));
+            if (list == null || high >= list.size()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isVariable(Node node, String name) {
+        return node instanceof VariableNode && !((VariableNode) node).encrypted
+                && Resolver.stripPrefix(((VariableNode) node).name).equals(name);
+    }
+
+    private static Integer intLiteral(Node node) {
+        if (node instanceof LiteralNode && ((LiteralNode) node).value instanceof Integer) {
+            return (Integer) ((LiteralNode) node).value;
+        }
+        return null;
+    }
+
+    /**
+     * Walks a loop body: finds writes, reads of the counter and indexing with
+     * it, and rejects anything that could change variables behind the loop's
+     * back.
+     */
+    private static class Scan {
+        final String counter;
+        final String bound;
+        boolean ok = true;
+        boolean readsCounter;
+        final List<String> written = new ArrayList<>();
+        final List<IndexNode> indexing = new ArrayList<>();
+
+        Scan(String counter, String bound) {
+            this.counter = counter;
+            this.bound = bound;
+        }
+
+        void visit(Node node) {
+            if (node == null || !ok) {
+                return;
+            }
+            if (node instanceof FunctionCallNode || node instanceof ObjectMethodCallNode || node instanceof InputNode
+                    || node instanceof EventTriggerNode || node instanceof UseNode || node instanceof FunctionDefNode) {
+                ok = false;
+            } else if (node instanceof VariableNode) {
+                if (Resolver.stripPrefix(((VariableNode) node).name).equals(counter)) {
+                    readsCounter = true;
+                }
+            } else if (node instanceof AssignNode) {
+                write(((AssignNode) node).name);
+                visit(((AssignNode) node).value);
+            } else if (node instanceof UnaryNode) {
+                UnaryNode un = (UnaryNode) node;
+                if (un.op != TokenType.NOT && un.expr instanceof VariableNode) {
+                    write(((VariableNode) un.expr).name);
+                }
+                visit(un.expr);
+            } else if (node instanceof IndexNode) {
+                IndexNode indexNode = (IndexNode) node;
+                if (indexNode.target instanceof VariableNode && !((VariableNode) indexNode.target).encrypted
+                        && isVariable(indexNode.index, counter)) {
+                    indexing.add(indexNode);
+                    visit(indexNode.target);
+                } else {
+                    visit(indexNode.target);
+                    visit(indexNode.index);
+                }
+            } else if (node instanceof AssignIndexNode) {
+                visit(((AssignIndexNode) node).target);
+                visit(((AssignIndexNode) node).index);
+                visit(((AssignIndexNode) node).value);
+            } else if (node instanceof BinaryNode) {
+                visit(((BinaryNode) node).left);
+                visit(((BinaryNode) node).right);
+            } else if (node instanceof ArrayLiteralNode) {
+                visitAll(((ArrayLiteralNode) node).elements);
+            } else if (node instanceof MapLiteralNode) {
+                visitAll(((MapLiteralNode) node).keys);
+                visitAll(((MapLiteralNode) node).values);
+            } else if (node instanceof SetLiteralNode) {
+                visitAll(((SetLiteralNode) node).elements);
+            } else if (node instanceof PrintNode) {
+                visit(((PrintNode) node).expr);
+            } else if (node instanceof ExpressionStatement) {
+                visit(((ExpressionStatement) node).expr);
+            } else if (node instanceof ReturnNode) {
+                visit(((ReturnNode) node).value);
+            } else if (node instanceof IfNode) {
+                visit(((IfNode) node).condition);
+                visitAll(((IfNode) node).ifBranch);
+                visitAll(((IfNode) node).elseBranch);
+            } else if (node instanceof ForNode) {
+                visit(((ForNode) node).initialization);
+                visit(((ForNode) node).condition);
+                visit(((ForNode) node).increment);
+                visitAll(((ForNode) node).body);
+            } else if (node instanceof WhileNode) {
+                visit(((WhileNode) node).condition);
+                visitAll(((WhileNode) node).body);
+            }
+        }
+
+        private void visitAll(List<Node> nodes) {
+            if (nodes != null) {
+                for (Node node : nodes) {
+                    visit(node);
+                }
+            }
+        }
+
+        private void write(String name) {
+            name = Resolver.stripPrefix(name);
+            if (name.equals(counter) || name.equals(bound)) {
+                ok = false;
+            }
+            written.add(name);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.lang;
+
+/**
+ * Limits on what one run of a program may use, so that a runaway loop or
+ * recursion cannot hold a CPU or the heap of a server running many programs
+ * (see {@link Interpreter#setBudget}):
+ * <ul>
+ * <li>steps: statements executed plus loop iterations;</li>
+ * <li>time: wall-clock milliseconds from the start of the run;</li>
+ * <li>memory: bytes allocated for lists, maps, sets, strings and datasets,
+ * estimated from their sizes. This counts what the program allocates over
+ * the whole run, not what it holds at any one time.</li>
+ * </ul>
+ *
+ * The checks are cooperative: the tree engine counts steps down on a plain
+ * field and only looks at the step total and the clock every
+ * {@link #CHECK_INTERVAL} steps. A single step that blocks, such as reading
+ * input or a database query, is not interrupted. The VM counts loop
+ * iterations and calls instead of statements; the closure engine and
+ * JIT-compiled functions do not count steps, except in calls deep enough to
+ * run on the VM.
+ */
+public final class ExecutionBudget {
+    /**
+     * No limit on a resource.
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    public static final ExecutionBudget NONE = new ExecutionBudget(UNLIMITED, UNLIMITED, UNLIMITED);
+
+    /**
+     * Steps between two looks at the step total and the clock.
+     */
+    static final long CHECK_INTERVAL = 10_000;
+
+    // Estimated sizes for the memory budget
+    static final int OBJECT_BYTES = 16; // header of a list, map, set, string or row
+    static final int ELEMENT_BYTES = 8; // a list slot or dataset value
+    static final int ENTRY_BYTES = 32; // a map or set entry with its slot
+
+    /**
+     * The resource a run used up.
+     */
+    public enum Limit {
+        STEPS("Step"), TIME("Time"), MEMORY("Memory");
+
+        private final String label;
+
+        Limit(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Thrown where a run goes over its budget. It ends the run like any
+     * runtime error.
+     */
+    public static final class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final Limit limit;
+        private final long maximum;
+        private final long used;
+
+        Exceeded(Limit limit, long maximum, long used) {
+            super(limit.label + " limit exceeded: used " + used + " of " + maximum
+                    + (limit == Limit.STEPS ? " steps" : limit == Limit.TIME ? " ms" : " bytes"));
+            this.limit = limit;
+            this.maximum = maximum;
+            this.used = used;
+        }
+
+        public Limit getLimit() {
+            return limit;
+        }
+
+        public long getMaximum() {
+            return maximum;
+        }
+
+        public long getUsed() {
+            return used;
+        }
+    }
+
+    private final long maxSteps;
+    private final long maxMillis;
+    private final long maxBytes;
+
+    /**
+     * @param maxSteps  statements and loop iterations, or {@link #UNLIMITED}
+     * @param maxMillis wall-clock time, or {@link #UNLIMITED}
+     * @param maxBytes  estimated allocation, or {@link #UNLIMITED}
+     */
+    public ExecutionBudget(long maxSteps, long maxMillis, long maxBytes) {
+        if (maxSteps <= 0 || maxMillis <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Budget limits must be positive");
+        }
+        this.maxSteps = maxSteps;
+        this.maxMillis = maxMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
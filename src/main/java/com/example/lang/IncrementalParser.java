@@ -0,0 +1,261 @@
+package com.example.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parser for an editor that sends the whole program after every change. It
+ * keeps the top-level statements of the previous version with where each
+ * one starts, and only lexes and parses again from the statement before the
+ * edit up to the first statement after it that starts where it did before.
+ * The statements from there on are taken over, moved by the number of lines
+ * the edit added or removed.
+ *
+ * Unlike {@link Parser#parse()}, parsing goes on after an error: the parser
+ * skips to the next ';' or '}' and starts a new statement there, so every
+ * error in the program is reported.
+ *
+ * Statements that were taken over are the same node objects as before. The
+ * interpreter changes nodes as it runs them, so the result is for syntax
+ * feedback only. A program to run is taken from {@link #getProgram()} by
+ * {@link ScriptStore}, which hands every run a copy of its own.
+ */
+public final class IncrementalParser {
+    // One top-level statement of the current version
+    private static final class Statement {
+        int offset; // of its first token
+        int line;
+        final int column;
+        int end; // offset just past its last token
+        Node node; // null if it did not parse
+        List<ParseException> errors; // null if none
+
+        Statement(int offset, int line, int column) {
+            this.offset = offset;
+            this.line = line;
+            this.column = column;
+        }
+
+        void addError(ParseException error) {
+            if (errors == null) {
+                errors = new ArrayList<>(1);
+            }
+            errors.add(error);
+        }
+
+        void moveBy(int chars, int lines) {
+            offset += chars;
+            end += chars;
+            line += lines;
+            if (errors != null && lines != 0) {
+                errors.replaceAll(error -> error.movedBy(lines));
+            }
+        }
+    }
+
+    private char[] source = new char[0];
+    private List<Statement> statements = new ArrayList<>();
+    private int reparsed; // statements parsed by the last call
+
+    /**
+     * Parses a new version of the program and returns its top-level
+     * statements; those with errors are left out (see {@link #getErrors()}).
+     */
+    public synchronized List<Node> parse(String newSource) {
+        char[] oldText = source;
+        char[] newText = newSource.toCharArray(); // the lexer's buffer too
+        int oldLength = oldText.length;
+        int newLength = newText.length;
+
+        // The edit is what lies between the common prefix and the common suffix
+        int shorter = Math.min(oldLength, newLength);
+        int prefix = Arrays.mismatch(oldText, 0, shorter, newText, 0, shorter);
+        if (prefix < 0) {
+            prefix = shorter;
+        }
+        int suffix = 0;
+        while (suffix < shorter - prefix && oldText[oldLength - 1 - suffix] == newText[newLength - 1 - suffix]) {
+            suffix++;
+        }
+        int delta = newLength - oldLength;
+        int editEnd = newLength - suffix; // in the new source
+
+        // Statements ending before the edit stay. Lexing starts again at the last of them (or
+        // the start of the program), so that comments and whitespace after it are lexed again
+        int affected = 0;
+        while (affected < statements.size() && statements.get(affected).end < prefix) {
+            affected++;
+        }
+        int restart = Math.max(0, affected - 1);
+        List<Statement> result = new ArrayList<>(statements.subList(0, restart));
+        int offset = 0;
+        int line = 1;
+        int column = 1;
+        if (affected > 0) {
+            Statement from = statements.get(restart);
+            offset = from.offset;
+            line = from.line;
+            column = from.column;
+        }
+        int editEndLine = line;
+        for (int i = offset; i < editEnd; i++) {
+            if (newText[i] == '\n') {
+                editEndLine++;
+            }
+        }
+
+        Parser parser = new Parser(new Lexer(newText, offset, line, column));
+        reparsed = 0;
+        while (true) {
+            Statement statement = null;
+            try {
+                if (parser.atEnd()) {
+                    break;
+                }
+                // Past the edit, on a later line, a statement that starts where one did before
+                // is lexed and parsed as before, and so is everything after it
+                if (parser.nextOffset() >= editEnd && parser.nextLine() > editEndLine) {
+                    int old = find(parser.nextOffset() - delta, restart);
+                    if (old >= 0) {
+                        int lines = parser.nextLine() - statements.get(old).line;
+                        for (Statement kept : statements.subList(old, statements.size())) {
+                            kept.moveBy(delta, lines);
+                            result.add(kept);
+                        }
+                        break;
+                    }
+                }
+                statement = new Statement(parser.nextOffset(), parser.nextLine(), parser.nextColumn());
+                reparsed++;
+                statement.node = parser.parseStatement();
+            } catch (RuntimeException e) {
+                ParseException error = e instanceof ParseException ? (ParseException) e
+                        : new ParseException("Parse Error", statement != null ? statement.line : line,
+                                statement != null ? statement.column : column, e.getMessage());
+                if (statement == null) {
+                    // The lexer rejected a character between statements, and has skipped it. The
+                    // error goes with the statement before, which is parsed again whenever
+                    // this gap is lexed again
+                    if (result.isEmpty()) {
+                        result.add(new Statement(0, 1, 1)); // holds errors before any statement
+                    }
+                    result.get(result.size() - 1).addError(error);
+                    continue;
+                }
+                statement.addError(error);
+                parser.synchronize();
+            }
+            statement.end = parser.previousEnd();
+            result.add(statement);
+        }
+        source = newText;
+        statements = result;
+
+        List<Node> nodes = new ArrayList<>(statements.size());
+        for (Statement statement : statements) {
+            if (statement.node != null) {
+                nodes.add(statement.node);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * The errors in the last version parsed, in source order.
+     */
+    public synchronized List<String> getErrors() {
+        List<String> errors = new ArrayList<>();
+        for (Statement statement : statements) {
+            if (statement.errors != null) {
+                for (ParseException error : statement.errors) {
+                    errors.add(error.getMessage());
+                }
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * The last version parsed as {@link Parser#parse()} gives it, to be run:
+     * the statements before the first syntax error, which
+     * {@link #getProgramError()} returns.
+     *
+     * @throws ParseException the first lexer error, wherever it is: a program
+     *         the lexer cannot read is not run at all
+     */
+    public synchronized List<Node> getProgram() {
+        for (Statement statement : statements) {
+            if (statement.errors != null) {
+                for (ParseException error : statement.errors) {
+                    if (error.stage.equals("Lexer Error")) {
+                        throw error;
+                    }
+                }
+            }
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (Statement statement : statements) {
+            if (statement.node != null) {
+                nodes.add(statement.node);
+            }
+            if (statement.errors != null) {
+                break;
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * The message of the syntax error {@link #getProgram()} stops at, as
+     * {@link Parser#parse()} reports it, or null.
+     */
+    public synchronized String getProgramError() {
+        for (Statement statement : statements) {
+            if (statement.errors != null) {
+                return statement.errors.get(0).getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The statements of the last version parsed, one per line, as
+     * {@link Parser#getParseResultAsString()} shows them.
+     */
+    public synchronized String getParseResultAsString() {
+        StringBuilder sb = new StringBuilder();
+        for (Statement statement : statements) {
+            if (statement.node != null) {
+                sb.append(statement.node.toString()).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * How many top-level statements the last call parsed, as opposed to took
+     * over from the version before.
+     */
+    public synchronized int getReparsedCount() {
+        return reparsed;
+    }
+
+    // Index of the statement at or after index from that starts at offset, or -1
+    private int find(int offset, int from) {
+        int low = from;
+        int high = statements.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int start = statements.get(mid).offset;
+            if (start < offset) {
+                low = mid + 1;
+            } else if (start > offset) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
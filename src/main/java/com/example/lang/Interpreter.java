@@ -1,9 +1,10 @@
 package com.example.lang;
 
 import java.util.*;
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.spec.IvParameterSpec;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -36,51 +37,290 @@ import org.jfree.data.xy.XYSeriesCollection;
 import java.io.File;
 import java.io.IOException;
 
+import com.example.lang.vm.Sealed;
+import com.example.lang.vm.VirtualMachine;
+
+// Only used for a return outside of any function; returns inside functions set Interpreter.returning
 class ReturnException extends RuntimeException {
     public final Object value;
 
     public ReturnException(Object value) {
+        super(null, null, false, false);
         this.value = value;
     }
 }
 
-class Variable {
-    Object value;
-    boolean isEncrypted;
+// Value stored in a variable slot for @ENC variables: AES over the ValueCodec form
+class EncryptedValue extends Sealed {
+    final byte[] ciphertext;
 
-    Variable(Object value, boolean isEncrypted) {
-        this.value = value;
-        this.isEncrypted = isEncrypted;
+    EncryptedValue(byte[] ciphertext) {
+        this.ciphertext = ciphertext;
+    }
+
+    // How the value shows when printed
+    @Override
+    public String toString() {
+        return Base64.getEncoder().encodeToString(ciphertext);
     }
 }
 
-public class Interpreter {
-    private final Map<String, FunctionDefNode> functions = new HashMap<>();
-    private final Deque<Map<String, Variable>> callStack = new ArrayDeque<>();
-    private final Scanner scanner = new Scanner(System.in);
+public final class Interpreter {
+    /**
+     * How {@link #execute(List)} runs a program. All engines share variables,
+     * functions and libraries, so they produce the same output.
+     */
+    public enum Engine {
+        TREE, // walk the AST directly
+        CLOSURE, // compile each node into a tree of Java closures
+        VM // compile to bytecode and run it on the stack VM
+    }
 
-    private static final String ENCRYPTION_KEY = "0123456789abcdef";
-    private static final String INIT_VECTOR = "abcdef9876543210";
+    // Marks a slot that has never been assigned, so that null stays a valid value
+    static final Object UNDEFINED = new Object();
+    private static final Object[] NO_LOCALS = new Object[0];
+
+    private static final AtomicInteger FUNCTION_VERSIONS = new AtomicInteger();
+    private static final int MAX_POOLED_FRAMES = 64;
+
+    // Deep recursion: calls nest on the Java stack up to this depth, whose room is unknown (a virtual
+    // thread's or a server thread's). Deeper calls run on a VirtualMachine, which keeps the frames of the
+    // calls it makes on the heap, so depth is bounded by the heap and MAX_CALL_DEPTH instead
+    static final int STACK_CALLS = 200;
+    private static final int MAX_CALL_DEPTH = 1_000_000;
+    // Estimated heap a call on the VM's frame stack holds besides its frame: the three caller entries
+    private static final int HEAP_CALL_BYTES = 3 * ExecutionBudget.ELEMENT_BYTES;
+
+    private FunctionDefNode[] functions = new FunctionDefNode[0]; // by symbol of the name
+    // Changes whenever a function is (re)defined, so linked call sites know to look up again
+    private int functionsVersion = FUNCTION_VERSIONS.incrementAndGet();
+    private final Resolver resolver = new Resolver();
+    private final Optimizer optimizer = new Optimizer(this);
+    Object[] globals = new Object[0];
+    Object[] frame = NO_LOCALS; // locals of the function currently executing
+    int callDepth;
+    // Set by a return statement and checked after every statement until the call picks up the value
+    boolean returning;
+    Object returnValue;
+    // Set together with returning by "return f(...)": the call the current invocation is replaced by
+    FunctionDefNode tailCallee;
+    Object[] tailFrame;
+    private VmHost vmHost;
+    private VirtualMachine heapCalls; // idle VM for callOnHeap, null while in use
+    private int heapDepth; // most calls active on the VM so far, charged to the memory budget
+    private Console console = Console.of(System.out, System.in); // see setConsole
+    // Steps the run may take before the budget is looked at again, see step()
+    long fuel = Long.MAX_VALUE;
+    private long bytesLeft = Long.MAX_VALUE; // of the memory budget, see allocate()
+    private ExecutionBudget budget = ExecutionBudget.NONE;
+    private long stepsGranted; // fuel handed out so far
+    private long started; // System.nanoTime() when the budget was set
+    private volatile ExecutionBudget.Exceeded exceeded; // the first limit the run went over
+    // Timers of @EVENT_TRIGGER statements; guarded by eventLock, not a monitor, so
+    // that a virtual thread waiting in awaitEvents does not hold on to its carrier
+    private final ReentrantLock eventLock = new ReentrantLock();
+    private final Condition eventsOver = eventLock.newCondition();
+    private final List<Timer> timers = new ArrayList<>();
+    private int pendingEvents; // triggers that have runs left
+    private boolean eventsCancelled; // by cancelEvents; no event is scheduled after
+    private final Engine engine;
+    private VirtualMachine vm;
+    JitCompiler jit; // null unless enableJit() was called
+    private Memoizer memo = new Memoizer(this, false, Memoizer.DEFAULT_CAPACITY); // @MEMO functions only
+    // Held by the program or one of its scheduled events, whichever is running: they share the state above
+    // and the pools and caches on the nodes, so they take turns. The program hands over at its budget checks
+    // (see refuel) and while it waits for input. Fair, so that handing over lets the waiting events in first
+    private final ReentrantLock runLock = new ReentrantLock(true);
+    boolean eventsScheduled; // by this program; its budget checks run even if it has no budget then
+    // How often the program has given up the turn; events may have changed any variable meanwhile
+    int handOvers;
+    // The thread running execute(). A counted loop keeps its counter on the node, so only this thread runs
+    // loops counted: an event may get its turn in the middle of one
+    private Thread runner;
+    private final VariableCipher ciphers = new VariableCipher(); // @ENC variables
 
     public Interpreter() {
-        callStack.push(new HashMap<>());
+        this(Engine.TREE);
+    }
+
+    public Interpreter(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Compiles user functions to JVM bytecode once they have been called
+     * {@code threshold} times. Applies to the tree and closure engines.
+     */
+    public void enableJit(int threshold) {
+        jit = new JitCompiler(this, threshold);
+    }
+
+    /**
+     * Caches the results of every pure function, not just those marked
+     * {@code @MEMO}, keeping up to {@code capacity} results per function.
+     */
+    public void enableMemoization(int capacity) {
+        memo = new Memoizer(this, true, capacity);
+    }
+
+    /**
+     * Sends everything the script prints to {@code console} instead of
+     * System.out, and reads its input from there instead of System.in:
+     * print statements, input prompts, library messages and the errors of
+     * scheduled events. Set it before {@link #execute}, so that several
+     * interpreters can run in one process without their output mixing.
+     */
+    public void setConsole(Console console) {
+        this.console = console;
+    }
+
+    /**
+     * Limits the steps, time and memory of the run; the clock starts now.
+     * Going over a limit throws {@link ExecutionBudget.Exceeded} where the
+     * program is, which ends it like a runtime error.
+     */
+    public void setBudget(ExecutionBudget budget) {
+        this.budget = budget;
+        started = System.nanoTime();
+        stepsGranted = 0;
+        fuel = 0; // the first step gets the first grant
+        bytesLeft = budget.getMaxBytes();
+        heapDepth = 0;
+    }
+
+    /**
+     * The limit the run went over, also in a scheduled event, or null.
+     */
+    public ExecutionBudget.Exceeded getBudgetExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * Counts a step of the program: a statement or a loop iteration. Only a
+     * decrement and a branch until the fuel runs out.
+     */
+    void step() {
+        if (--fuel < 0) {
+            refuel();
+        }
+    }
+
+    // Checks the step total and the clock, and hands out the next steps; lets waiting events run first
+    private void refuel() {
+        if (runLock.hasQueuedThreads() && runLock.isHeldByCurrentThread()) {
+            resumeRun(releaseRun());
+        }
+        long maxSteps = budget.getMaxSteps();
+        if (maxSteps == ExecutionBudget.UNLIMITED && budget.getMaxMillis() == ExecutionBudget.UNLIMITED) {
+            fuel = eventsScheduled ? ExecutionBudget.CHECK_INTERVAL : Long.MAX_VALUE;
+            return;
+        }
+        if (stepsGranted >= maxSteps) {
+            throw exceed(ExecutionBudget.Limit.STEPS, maxSteps, stepsGranted);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        if (elapsed > budget.getMaxMillis()) {
+            throw exceed(ExecutionBudget.Limit.TIME, budget.getMaxMillis(), elapsed);
+        }
+        long grant = Math.min(ExecutionBudget.CHECK_INTERVAL, maxSteps - stepsGranted);
+        stepsGranted += grant;
+        fuel = grant - 1; // this step
+    }
+
+    /**
+     * Charges an allocation of about {@code bytes} to the memory budget.
+     */
+    void allocate(long bytes) {
+        if ((bytesLeft -= bytes) < 0) {
+            long maxBytes = budget.getMaxBytes();
+            throw exceed(ExecutionBudget.Limit.MEMORY, maxBytes, maxBytes - bytesLeft);
+        }
+    }
+
+    // Gives up the turn, however often this thread took it; returns how often
+    private int releaseRun() {
+        int holds = runLock.getHoldCount();
+        handOvers++;
+        for (int i = 0; i < holds; i++) {
+            runLock.unlock();
+        }
+        return holds;
+    }
+
+    private void resumeRun(int holds) {
+        for (int i = 0; i < holds; i++) {
+            runLock.lock();
+        }
+    }
+
+    private ExecutionBudget.Exceeded exceed(ExecutionBudget.Limit limit, long maximum, long used) {
+        ExecutionBudget.Exceeded e = new ExecutionBudget.Exceeded(limit, maximum, used);
+        if (exceeded == null) {
+            exceeded = e;
+        }
+        fuel = 0; // every later step looks again, and fails again
+        return e;
+    }
+
+    /**
+     * Hit and miss counts of the function result caches, one line per function.
+     */
+    public String getMemoStatistics() {
+        return memo.statistics();
+    }
+
+    Memoizer.Table memoTable(FunctionDefNode func, Object[] locals) {
+        return memo.table(func, locals);
+    }
+
+    /**
+     * Whether this is the thread running the program rather than one of its
+     * scheduled events.
+     */
+    boolean onRunner() {
+        return Thread.currentThread() == runner;
     }
 
     public void execute(List<Node> nodes) {
+        runLock.lock();
+        runner = Thread.currentThread();
         try {
-            for (Node node : nodes) {
-                executeNode(node);
+            executeProgram(nodes);
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    private void executeProgram(List<Node> nodes) {
+        nodes = optimizer.optimize(nodes);
+        resolver.resolve(nodes);
+        ensureGlobals();
+        try {
+            if (engine == Engine.VM) {
+                if (vm == null) {
+                    vm = new VirtualMachine(vmHost());
+                }
+                vm.run(new BytecodeCompiler().compile(nodes));
+            } else if (engine == Engine.CLOSURE) {
+                new ClosureCompiler(this).compileBlock(nodes).exec();
+            } else {
+                for (Node node : nodes) {
+                    executeNode(node);
+                }
             }
         } catch (ReturnException re) {
-            System.err.println("Return statement outside of function.");
+            console.println("Return statement outside of function.");
             throw re;
+        } finally {
+            ciphers.clear();
         }
     }
 
-    private void executeNode(Node node) {
+    void executeNode(Node node) {
+        step();
         if (node instanceof PrintNode) {
             Object val = evaluateForPrint(((PrintNode) node).expr);
-            System.out.println(val);
+            print(val);
         } else if (node instanceof IfNode) {
             IfNode ifNode = (IfNode) node;
             Object condition = evaluate(ifNode.condition);
@@ -92,14 +332,29 @@ public class Interpreter {
         } else if (node instanceof ForNode) {
             ForNode forNode = (ForNode) node;
             evaluate(forNode.initialization);
+            if (!forNode.analyzed) {
+                forNode.counted = CountedLoop.analyze(forNode);
+                forNode.analyzed = true;
+            }
+            if (forNode.counted != null && forNode.counted.run(this, () -> executeBlock(forNode.body))) {
+                return;
+            }
             while (isTrue(evaluate(forNode.condition))) {
+                step();
                 executeBlock(forNode.body);
+                if (returning) {
+                    return;
+                }
                 evaluate(forNode.increment);
             }
         } else if (node instanceof WhileNode) {
             WhileNode whileNode = (WhileNode) node;
             while (isTrue(evaluate(whileNode.condition))) {
+                step();
                 executeBlock(whileNode.body);
+                if (returning) {
+                    return;
+                }
             }
         } else if (node instanceof InputNode) {
             InputNode inputNode = (InputNode) node;
@@ -108,35 +363,52 @@ public class Interpreter {
                 throw new RuntimeException("Input prompt must be a string.");
             }
             String prompt = (String) promptObj;
-            System.out.print(prompt + " ");
-            String userInput = scanner.nextLine();
+            String userInput;
+            int holds = releaseRun(); // events run while the program waits
+            try {
+                userInput = console.readLine(prompt + " ");
+            } finally {
+                resumeRun(holds);
+            }
+            if (userInput == null) {
+                throw new RuntimeException("No input left for: " + prompt);
+            }
 
             if (!(inputNode.variable instanceof VariableNode)) {
                 throw new RuntimeException("Input must be assigned to a variable.");
             }
-            String varName = ((VariableNode) inputNode.variable).name;
-            boolean isEncrypted = false;
-            String actualVarName = varName;
-            if (varName.startsWith("@ENC")) {
-                isEncrypted = true;
-                actualVarName = varName.substring(4);
-            }
+            VariableNode var = (VariableNode) inputNode.variable;
             Object value = parseInputValue(userInput);
-            if (isEncrypted) {
-                String encryptedValue = encrypt(String.valueOf(value));
-                setVariable(actualVarName, encryptedValue, true);
+            if (var.encrypted) {
+                writeVariable(var.slot, var.globalSlot, ciphers.seal(value));
             } else {
-                setVariable(actualVarName, value, false);
+                writeVariable(var.slot, var.globalSlot, value);
             }
         } else if (node instanceof ExpressionStatement) {
-            evaluate(((ExpressionStatement) node).expr);
+            Node expr = ((ExpressionStatement) node).expr;
+            if (!(expr instanceof AssignNode && appendInPlace((AssignNode) expr))) {
+                evaluate(expr);
+            }
         } else if (node instanceof FunctionDefNode) {
-            FunctionDefNode func = (FunctionDefNode) node;
-            functions.put(func.name, func);
+            defineFunction((FunctionDefNode) node);
         } else if (node instanceof ReturnNode) {
             ReturnNode ret = (ReturnNode) node;
+            if (callDepth > 0 && ret.value instanceof FunctionCallNode) {
+                FunctionCallNode call = (FunctionCallNode) ret.value;
+                FunctionDefNode func = linkFunction(call);
+                Object[] locals = newFrame(func);
+                for (int i = 0; i < call.arguments.size(); i++) {
+                    locals[i] = evaluate(call.arguments.get(i));
+                }
+                tailCall(func, locals);
+                return;
+            }
             Object value = ret.value != null ? evaluate(ret.value) : null;
-            throw new ReturnException(value);
+            if (callDepth == 0) {
+                throw new ReturnException(value);
+            }
+            returnValue = value;
+            returning = true;
         } else if (node instanceof EventTriggerNode) {
             EventTriggerNode etn = (EventTriggerNode) node;
             Object timeVal = evaluate(etn.timeExpr);
@@ -156,6 +428,9 @@ public class Interpreter {
     private void executeBlock(List<Node> statements) {
         for (Node stmt : statements) {
             executeNode(stmt);
+            if (returning) {
+                return;
+            }
         }
     }
 
@@ -167,17 +442,17 @@ public class Interpreter {
             if (userInput.contains(".")) {
                 return Double.parseDouble(userInput);
             } else {
-                return Integer.parseInt(userInput);
+                return Numbers.parseInteger(userInput);
             }
         } catch (NumberFormatException e) {
             userInput = userInput.trim();
             if (userInput.startsWith("[") && userInput.endsWith("]")) {
                 String elementsStr = userInput.substring(1, userInput.length() - 1).trim();
                 if (elementsStr.isEmpty()) {
-                    return new ArrayList<Object>();
+                    return new ArrayValue();
                 } else {
                     String[] elements = elementsStr.split(",");
-                    List<Object> list = new ArrayList<>();
+                    List<Object> list = new ArrayValue(elements.length);
                     for (String elem : elements) {
                         elem = elem.trim();
                         if (elem.equalsIgnoreCase("true") || elem.equalsIgnoreCase("false")) {
@@ -187,7 +462,7 @@ public class Interpreter {
                                 if (elem.contains(".")) {
                                     list.add(Double.parseDouble(elem));
                                 } else {
-                                    list.add(Integer.parseInt(elem));
+                                    list.add(Numbers.parseInteger(elem));
                                 }
                             } catch (NumberFormatException ex) {
                                 list.add(elem.replaceAll("^\"|\"$", ""));
@@ -206,7 +481,7 @@ public class Interpreter {
         }
     }
 
-    private TokenType operatorFromCompound(TokenType type) {
+    static TokenType operatorFromCompound(TokenType type) {
         switch (type) {
             case PLUS_EQ:
                 return TokenType.PLUS;
@@ -224,226 +499,112 @@ public class Interpreter {
     private Object evaluate(Node node) {
         return evaluate(node, true);
     }
-    
-    @SuppressWarnings("unchecked")
-    private Object evaluate(Node node, boolean decrypt) {
+
+    Object evaluate(Node node, boolean decrypt) {
         if (node instanceof LiteralNode) {
             return ((LiteralNode) node).value;
         } else if (node instanceof ArrayLiteralNode) {
-            List<Object> list = new ArrayList<>();
+            allocateList(((ArrayLiteralNode) node).elements.size());
+            List<Object> list = new ArrayValue(((ArrayLiteralNode) node).elements.size());
             for (Node elem : ((ArrayLiteralNode) node).elements) {
                 list.add(evaluate(elem, decrypt));
             }
             return list;
+        } else if (node instanceof MapLiteralNode) {
+            MapLiteralNode mapNode = (MapLiteralNode) node;
+            allocateTable(mapNode.keys.size());
+            Map<Object, Object> map = new MapValue(mapNode.keys.size());
+            for (int i = 0; i < mapNode.keys.size(); i++) {
+                Object key = evaluate(mapNode.keys.get(i), decrypt);
+                map.put(key, evaluate(mapNode.values.get(i), decrypt));
+            }
+            return map;
+        } else if (node instanceof SetLiteralNode) {
+            allocateTable(((SetLiteralNode) node).elements.size());
+            Set<Object> set = new SetValue(((SetLiteralNode) node).elements.size());
+            for (Node elem : ((SetLiteralNode) node).elements) {
+                set.add(evaluate(elem, decrypt));
+            }
+            return set;
         } else if (node instanceof VariableNode) {
-            String varName = ((VariableNode) node).name;
-            boolean isEncrypted = false;
-            String actualVarName = varName;
-            if (varName.startsWith("@ENC")) {
-                isEncrypted = true;
-                actualVarName = varName.substring(4);
-            }
-            Optional<Variable> varOpt = getVariable(actualVarName);
-            if (!varOpt.isPresent()) {
-                throw new RuntimeException("Undefined variable: " + varName);
-            }
-            Variable var = varOpt.get();
-            if (var.isEncrypted && decrypt) {
-                String decryptedValue = decrypt(var.value.toString());
-                return parseValue(decryptedValue);
-            } else {
-                return var.value;
+            VariableNode var = (VariableNode) node;
+            Object value = readVariable(var.name, var.slot, var.globalSlot);
+            if (value instanceof Sealed) {
+                return unseal((Sealed) value, decrypt);
             }
+            return value;
         } else if (node instanceof AssignNode) {
             AssignNode assign = (AssignNode) node;
-            String varName = assign.name;
-            boolean isEncrypted = false;
-            String actualVarName = varName;
-            if (varName.startsWith("@ENC")) {
-                isEncrypted = true;
-                actualVarName = varName.substring(4);
-            }
-            Object rightVal = evaluate(assign.value, decrypt);
-            if (assign.op == TokenType.ASSIGN) {
-                if (isEncrypted) {
-                    String encryptedValue = encrypt(String.valueOf(rightVal));
-                    setVariable(actualVarName, encryptedValue, true);
-                    return encryptedValue;
-                } else {
-                    setVariable(actualVarName, rightVal, false);
-                    return rightVal;
-                }
-            } else {
-                Optional<Variable> varOpt = getVariable(actualVarName);
-                if (!varOpt.isPresent()) {
-                    throw new RuntimeException("Undefined variable: " + varName);
-                }
-                Variable var = varOpt.get();
-                Object leftVal;
-                if (var.isEncrypted) {
-                    leftVal = parseValue(decrypt(var.value.toString()));
-                } else {
-                    leftVal = var.value;
-                }
-                Object newVal = applyOp(leftVal, rightVal, operatorFromCompound(assign.op));
-                if (isEncrypted) {
-                    String encryptedNewVal = encrypt(String.valueOf(newVal));
-                    setVariable(actualVarName, encryptedNewVal, true);
-                    return encryptedNewVal;
-                } else {
-                    setVariable(actualVarName, newVal, false);
-                    return newVal;
-                }
+            Object newVal = evaluate(assign.value, decrypt);
+            if (assign.op != TokenType.ASSIGN) {
+                Object leftVal = plainValue(readVariable(assign.name, assign.slot, assign.globalSlot));
+                newVal = applyOp(leftVal, newVal, operatorFromCompound(assign.op));
+            }
+            if (assign.encrypted) {
+                EncryptedValue sealed = ciphers.seal(newVal);
+                writeVariable(assign.slot, assign.globalSlot, sealed);
+                return sealed.toString();
             }
+            writeVariable(assign.slot, assign.globalSlot, newVal);
+            return newVal;
         } else if (node instanceof AssignIndexNode) {
             AssignIndexNode assignIndex = (AssignIndexNode) node;
-            Object target = evaluate(assignIndex.target, decrypt);
+            Object target = evaluateTarget(assignIndex.target, decrypt);
             Object indexObj = evaluate(assignIndex.index, decrypt);
-
-            // Ensure the target is a list
-            if (!(target instanceof List<?>)) {
-                throw new RuntimeException("Target of indexing is not a list.");
-            }
-            List<Object> list = (List<Object>) target;
-
-            // Convert index to integer
-            int index = toInteger(indexObj);
-            if (index < 0 || index >= list.size()) {
-                throw new RuntimeException("Index out of bounds: " + index);
-            }
+            checkIndex(target, indexObj);
 
             // Evaluate the value to assign
             Object value = evaluate(assignIndex.value, decrypt);
-
-            // Handle compound assignment operators
-            if (assignIndex.op != TokenType.ASSIGN) {
-                Object currentVal = list.get(index);
-                Object newVal = applyOp(currentVal, value, operatorFromCompound(assignIndex.op));
-                list.set(index, newVal);
-                return newVal;
-            } else {
-                list.set(index, value);
-                return value;
+            if (target instanceof Map) {
+                int size = ((Map<?, ?>) target).size();
+                Object result = storeIndex(target, indexObj, assignIndex.op, value);
+                if (((Map<?, ?>) target).size() > size) {
+                    allocateTable(1);
+                }
+                return result;
             }
+            return storeIndex(target, indexObj, assignIndex.op, value);
         } else if (node instanceof IndexNode) {
             IndexNode indexNode = (IndexNode) node;
-            Object target = evaluate(indexNode.target, decrypt);
-            Object indexObj = evaluate(indexNode.index, decrypt);
-
-            // Ensure the target is a list
-            if (!(target instanceof List<?>)) {
-                throw new RuntimeException("Target of indexing is not a list.");
-            }
-            List<Object> list = (List<Object>) target; // Unchecked cast
-
-            // Convert index to integer
-            int index = toInteger(indexObj);
-            if (index < 0 || index >= list.size()) {
-                throw new RuntimeException("Index out of bounds: " + index);
+            Object target = evaluateTarget(indexNode.target, decrypt);
+            if (indexNode.loop != null && indexNode.loop.inBounds(this)) {
+                // Checked once for the whole loop
+                return ((List<?>) target).get(indexNode.loop.counter);
             }
-
-            return list.get(index);
+            Object indexObj = evaluate(indexNode.index, decrypt);
+            return index(target, indexObj);
         } else if (node instanceof BinaryNode) {
             Object left = evaluate(((BinaryNode) node).left, decrypt);
             Object right = evaluate(((BinaryNode) node).right, decrypt);
-            return applyOp(left, right, ((BinaryNode) node).op);
+            return applyBinary((BinaryNode) node, left, right);
         } else if (node instanceof UnaryNode) {
             UnaryNode un = (UnaryNode) node;
-            if (un.postfix) {
+            if (un.postfix || un.op == TokenType.PLUS_PLUS || un.op == TokenType.MINUS_MINUS) {
                 if (!(un.expr instanceof VariableNode)) {
-                    throw new RuntimeException("Postfix operator requires a variable.");
-                }
-                String varName = ((VariableNode) un.expr).name;
-                boolean isEncrypted = false;
-                String actualVarName = varName;
-                if (varName.startsWith("@ENC")) {
-                    isEncrypted = true;
-                    actualVarName = varName.substring(4);
+                    throw new RuntimeException((un.postfix ? "Postfix" : "Prefix") + " operator requires a variable.");
                 }
-                Optional<Variable> varOpt = getVariable(actualVarName);
-                if (!varOpt.isPresent()) {
-                    throw new RuntimeException("Undefined variable: " + varName);
-                }
-                Variable var = varOpt.get();
-                Object val;
-                if (var.isEncrypted) {
-                    val = parseValue(decrypt(var.value.toString()));
-                } else {
-                    val = var.value;
-                }
-                Object retVal = val;
-                Object newVal = applyUnary(val, un.op);
-                if (isEncrypted) {
-                    String encryptedNewVal = encrypt(String.valueOf(newVal));
-                    setVariable(actualVarName, encryptedNewVal, true);
-                } else {
-                    setVariable(actualVarName, newVal, false);
-                }
-                return retVal;
-            } else {
-                if (un.op == TokenType.PLUS_PLUS || un.op == TokenType.MINUS_MINUS) {
-                    if (!(un.expr instanceof VariableNode)) {
-                        throw new RuntimeException("Prefix operator requires a variable.");
-                    }
-                    String varName = ((VariableNode) un.expr).name;
-                    boolean isEncrypted = false;
-                    String actualVarName = varName;
-                    if (varName.startsWith("@ENC")) {
-                        isEncrypted = true;
-                        actualVarName = varName.substring(4);
-                    }
-                    Optional<Variable> varOpt = getVariable(actualVarName);
-                    if (!varOpt.isPresent()) {
-                        throw new RuntimeException("Undefined variable: " + varName);
-                    }
-                    Variable var = varOpt.get();
-                    Object val;
-                    if (var.isEncrypted) {
-                        val = parseValue(decrypt(var.value.toString()));
-                    } else {
-                        val = var.value;
-                    }
-                    Object newVal = applyUnary(val, un.op);
-                    if (isEncrypted) {
-                        String encryptedNewVal = encrypt(String.valueOf(newVal));
-                        setVariable(actualVarName, encryptedNewVal, true);
-                        return parseValue(decrypt(encryptedNewVal));
-                    } else {
-                        setVariable(actualVarName, newVal, false);
-                        return newVal;
-                    }
-                } else if (un.op == TokenType.NOT) {
-                    Object val = evaluate(un.expr, decrypt);
-                    return !isTrue(val);
+                VariableNode var = (VariableNode) un.expr;
+                Object val = plainValue(readVariable(var.name, var.slot, var.globalSlot));
+                Object newVal = applyUnary(un, val);
+                if (var.encrypted) {
+                    EncryptedValue sealed = ciphers.seal(newVal);
+                    writeVariable(var.slot, var.globalSlot, sealed);
+                    return un.postfix ? val : ciphers.read(sealed);
                 }
+                writeVariable(var.slot, var.globalSlot, newVal);
+                return un.postfix ? val : newVal;
+            } else if (un.op == TokenType.NOT) {
+                Object val = evaluate(un.expr, decrypt);
+                return !isTrue(val);
             }
         } else if (node instanceof FunctionCallNode) {
             FunctionCallNode call = (FunctionCallNode) node;
-            FunctionDefNode func = functions.get(call.name);
-            if (func == null) {
-                throw new RuntimeException("Undefined function: " + call.name);
-            }
-            if (call.arguments.size() != func.parameters.size()) {
-                throw new RuntimeException("Function " + call.name + " expects " + func.parameters.size()
-                        + " arguments but got " + call.arguments.size());
-            }
-            List<Object> argValues = new ArrayList<>();
-            for (Node arg : call.arguments) {
-                argValues.add(evaluate(arg, decrypt));
-            }
-            Map<String, Variable> localScope = new HashMap<>();
-            for (int i = 0; i < func.parameters.size(); i++) {
-                localScope.put(func.parameters.get(i), new Variable(argValues.get(i), false));
-            }
-            callStack.push(localScope);
-            try {
-                executeBlock(func.body);
-            } catch (ReturnException re) {
-                callStack.pop();
-                return re.value;
+            FunctionDefNode func = linkFunction(call);
+            Object[] locals = newFrame(func);
+            for (int i = 0; i < call.arguments.size(); i++) {
+                locals[i] = evaluate(call.arguments.get(i), decrypt);
             }
-            callStack.pop();
-            return null;
+            return invoke(func, locals);
         } else if (node instanceof ReturnNode) {
             ReturnNode ret = (ReturnNode) node;
             Object value = ret.value != null ? evaluate(ret.value, decrypt) : null;
@@ -461,6 +622,76 @@ public class Interpreter {
         throw new RuntimeException("Unknown node type: " + node.getClass().getName());
     }
 
+    /**
+     * Validates that {@code target} is a list and {@code indexObj} a valid
+     * position in it, or that {@code target} is a map and {@code indexObj}
+     * can be a key. Missing keys are reported when the map is read.
+     *
+     * @return The index as an int, or -1 for a map.
+     */
+    int checkIndex(Object target, Object indexObj) {
+        if (target instanceof MapValue) {
+            MapValue.key(indexObj); // any key but a list, map or set
+            return -1;
+        }
+        // Ensure the target is a list
+        if (!(target instanceof List<?>)) {
+            throw new RuntimeException("Target of indexing is not a list or map.");
+        }
+        int index = toInteger(indexObj);
+        if (index < 0 || index >= ((List<?>) target).size()) {
+            throw new RuntimeException("Index out of bounds: " + index);
+        }
+        return index;
+    }
+
+    /**
+     * Evaluates the list operand of indexing. A variable holding an
+     * {@link OwnedList} stays owned, as indexing does not keep the list.
+     */
+    private Object evaluateTarget(Node target, boolean decrypt) {
+        if (target instanceof VariableNode) {
+            VariableNode var = (VariableNode) target;
+            Object value = readVariable(var.name, var.slot, var.globalSlot);
+            if (value instanceof OwnedList) {
+                return ((OwnedList) value).list;
+            }
+            return value instanceof Sealed ? unseal((Sealed) value, decrypt) : value;
+        }
+        return evaluate(target, decrypt);
+    }
+
+    Object index(Object target, Object indexObj) {
+        if (target instanceof MapValue) {
+            return ((MapValue) target).lookup(indexObj);
+        }
+        int index = checkIndex(target, indexObj);
+        return ((List<?>) target).get(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    Object storeIndex(Object target, Object indexObj, TokenType op, Object value) {
+        if (target instanceof MapValue) {
+            MapValue map = (MapValue) target;
+            if (op != TokenType.ASSIGN) {
+                value = applyOp(map.lookup(indexObj), value, operatorFromCompound(op));
+            }
+            map.put(indexObj, value);
+            return value;
+        }
+        List<Object> list = (List<Object>) target;
+        int index = checkIndex(target, indexObj);
+
+        // Handle compound assignment operators
+        if (op != TokenType.ASSIGN) {
+            Object newVal = applyOp(list.get(index), value, operatorFromCompound(op));
+            list.set(index, newVal);
+            return newVal;
+        }
+        list.set(index, value);
+        return value;
+    }
+
     /**
      * Converts an Object to an integer. Supports Integer, Double, and String
      * representations.
@@ -473,6 +704,12 @@ public class Interpreter {
             return (Integer) obj;
         } else if (obj instanceof Double) {
             return ((Double) obj).intValue();
+        } else if (Numbers.isWide(obj)) {
+            double d = ((Number) obj).doubleValue();
+            if (!isIntRange(d)) {
+                throw new RuntimeException("Index out of bounds: " + obj);
+            }
+            return (int) d;
         } else if (obj instanceof String) {
             try {
                 return Integer.parseInt((String) obj);
@@ -486,13 +723,13 @@ public class Interpreter {
 
     private void loadLibrary(String name) {
         if (name.equals("ml")) {
-            setVariable("ml", new MlLibrary(), false);
+            defineGlobal("ml", new MlLibrary(console));
         } else if (name.equals("blockchain")) {
-            setVariable("blockchain", new BlockchainLibrary(), false);
+            defineGlobal("blockchain", new BlockchainLibrary(console));
         } else if (name.equals("data_science") || name.equals("data science")) { // Handle different naming conventions
-            setVariable("data_science", new DataScienceLibrary(), false);
+            defineGlobal("data_science", new DataScienceLibrary(console));
         } else if (name.equals("database")) {
-            setVariable("db", new DatabaseLibrary(), false);
+            defineGlobal("db", new DatabaseLibrary(console));
         } else {
             throw new RuntimeException("Unknown library: " + name);
         }
@@ -509,7 +746,7 @@ public class Interpreter {
      * @return The result of the method call.
      */
     @SuppressWarnings("unchecked")
-    private Object callObjectMethod(Object target, String methodName, List<Object> args) {
+    Object callObjectMethod(Object target, String methodName, List<Object> args) {
         if (target instanceof MlLibrary) {
             MlLibrary ml = (MlLibrary) target;
             switch (methodName) {
@@ -573,7 +810,7 @@ public class Interpreter {
             switch (methodName) {
                 case "loadCSV":
                     if (args.size() == 1 && args.get(0) instanceof String) {
-                        return ds.loadCSV((String) args.get(0));
+                        return allocateDataset(ds.loadCSV((String) args.get(0)));
                     } else {
                         throw new RuntimeException("Invalid arguments for data_science.loadCSV");
                     }
@@ -615,8 +852,8 @@ public class Interpreter {
                 case "filterData":
                     if (args.size() == 4 && args.get(0) instanceof Instances && args.get(1) instanceof String
                             && args.get(2) instanceof String && args.get(3) instanceof Number) {
-                        return ds.filterData((Instances) args.get(0), (String) args.get(1), (String) args.get(2),
-                                ((Number) args.get(3)).doubleValue());
+                        return allocateDataset(ds.filterData((Instances) args.get(0), (String) args.get(1),
+                                (String) args.get(2), ((Number) args.get(3)).doubleValue()));
                     } else {
                         throw new RuntimeException("Invalid arguments for data_science.filterData");
                     }
@@ -648,6 +885,7 @@ public class Interpreter {
                     }
                 case "add":
                     if (args.size() == 1) {
+                        allocate(ExecutionBudget.ELEMENT_BYTES);
                         ((List<Object>) list).add(args.get(0));
                         return null;
                     } else {
@@ -664,6 +902,75 @@ public class Interpreter {
                 default:
                     throw new RuntimeException("Unknown method '" + methodName + "' on List object.");
             }
+        } else if (target instanceof MapValue) {
+            MapValue map = (MapValue) target;
+            switch (methodName) {
+                case "has":
+                    if (args.size() == 1) {
+                        return map.containsKey(args.get(0));
+                    } else {
+                        throw new RuntimeException("has method expects exactly one argument.");
+                    }
+                case "keys":
+                    if (args.size() == 0) {
+                        return map.keyList();
+                    } else {
+                        throw new RuntimeException("keys method does not take any arguments.");
+                    }
+                case "remove":
+                    if (args.size() == 1) {
+                        map.remove(args.get(0));
+                        return null;
+                    } else {
+                        throw new RuntimeException("remove method expects exactly one argument.");
+                    }
+                case "size":
+                    if (args.size() == 0) {
+                        return map.size();
+                    } else {
+                        throw new RuntimeException("size method does not take any arguments.");
+                    }
+                default:
+                    throw new RuntimeException("Unknown method '" + methodName + "' on Map object.");
+            }
+        } else if (target instanceof SetValue) {
+            SetValue set = (SetValue) target;
+            switch (methodName) {
+                case "add":
+                    if (args.size() == 1) {
+                        set.add(args.get(0));
+                        return null;
+                    } else {
+                        throw new RuntimeException("add method expects exactly one argument.");
+                    }
+                case "has":
+                    if (args.size() == 1) {
+                        return set.contains(args.get(0));
+                    } else {
+                        throw new RuntimeException("has method expects exactly one argument.");
+                    }
+                case "keys":
+                    if (args.size() == 0) {
+                        return set.toList();
+                    } else {
+                        throw new RuntimeException("keys method does not take any arguments.");
+                    }
+                case "remove":
+                    if (args.size() == 1) {
+                        set.remove(args.get(0));
+                        return null;
+                    } else {
+                        throw new RuntimeException("remove method expects exactly one argument.");
+                    }
+                case "size":
+                    if (args.size() == 0) {
+                        return set.size();
+                    } else {
+                        throw new RuntimeException("size method does not take any arguments.");
+                    }
+                default:
+                    throw new RuntimeException("Unknown method '" + methodName + "' on Set object.");
+            }
         } else if (target instanceof DatabaseLibrary) {
             DatabaseLibrary db = (DatabaseLibrary) target;
             switch (methodName) {
@@ -698,7 +1005,122 @@ public class Interpreter {
         return evaluate(node, false);
     }
 
-    private Object applyUnary(Object val, TokenType op) {
+    /**
+     * Evaluates a binary operator, specializing the node on the operand types
+     * it sees. Each variant gives the same result as {@link #applyOp}; when its
+     * guard fails the node goes generic.
+     */
+    private Object applyBinary(BinaryNode bin, Object left, Object right) {
+        switch (bin.feedback) {
+            case INT:
+                if (left instanceof Integer && right instanceof Integer) {
+                    return applyInt((Integer) left, (Integer) right, bin.op);
+                }
+                break;
+            case NUMBER:
+                if (TypeFeedback.isNumber(left) && TypeFeedback.isNumber(right)) {
+                    return applyNumeric(((Number) left).doubleValue(), ((Number) right).doubleValue(), bin.op, left,
+                            right);
+                }
+                break;
+            case STRING:
+                if (left instanceof String || right instanceof String) {
+                    return String.valueOf(left) + String.valueOf(right);
+                }
+                break;
+            case GENERIC:
+                return applyOp(left, right, bin.op);
+            default:
+                bin.feedback = TypeFeedback.of(bin.op, left, right);
+                return applyBinary(bin, left, right);
+        }
+        bin.feedback = TypeFeedback.GENERIC;
+        return applyOp(left, right, bin.op);
+    }
+
+    private Object applyInt(int l, int r, TokenType op) {
+        switch (op) {
+            case PLUS: {
+                long result = (long) l + r;
+                if ((int) result == result) {
+                    return (int) result;
+                }
+                break;
+            }
+            case MINUS: {
+                long result = (long) l - r;
+                if ((int) result == result) {
+                    return (int) result;
+                }
+                break;
+            }
+            case STAR: {
+                long result = (long) l * r;
+                if ((int) result == result) {
+                    return (int) result;
+                }
+                break;
+            }
+            case SLASH:
+                if (r != 0 && !(l == Integer.MIN_VALUE && r == -1)) {
+                    return l / r;
+                }
+                break;
+            case MOD:
+                if (r != 0) {
+                    return l % r;
+                }
+                break;
+            case EQ_EQ:
+                return l == r;
+            case NOT_EQ:
+                return l != r;
+            case GT:
+                return l > r;
+            case LT:
+                return l < r;
+            case GT_EQ:
+                return l >= r;
+            case LT_EQ:
+                return l <= r;
+            default:
+                break;
+        }
+        // Overflow widens to a long; division by zero keeps the double based error
+        return applyNumeric(l, r, op, l, r);
+    }
+
+    /**
+     * Evaluates ++/-- on the current value of the variable, specializing the
+     * node like {@link #applyBinary}.
+     */
+    private Object applyUnary(UnaryNode un, Object val) {
+        switch (un.feedback) {
+            case INT:
+                if (val instanceof Integer) {
+                    return un.op == TokenType.PLUS_PLUS ? (Integer) val + 1.0 : (Integer) val - 1.0;
+                }
+                break;
+            case NUMBER:
+                if (TypeFeedback.isNumber(val)) {
+                    double num = ((Number) val).doubleValue();
+                    return un.op == TokenType.PLUS_PLUS ? num + 1 : num - 1;
+                }
+                break;
+            case GENERIC:
+                return applyUnary(val, un.op);
+            default:
+                un.feedback = TypeFeedback.of(val);
+                return applyUnary(un, val);
+        }
+        un.feedback = TypeFeedback.GENERIC;
+        return applyUnary(val, un.op);
+    }
+
+    Object applyUnary(Object val, TokenType op) {
+        if (Numbers.isWide(val) && (op == TokenType.PLUS_PLUS || op == TokenType.MINUS_MINUS)) {
+            return Numbers.apply((Number) val, 1, op == TokenType.PLUS_PLUS ? TokenType.PLUS : TokenType.MINUS);
+        }
         double num = toNumber(val);
         switch (op) {
             case PLUS_PLUS:
@@ -724,8 +1146,8 @@ public class Interpreter {
             List<?> leftList = (List<?>) left;
             List<?> rightList = (List<?>) right;
 
-            List<Object> combined = new ArrayList<>();
-            combined.addAll(leftList);
+            allocateList(leftList.size() + rightList.size());
+            List<Object> combined = new ArrayValue(leftList);
             combined.addAll(rightList);
             return combined;
         } else {
@@ -733,51 +1155,72 @@ public class Interpreter {
         }
     }
 
-    private Object applyOp(Object left, Object right, TokenType op) {
+    Object applyOp(Object left, Object right, TokenType op) {
         if (op == TokenType.PLUS && (left instanceof String || right instanceof String)) {
-            return String.valueOf(left) + String.valueOf(right);
+            String result = String.valueOf(left) + String.valueOf(right);
+            allocateString(result.length());
+            return result;
         }
 
         if (left instanceof List && op == TokenType.PLUS) {
             if (right instanceof List) {
-                List<Object> combined = new ArrayList<>((List<Object>) left);
-                combined.addAll((List<Object>) right);
+                allocateList(((List<?>) left).size() + ((List<?>) right).size());
+                List<Object> combined = new ArrayValue((List<?>) left);
+                combined.addAll((List<?>) right);
                 return combined;
             }
         }
 
-        if (left instanceof List && (op == TokenType.EQ_EQ || op == TokenType.NOT_EQ)) {
+        if ((op == TokenType.EQ_EQ || op == TokenType.NOT_EQ) && (left instanceof Collection || left instanceof Map)) {
             boolean equals = left.equals(right);
             return op == TokenType.EQ_EQ ? equals : !equals;
         }
 
-        double l = toNumber(left);
-        double r = toNumber(right);
+        if ((Numbers.isWide(left) || Numbers.isWide(right)) && op != TokenType.AND_AND && op != TokenType.OR_OR) {
+            double l = toNumber(left);
+            double r = toNumber(right);
+            Object result = Numbers.apply(numeric(left, l), numeric(right, r), op);
+            if (result != null) {
+                return result;
+            }
+        }
 
+        return applyNumeric(toNumber(left), toNumber(right), op, left, right);
+    }
+
+    /**
+     * Numeric part of {@link #applyOp}, for operands already converted to double.
+     */
+    private Object applyNumeric(double l, double r, TokenType op, Object left, Object right) {
         switch (op) {
             case PLUS:
                 if (isInteger(l) && isInteger(r))
-                    return (int) (l + r);
+                    return integral(l, r, l + r, op);
                 return (l + r);
             case MINUS:
                 if (isInteger(l) && isInteger(r))
-                    return (int) (l - r);
+                    return integral(l, r, l - r, op);
                 return (l - r);
             case STAR:
                 if (isInteger(l) && isInteger(r))
-                    return (int) (l * r);
+                    return integral(l, r, l * r, op);
                 return (l * r);
             case SLASH:
                 if (r == 0) {
                     throw new RuntimeException("Division by zero");
                 }
-                if (isInteger(l) && isInteger(r))
-                    return (int) (l / r);
+                if (isInteger(l) && isInteger(r)) {
+                    if (isIntRange(l) && isIntRange(r))
+                        return integral(l, r, (long) (l / r), op);
+                    return Numbers.apply(l, r, op);
+                }
                 return (l / r);
             case MOD:
                 if (r == 0) {
                     throw new RuntimeException("Division by zero");
                 }
+                if (isInteger(l) && isInteger(r) && !(isIntRange(l) && isIntRange(r)))
+                    return Numbers.apply(l, r, op);
                 return (int) l % (int) r;
             case EQ_EQ:
                 return l == r;
@@ -800,15 +1243,17 @@ public class Interpreter {
         }
     }
 
-    private boolean isTrue(Object val) {
+    boolean isTrue(Object val) {
         if (val instanceof Boolean)
             return (Boolean) val;
         if (val instanceof Number)
             return ((Number) val).doubleValue() != 0;
         if (val instanceof String)
             return ((String) val).length() > 0;
-        if (val instanceof List)
-            return ((List<?>) val).size() > 0;
+        if (val instanceof Collection)
+            return ((Collection<?>) val).size() > 0;
+        if (val instanceof Map)
+            return ((Map<?, ?>) val).size() > 0;
         return val != null;
     }
 
@@ -828,124 +1273,410 @@ public class Interpreter {
     }
 
     private boolean isInteger(double d) {
-        return d == Math.floor(d);
+        return d == Math.floor(d) && !Double.isInfinite(d);
     }
 
-    private Optional<Variable> getVariable(String name) {
-        for (Map<String, Variable> scope : callStack) {
-            if (scope.containsKey(name)) {
-                return Optional.of(scope.get(name));
-            }
+    private static boolean isIntRange(double d) {
+        return d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Result of +, -, * or / on integral operands. One that fits an int is
+     * exact even when computed in double; larger ones are recomputed exactly
+     * and widened to a long or BigInteger.
+     */
+    private static Object integral(double l, double r, double result, TokenType op) {
+        if (isIntRange(result)) {
+            return (int) result;
         }
-        return Optional.empty();
+        return Numbers.apply(l, r, op);
     }
 
-    private void setVariable(String name, Object value, boolean isEncrypted) {
-        for (Map<String, Variable> scope : callStack) {
-            if (scope.containsKey(name)) {
-                scope.put(name, new Variable(value, isEncrypted));
-                return;
-            }
+    private static Number numeric(Object val, double num) {
+        return val instanceof Number ? (Number) val : (Number) num;
+    }
+
+    /**
+     * Reads a resolved variable: the function frame first, then the global frame.
+     */
+    Object readVariable(String name, int slot, int globalSlot) {
+        Object value;
+        if (slot >= 0 && (value = frame[slot]) != UNDEFINED) {
+            return value;
         }
-        callStack.peek().put(name, new Variable(value, isEncrypted));
+        if (globalSlot >= 0 && (value = globals[globalSlot]) != UNDEFINED) {
+            return value;
+        }
+        throw new RuntimeException("Undefined variable: " + name);
     }
 
-    public Object callFunction(String name, List<Object> args) {
-        FunctionDefNode func = functions.get(name);
+    /**
+     * Like {@link #readVariable}, but returns {@link #UNDEFINED} for a variable
+     * that does not exist yet.
+     */
+    Object peekVariable(int slot, int globalSlot) {
+        if (slot >= 0 && frame[slot] != UNDEFINED) {
+            return frame[slot];
+        }
+        return globalSlot >= 0 ? globals[globalSlot] : UNDEFINED;
+    }
+
+    /**
+     * Writes a resolved variable. An existing local wins, then an existing global;
+     * otherwise the variable is created in the innermost frame.
+     */
+    void writeVariable(int slot, int globalSlot, Object value) {
+        if (slot >= 0 && (frame[slot] != UNDEFINED || globalSlot < 0 || globals[globalSlot] == UNDEFINED)) {
+            frame[slot] = value;
+        } else {
+            globals[globalSlot] = value;
+        }
+    }
+
+    Object plainValue(Object value) {
+        if (value instanceof Sealed) {
+            return unseal((Sealed) value, true);
+        }
+        return value;
+    }
+
+    /**
+     * Value of a variable stored as a {@link Sealed}: the flattened string of
+     * a {@link Rope}, the list of an {@link OwnedList} (which is then shared),
+     * or for an encrypted variable the decrypted value, or the ciphertext
+     * itself when evaluating for print.
+     */
+    Object unseal(Sealed value, boolean decrypt) {
+        if (value instanceof Rope) {
+            return value.toString();
+        }
+        if (value instanceof OwnedList) {
+            OwnedList owned = (OwnedList) value;
+            owned.shared = true;
+            return owned.list;
+        }
+        EncryptedValue sealed = (EncryptedValue) value;
+        return decrypt ? ciphers.read(sealed) : sealed.toString();
+    }
+
+    /**
+     * Runs an assignment statement that appends to its own variable, such as
+     * {@code s = s + x} or {@code s += x}, on a {@link Rope} when the variable
+     * holds a string, and in place on an {@link OwnedList} when it holds a
+     * list and there is a single operand.
+     *
+     * @return False, with nothing evaluated, if the assignment must run as usual.
+     */
+    private boolean appendInPlace(AssignNode assign) {
+        if (assign.appended == null) {
+            return false;
+        }
+        // Kept small: it runs for every x = x + 1 too, which falls through
+        Object content = peekVariable(assign.slot, assign.globalSlot);
+        if (OwnedList.isList(content) && assign.appended.size() == 1) {
+            appendToList(assign, content);
+            return true;
+        }
+        if (Rope.isString(content)) {
+            appendToRope(assign, content);
+            return true;
+        }
+        return false;
+    }
+
+    private void appendToList(AssignNode assign, Object content) {
+        Object claimed;
+        Object value;
+        if (assign.op == TokenType.PLUS_EQ) {
+            // The right-hand side is evaluated before the variable is read
+            value = evaluate(assign.value);
+            claimed = OwnedList.claim(peekVariable(assign.slot, assign.globalSlot));
+        } else {
+            claimed = OwnedList.claim(content);
+            value = evaluate(assign.appended.get(0));
+        }
+        writeVariable(assign.slot, assign.globalSlot, OwnedList.append(claimed, value, this));
+    }
+
+    private void appendToRope(AssignNode assign, Object content) {
+        if (assign.op == TokenType.PLUS_EQ) {
+            // The right-hand side is evaluated before the variable is read
+            Object value = evaluate(assign.value);
+            Object current = peekVariable(assign.slot, assign.globalSlot);
+            writeVariable(assign.slot, assign.globalSlot, Rope.isString(current) ? appendCharged(current, value)
+                    : applyOp(plainValue(readVariable(assign.name, assign.slot, assign.globalSlot)), value,
+                            TokenType.PLUS));
+            return;
+        }
+        Object rope = content;
+        for (Node operand : assign.appended) {
+            rope = appendCharged(rope, evaluate(operand));
+        }
+        writeVariable(assign.slot, assign.globalSlot, rope);
+    }
+
+    // Rope.append, charging the chars appended to the memory budget
+    Rope appendCharged(Object base, Object value) {
+        Rope rope = Rope.append(base, value);
+        allocateString(rope.length() - Rope.length(base));
+        return rope;
+    }
+
+    void allocateList(int elements) {
+        allocate(ExecutionBudget.OBJECT_BYTES + (long) ExecutionBudget.ELEMENT_BYTES * elements);
+    }
+
+    private void allocateTable(int entries) {
+        allocate(ExecutionBudget.OBJECT_BYTES + (long) ExecutionBudget.ENTRY_BYTES * entries);
+    }
+
+    private void allocateString(int chars) {
+        allocate(ExecutionBudget.OBJECT_BYTES + 2L * chars);
+    }
+
+    // A dataset the data_science library made, charged by its number of values
+    private Instances allocateDataset(Instances data) {
+        allocate(ExecutionBudget.OBJECT_BYTES * (1L + data.numInstances())
+                + (long) ExecutionBudget.ELEMENT_BYTES * data.numInstances() * data.numAttributes());
+        return data;
+    }
+
+    void print(Object value) {
+        console.println(String.valueOf(value));
+    }
+
+    private void defineGlobal(String name, Object value) {
+        int slot = resolver.globalSlot(name);
+        ensureGlobals();
+        globals[slot] = value;
+    }
+
+    private void ensureGlobals() {
+        int count = resolver.globalCount();
+        if (globals.length < count) {
+            int oldLength = globals.length;
+            globals = Arrays.copyOf(globals, Math.max(count, oldLength * 2));
+            Arrays.fill(globals, oldLength, globals.length, UNDEFINED);
+        }
+    }
+
+    int functionsVersion() {
+        return functionsVersion;
+    }
+
+    void defineFunction(FunctionDefNode func) {
+        if (func.symbol >= functions.length) {
+            functions = Arrays.copyOf(functions, Math.max(func.symbol + 1, functions.length * 2));
+        }
+        functions[func.symbol] = func;
+        functionsVersion = FUNCTION_VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Returns the function a call site refers to. The result is cached on the
+     * node and only looked up again after a function has been (re)defined.
+     */
+    FunctionDefNode linkFunction(FunctionCallNode call) {
+        if (call.linkedVersion != functionsVersion) {
+            call.target = lookupFunction(call.symbol, call.arguments.size());
+            call.linkedVersion = functionsVersion;
+        }
+        return call.target;
+    }
+
+    /**
+     * The user function whose name has this symbol, or null if there is none.
+     */
+    FunctionDefNode function(int symbol) {
+        return symbol < functions.length ? functions[symbol] : null;
+    }
+
+    FunctionDefNode lookupFunction(int symbol, int argCount) {
+        FunctionDefNode func = function(symbol);
         if (func == null) {
-            throw new RuntimeException("Undefined function: " + name);
+            throw new RuntimeException("Undefined function: " + resolver.name(symbol));
         }
-        if (args.size() != func.parameters.size()) {
-            throw new RuntimeException(
-                    "Function " + name + " expects " + func.parameters.size() + " arguments but got " + args.size());
+        if (argCount != func.parameters.size()) {
+            throw new RuntimeException("Function " + func.name + " expects " + func.parameters.size()
+                    + " arguments but got " + argCount);
         }
+        return func;
+    }
 
-        Map<String, Variable> localScope = new HashMap<>();
-        for (int i = 0; i < func.parameters.size(); i++) {
-            localScope.put(func.parameters.get(i), new Variable(args.get(i), false));
+    /**
+     * Takes a frame for a call to {@code func}, reusing one released by an
+     * earlier call when possible. All slots start out undefined.
+     */
+    Object[] newFrame(FunctionDefNode func) {
+        if (func.pooledFrames > 0) {
+            Object[] locals = func.framePool[--func.pooledFrames];
+            func.framePool[func.pooledFrames] = null;
+            return locals;
         }
-        callStack.push(localScope);
+        Object[] locals = new Object[func.frameSize];
+        Arrays.fill(locals, UNDEFINED);
+        return locals;
+    }
 
-        try {
-            executeBlock(func.body);
-        } catch (ReturnException re) {
-            callStack.pop();
-            return re.value;
+    void releaseFrame(FunctionDefNode func, Object[] locals) {
+        if (func.framePool == null) {
+            func.framePool = new Object[4][];
+        } else if (func.pooledFrames == func.framePool.length) {
+            if (func.pooledFrames == MAX_POOLED_FRAMES) {
+                return;
+            }
+            func.framePool = Arrays.copyOf(func.framePool, func.pooledFrames * 2);
         }
+        Arrays.fill(locals, UNDEFINED);
+        func.framePool[func.pooledFrames++] = locals;
+    }
 
-        callStack.pop();
-        return null;
+    /**
+     * Value of the return statement that ended the current call, or null if
+     * the body ran to its end.
+     */
+    Object takeReturnValue() {
+        if (!returning) {
+            return null;
+        }
+        Object value = returnValue;
+        returning = false;
+        returnValue = null;
+        return value;
     }
 
-    private String encrypt(String value) {
-        try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            SecretKeySpec key = new SecretKeySpec(ENCRYPTION_KEY.getBytes("UTF-8"), "AES");
-            IvParameterSpec iv = new IvParameterSpec(INIT_VECTOR.getBytes("UTF-8"));
-            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-            byte[] encrypted = cipher.doFinal(value.getBytes("UTF-8"));
-            return Base64.getEncoder().encodeToString(encrypted);
-        } catch (Exception ex) {
-            throw new RuntimeException("Encryption failed: " + ex.getMessage());
+    /**
+     * Ends the current call with a call to {@code func}, which the enclosing
+     * invoke runs in place of the finished one.
+     */
+    void tailCall(FunctionDefNode func, Object[] locals) {
+        tailCallee = func;
+        tailFrame = locals;
+        returning = true;
+    }
+
+    /**
+     * Moves from a finished call to its pending tail call.
+     *
+     * @return false if the call simply returned.
+     */
+    boolean takeTailCall() {
+        if (tailCallee == null) {
+            return false;
         }
+        tailCallee = null;
+        tailFrame = null;
+        returning = false;
+        return true;
     }
 
-    private String decrypt(String encrypted) {
+    /**
+     * Runs a call on a {@link VirtualMachine}, for calls made once
+     * {@link #STACK_CALLS} calls are active on the Java stack. The calls it
+     * makes in turn stay on the VM's frame stack, on the heap.
+     */
+    Object callOnHeap(FunctionDefNode func, Object[] locals) {
+        if (callDepth >= 2 * STACK_CALLS) {
+            // The recursion keeps coming back through code the VM leaves to the tree walker
+            throw new RuntimeException("Maximum recursion depth exceeded");
+        }
+        VirtualMachine machine = heapCalls != null ? heapCalls : new VirtualMachine(vmHost());
+        heapCalls = null; // a call made from inside this one gets its own VM
+        callDepth++;
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            SecretKeySpec key = new SecretKeySpec(ENCRYPTION_KEY.getBytes("UTF-8"), "AES");
-            IvParameterSpec iv = new IvParameterSpec(INIT_VECTOR.getBytes("UTF-8"));
-            cipher.init(Cipher.DECRYPT_MODE, key, iv);
-            byte[] decoded = Base64.getDecoder().decode(encrypted);
-            byte[] original = cipher.doFinal(decoded);
-            return new String(original, "UTF-8");
-        } catch (Exception ex) {
-            throw new RuntimeException("Decryption failed: " + ex.getMessage());
+            return machine.call(vmHost().compiled(func), locals);
+        } finally {
+            callDepth--;
+            heapCalls = machine;
+            releaseFrame(func, locals);
         }
     }
 
-    private Object parseValue(String value) {
-        if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
-            return Boolean.parseBoolean(value);
+    /**
+     * Counts a call made on the VM, {@code depth} calls deep there, against
+     * the budget, and charges its frame to the memory budget when the VM's
+     * frame stack is deeper than ever before in the run.
+     */
+    void enterHeapCall(int depth, int frameSize) {
+        step();
+        if (callDepth + depth > MAX_CALL_DEPTH) {
+            throw new RuntimeException("Maximum recursion depth of " + MAX_CALL_DEPTH + " exceeded");
         }
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            // not int
+        if (depth > heapDepth) {
+            allocate((depth - heapDepth) * (ExecutionBudget.OBJECT_BYTES + HEAP_CALL_BYTES
+                    + (long) ExecutionBudget.ELEMENT_BYTES * frameSize));
+            heapDepth = depth;
         }
-        try {
-            return Double.parseDouble(value);
-        } catch (NumberFormatException e) {
-            // not double
+    }
+
+    private VmHost vmHost() {
+        if (vmHost == null) {
+            vmHost = new VmHost(this);
         }
-        value = value.trim();
-        if (value.startsWith("[") && value.endsWith("]")) {
-            String elementsStr = value.substring(1, value.length() - 1).trim();
-            if (elementsStr.isEmpty()) {
-                return new ArrayList<Object>();
-            } else {
-                String[] elements = elementsStr.split(",");
-                List<Object> list = new ArrayList<>();
-                for (String elem : elements) {
-                    elem = elem.trim();
-                    if (elem.equalsIgnoreCase("true") || elem.equalsIgnoreCase("false")) {
-                        list.add(Boolean.parseBoolean(elem));
-                    } else {
-                        try {
-                            if (elem.contains(".")) {
-                                list.add(Double.parseDouble(elem));
-                            } else {
-                                list.add(Integer.parseInt(elem));
-                            }
-                        } catch (NumberFormatException ex) {
-                            list.add(elem.replaceAll("^\"|\"$", ""));
-                        }
+        return vmHost;
+    }
+
+    private Object invoke(FunctionDefNode func, Object[] locals) {
+        Memoizer.Table table = memo.table(func, locals);
+        if (table == null) {
+            return run(func, locals);
+        }
+        Object key = Memoizer.key(func, locals);
+        Object result = Memoizer.lookup(table, key);
+        if (result != UNDEFINED) {
+            releaseFrame(func, locals);
+            return result;
+        }
+        result = run(func, locals);
+        Memoizer.store(table, key, result);
+        return result;
+    }
+
+    private Object run(FunctionDefNode func, Object[] locals) {
+        if (callDepth >= STACK_CALLS) {
+            return callOnHeap(func, locals);
+        }
+        // Tail calls loop here instead of nesting
+        FunctionDefNode callee = func;
+        Object[] calleeFrame = locals;
+        Object[] callerFrame = frame;
+        callDepth++;
+        try {
+            while (true) {
+                if (jit != null) {
+                    Object result = jit.call(callee, calleeFrame);
+                    if (result != UNDEFINED) {
+                        return result;
                     }
                 }
-                return list;
+                frame = calleeFrame;
+                executeBlock(callee.body);
+                FunctionDefNode next = tailCallee;
+                Object[] nextFrame = tailFrame;
+                if (!takeTailCall()) {
+                    return takeReturnValue();
+                }
+                releaseFrame(callee, calleeFrame);
+                callee = next;
+                calleeFrame = nextFrame;
             }
+        } catch (ReturnException re) {
+            // A return nested in an expression
+            return re.value;
+        } finally {
+            frame = callerFrame;
+            callDepth--;
+            releaseFrame(callee, calleeFrame);
         }
-        return value;
+    }
+
+    public Object callFunction(String name, List<Object> args) {
+        FunctionDefNode func = lookupFunction(resolver.symbol(name), args.size());
+        Object[] locals = newFrame(func);
+        for (int i = 0; i < args.size(); i++) {
+            locals[i] = args.get(i);
+        }
+        return invoke(func, locals);
     }
 
     private void scheduleEvent(Object timeVal, String unit, Node action, Object timesVal) {
@@ -974,12 +1705,12 @@ public class Interpreter {
                     throw new RuntimeException("Unknown time unit: " + unit);
             }
 
+            eventScheduled();
             if (times == -1) {
-                Timer timer = new Timer();
-                timer.schedule(new TimerTask() {
+                schedule(new TimerTask() {
                     @Override
                     public void run() {
-                        executeNode(action);
+                        runEvent(action);
                     }
                 }, delayMillis, delayMillis);
             } else {
@@ -1009,12 +1740,15 @@ public class Interpreter {
                 throw new RuntimeException("Times parameter not supported for datetime triggers.");
             }
 
-            new Timer().schedule(new TimerTask() {
+            eventScheduled();
+            schedule(new TimerTask() {
                 @Override
                 public void run() {
-                    executeNode(action);
+                    if (runEvent(action)) {
+                        eventDone();
+                    }
                 }
-            }, delay);
+            }, delay, 0);
         }
     }
 
@@ -1022,23 +1756,137 @@ public class Interpreter {
         if (remainingRuns <= 0)
             return;
 
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
+        schedule(new TimerTask() {
             @Override
             public void run() {
-                executeNode(action);
+                if (!runEvent(action)) {
+                    return;
+                }
                 int nextRunCount = remainingRuns - 1;
                 if (nextRunCount > 0) {
                     runLimitedTimes(action, delayMillis, nextRunCount);
                 } else {
-                    System.exit(0);
+                    cancelEvents(); // the last run of a counted trigger ends the program
+                }
+            }
+        }, delayMillis, 0);
+    }
+
+    /**
+     * Waits until the scheduled events of the program are over: every
+     * datetime trigger has run, or a trigger with a run count has run its
+     * last time (which ends the others, as it ended the process before). A
+     * trigger without a count never ends on its own. Returns false if events
+     * are still pending after {@code timeoutMillis}.
+     */
+    public boolean awaitEvents(long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        eventLock.lock();
+        try {
+            while (pendingEvents > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = eventsOver.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    /**
+     * Stops every scheduled event of the program.
+     */
+    public void cancelEvents() {
+        eventLock.lock();
+        try {
+            for (Timer timer : timers) {
+                timer.cancel();
+            }
+            timers.clear();
+            pendingEvents = 0;
+            eventsCancelled = true;
+            eventsOver.signalAll();
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    // Runs task after delay, then every period ms unless that is 0; nothing once the events are cancelled
+    private void schedule(TimerTask task, long delay, long period) {
+        eventLock.lock();
+        try {
+            if (eventsCancelled) {
+                return;
+            }
+            Timer timer = new Timer("event-trigger", true); // awaitEvents keeps a program alive, not the timer
+            timers.add(timer);
+            if (period > 0) {
+                timer.schedule(task, delay, period);
+            } else {
+                timer.schedule(task, delay);
+            }
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    private void eventScheduled() {
+        eventsScheduled = true;
+        fuel = 0; // budget checks from now on, see refuel
+        eventLock.lock();
+        try {
+            if (!eventsCancelled) {
+                pendingEvents++;
+            }
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    private void eventDone() {
+        eventLock.lock();
+        try {
+            if (pendingEvents > 0 && --pendingEvents == 0) {
+                eventsOver.signalAll();
+            }
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    // Runs a scheduled action in its turn; an error ends the program like one in the main flow would
+    private boolean runEvent(Node action) {
+        runLock.lock();
+        try {
+            eventLock.lock();
+            try {
+                if (eventsCancelled) {
+                    return false; // while waiting for the turn
                 }
+            } finally {
+                eventLock.unlock();
             }
-        }, delayMillis);
+            executeNode(action);
+            return true;
+        } catch (RuntimeException e) {
+            console.println("Error: " + e.getMessage());
+            cancelEvents();
+            return false;
+        } finally {
+            runLock.unlock();
+        }
     }
 }
 
 class MlLibrary {
+    private final Console console; // the interpreter's
+
+    MlLibrary(Console console) {
+        this.console = console;
+    }
+
     private Instances loadData(String csv, String targetColumn) throws IOException, Exception {
         CSVLoader loader = new CSVLoader();
         loader.setSource(new File(csv));
@@ -1080,48 +1928,48 @@ class MlLibrary {
 
             // If class attribute is not nominal, try converting it.
             if (!data.classAttribute().isNominal()) {
-                System.out.println("[ml] Class attribute is not nominal. Attempting NumericToNominal...");
+                console.println("[ml] Class attribute is not nominal. Attempting NumericToNominal...");
                 NumericToNominal convert = new NumericToNominal();
                 convert.setAttributeIndices(String.valueOf(data.classIndex() + 1));
                 convert.setInputFormat(data);
                 data = Filter.useFilter(data, convert);
 
                 if (!data.classAttribute().isNominal()) {
-                    System.out.println("[ml] Failed to convert class attribute to nominal. Metrics won't be printed.");
+                    console.println("[ml] Failed to convert class attribute to nominal. Metrics won't be printed.");
                 } else {
-                    System.out.println("[ml] Successfully converted class attribute to nominal.");
+                    console.println("[ml] Successfully converted class attribute to nominal.");
                 }
             }
 
             RandomForest rf = new RandomForest();
             rf.buildClassifier(data);
-            System.out.println("[ml] Random Forest trained on " + csv +
+            console.println("[ml] Random Forest trained on " + csv +
                     (column != null ? " with target column '" + column + "'" : ""));
-            System.out.println("[ml] Model Summary:\n" + rf.toString());
+            console.println("[ml] Model Summary:\n" + rf.toString());
 
             Evaluation eval = new Evaluation(data);
             eval.crossValidateModel(rf, data, 10, new Random(1));
 
             if (data.classAttribute().isNominal()) {
                 double accuracy = eval.pctCorrect();
-                System.out.println("[ml] Accuracy: " + accuracy + "%");
+                console.println("[ml] Accuracy: " + accuracy + "%");
 
                 for (int i = 0; i < data.numClasses(); i++) {
                     double precision = eval.precision(i);
                     double recall = eval.recall(i);
                     double f1 = eval.fMeasure(i);
                     String className = data.classAttribute().value(i);
-                    System.out.println("[ml] Class: " + className);
-                    System.out.println("    Precision: " + precision);
-                    System.out.println("    Recall: " + recall);
-                    System.out.println("    F1-Score: " + f1);
+                    console.println("[ml] Class: " + className);
+                    console.println("    Precision: " + precision);
+                    console.println("    Recall: " + recall);
+                    console.println("    F1-Score: " + f1);
                 }
             } else {
-                System.out.println("[ml] Class is not nominal, no accuracy/precision/F1 printed.");
+                console.println("[ml] Class is not nominal, no accuracy/precision/F1 printed.");
             }
 
             SerializationHelper.write("randomforest.model", rf);
-            System.out.println("[ml] Random Forest model saved to 'randomforest.model'");
+            console.println("[ml] Random Forest model saved to 'randomforest.model'");
 
             return rf;
         } catch (Exception e) {
@@ -1138,15 +1986,15 @@ class MlLibrary {
             Instances data = loadData(csv, column);
 
             if (!data.classAttribute().isNumeric()) {
-                System.out.println(
+                console.println(
                         "[ml] Warning: The class attribute is not numeric. Linear Regression is intended for numeric targets.");
             }
 
             LinearRegression lr = new LinearRegression();
             lr.buildClassifier(data);
-            System.out.println("[ml] Linear Regression trained on " + csv +
+            console.println("[ml] Linear Regression trained on " + csv +
                     (column != null ? " with target column '" + column + "'" : ""));
-            System.out.println("[ml] Model Coefficients:\n" + lr);
+            console.println("[ml] Model Coefficients:\n" + lr);
 
             Evaluation eval = new Evaluation(data);
             eval.crossValidateModel(lr, data, 10, new Random(1));
@@ -1155,12 +2003,12 @@ class MlLibrary {
             double mae = eval.meanAbsoluteError();
             double rmse = eval.rootMeanSquaredError();
 
-            System.out.println("[ml] Correlation Coefficient: " + corrCoef);
-            System.out.println("[ml] Mean Absolute Error: " + mae);
-            System.out.println("[ml] Root Mean Squared Error: " + rmse);
+            console.println("[ml] Correlation Coefficient: " + corrCoef);
+            console.println("[ml] Mean Absolute Error: " + mae);
+            console.println("[ml] Root Mean Squared Error: " + rmse);
 
             SerializationHelper.write("linearregression.model", lr);
-            System.out.println("[ml] Linear Regression model saved to 'linearregression.model'");
+            console.println("[ml] Linear Regression model saved to 'linearregression.model'");
 
             return lr;
         } catch (Exception e) {
@@ -1183,14 +2031,14 @@ class MlLibrary {
             SimpleKMeans kmeans = new SimpleKMeans();
             kmeans.setNumClusters(3);
             kmeans.buildClusterer(data);
-            System.out.println("[ml] K-Means clustering on " + csv + " completed.");
-            System.out.println("[ml] Cluster centroids: \n" + kmeans.toString());
+            console.println("[ml] K-Means clustering on " + csv + " completed.");
+            console.println("[ml] Cluster centroids: \n" + kmeans.toString());
 
             ClusterEvaluation clusterEval = new ClusterEvaluation();
             clusterEval.setClusterer(kmeans);
             clusterEval.evaluateClusterer(data);
 
-            System.out.println("[ml] Number of clusters: " + kmeans.getNumClusters());
+            console.println("[ml] Number of clusters: " + kmeans.getNumClusters());
 
             int[] assignments = kmeans.getAssignments();
             int[] clusterCounts = new int[kmeans.getNumClusters()];
@@ -1198,13 +2046,13 @@ class MlLibrary {
                 clusterCounts[assignments[i]]++;
             }
             for (int i = 0; i < clusterCounts.length; i++) {
-                System.out.println("[ml] Cluster " + i + ": " + clusterCounts[i] + " instances");
+                console.println("[ml] Cluster " + i + ": " + clusterCounts[i] + " instances");
             }
 
-            System.out.println("[ml] Note: Accuracy, Precision, and F1-Score are not applicable for clustering.");
+            console.println("[ml] Note: Accuracy, Precision, and F1-Score are not applicable for clustering.");
 
             SerializationHelper.write("kmeans.model", kmeans);
-            System.out.println("[ml] K-Means model saved to 'kmeans.model'");
+            console.println("[ml] K-Means model saved to 'kmeans.model'");
 
             return kmeans;
         } catch (Exception e) {
@@ -1214,6 +2062,7 @@ class MlLibrary {
 }
 
 class BlockchainLibrary {
+    private final Console console; // the interpreter's
     private String privateKey;
     private double balance;
     private String fromAddress;
@@ -1234,7 +2083,8 @@ class BlockchainLibrary {
         }
     }
 
-    public BlockchainLibrary() {
+    public BlockchainLibrary(Console console) {
+        this.console = console;
         this.transactionHistory = new ArrayList<>();
     }
 
@@ -1242,57 +2092,62 @@ class BlockchainLibrary {
         this.privateKey = privateKey;
         this.balance = amount;
         this.fromAddress = Integer.toHexString(privateKey.hashCode());
-        System.out.println("[blockchain] Initialized:");
-        System.out.println("    Address: " + fromAddress);
-        System.out.println("    Balance: " + balance);
+        console.println("[blockchain] Initialized:");
+        console.println("    Address: " + fromAddress);
+        console.println("    Balance: " + balance);
         return null;
     }
 
     public Object transaction(String toAddress, double amount) {
         if (amount > balance) {
-            System.out.println("[blockchain] Transaction failed: insufficient funds.");
+            console.println("[blockchain] Transaction failed: insufficient funds.");
             return null;
         }
         balance -= amount;
         Transaction tx = new Transaction(toAddress, amount);
         transactionHistory.add(tx);
 
-        System.out.println("[blockchain] Transaction successful!");
-        System.out.println("    hashCode: " + tx.hashCode);
-        System.out.println("    transactionID: " + tx.transactionID);
-        System.out.println("    amount: " + tx.amount);
-        System.out.println("    to Address: " + tx.toAddress);
+        console.println("[blockchain] Transaction successful!");
+        console.println("    hashCode: " + tx.hashCode);
+        console.println("    transactionID: " + tx.transactionID);
+        console.println("    amount: " + tx.amount);
+        console.println("    to Address: " + tx.toAddress);
 
         return null;
     }
 
     // New method to show current balance
     public Object showCurrentBalance() {
-        System.out.println("[blockchain] Current Balance: " + balance);
+        console.println("[blockchain] Current Balance: " + balance);
         return balance;
     }
 
     // New method to show transaction history
     public Object showTransactionHistory() {
         if (transactionHistory.isEmpty()) {
-            System.out.println("[blockchain] No transactions found.");
+            console.println("[blockchain] No transactions found.");
             return null;
         }
 
-        System.out.println("[blockchain] Transaction History:");
+        console.println("[blockchain] Transaction History:");
         for (int i = 0; i < transactionHistory.size(); i++) {
             Transaction tx = transactionHistory.get(i);
-            System.out.println("  Transaction " + (i + 1) + ":");
-            System.out.println("    To Address: " + tx.toAddress);
-            System.out.println("    Amount: " + tx.amount);
-            System.out.println("    Transaction ID: " + tx.transactionID);
-            System.out.println("    Hash Code: " + tx.hashCode);
+            console.println("  Transaction " + (i + 1) + ":");
+            console.println("    To Address: " + tx.toAddress);
+            console.println("    Amount: " + tx.amount);
+            console.println("    Transaction ID: " + tx.transactionID);
+            console.println("    Hash Code: " + tx.hashCode);
         }
         return transactionHistory;
     }
 }
 
 class DataScienceLibrary {
+    private final Console console; // the interpreter's
+
+    DataScienceLibrary(Console console) {
+        this.console = console;
+    }
 
     /**
      * Loads a CSV file into a Weka Instances object.
@@ -1317,7 +2172,7 @@ class DataScienceLibrary {
             stn.setInputFormat(data);
             data = Filter.useFilter(data, stn);
 
-            System.out.println("[data science] Loaded data from " + csvPath);
+            console.println("[data science] Loaded data from " + csvPath);
             return data;
         } catch (IOException e) {
             throw new RuntimeException("Error loading CSV file: " + e.getMessage(), e);
@@ -1343,7 +2198,7 @@ class DataScienceLibrary {
         }
 
         double mean = stats.getMean();
-        System.out.println("[data science] Mean of '" + attributeName + "': " + mean);
+        console.println("[data science] Mean of '" + attributeName + "': " + mean);
         return mean;
     }
 
@@ -1364,7 +2219,7 @@ class DataScienceLibrary {
         }
 
         double median = stats.getPercentile(50);
-        System.out.println("[data science] Median of '" + attributeName + "': " + median);
+        console.println("[data science] Median of '" + attributeName + "': " + median);
         return median;
     }
 
@@ -1385,7 +2240,7 @@ class DataScienceLibrary {
         }
 
         double stdDev = stats.getStandardDeviation();
-        System.out.println("[data science] Standard Deviation of '" + attributeName + "': " + stdDev);
+        console.println("[data science] Standard Deviation of '" + attributeName + "': " + stdDev);
         return stdDev;
     }
 
@@ -1416,7 +2271,7 @@ class DataScienceLibrary {
 
         try {
             ChartUtils.saveChartAsPNG(new File(outputPath), histogram, 800, 600);
-            System.out.println("[data science] Histogram saved to " + outputPath);
+            console.println("[data science] Histogram saved to " + outputPath);
         } catch (IOException e) {
             throw new RuntimeException("Error saving histogram: " + e.getMessage(), e);
         }
@@ -1451,7 +2306,7 @@ class DataScienceLibrary {
 
         try {
             ChartUtils.saveChartAsPNG(new File(outputPath), scatterPlot, 800, 600);
-            System.out.println("[data science] Scatter plot saved to " + outputPath);
+            console.println("[data science] Scatter plot saved to " + outputPath);
         } catch (IOException e) {
             throw new RuntimeException("Error saving scatter plot: " + e.getMessage(), e);
         }
@@ -1513,8 +2368,8 @@ class DataScienceLibrary {
             }
 
             // Debug Statements
-            System.out.println("[data science] Filtered data based on " + attribute + " " + operator + " " + value);
-            System.out.println("[data science] Number of instances after filtering: " + filteredData.numInstances());
+            console.println("[data science] Filtered data based on " + attribute + " " + operator + " " + value);
+            console.println("[data science] Number of instances after filtering: " + filteredData.numInstances());
 
             return filteredData;
 
@@ -1586,8 +2441,13 @@ class DataScienceLibrary {
 }
 
 class DatabaseLibrary {
+    private final Console console; // the interpreter's
     private Connection connection;
 
+    DatabaseLibrary(Console console) {
+        this.console = console;
+    }
+
     /**
      * Connects to the specified database using JDBC.
      *
@@ -1604,7 +2464,7 @@ class DatabaseLibrary {
 
             // Establish the connection
             connection = DriverManager.getConnection(url, user, password);
-            System.out.println("[database] Connected to database successfully.");
+            console.println("[database] Connected to database successfully.");
             return null;
         } catch (ClassNotFoundException e) {
             throw new RuntimeException("[database] JDBC Driver not found: " + e.getMessage(), e);
@@ -1630,24 +2490,26 @@ class DatabaseLibrary {
             boolean hasResultSet = stmt.execute(sql);
             if (hasResultSet) {
                 try (ResultSet rs = stmt.getResultSet()) {
-                    List<Map<String, Object>> results = new ArrayList<>();
+                    // Rows are maps so scripts can index them: rows[0]["name"]
+                    List<Object> results = new ArrayValue();
                     ResultSetMetaData meta = rs.getMetaData();
                     int columnCount = meta.getColumnCount();
 
                     while (rs.next()) {
-                        Map<String, Object> row = new LinkedHashMap<>();
+                        Map<Object, Object> row = new MapValue(columnCount);
                         for (int i = 1; i <= columnCount; i++) {
-                            row.put(meta.getColumnName(i), rs.getObject(i));
+                            Object value = rs.getObject(i);
+                            row.put(meta.getColumnName(i), value instanceof Long ? Numbers.narrow((Long) value) : value);
                         }
                         results.add(row);
                     }
 
-                    System.out.println("[database] Query executed successfully. Rows fetched: " + results.size());
+                    console.println("[database] Query executed successfully. Rows fetched: " + results.size());
                     return results; // Returning the list of rows
                 }
             } else {
                 int updateCount = stmt.getUpdateCount();
-                System.out.println("[database] Query executed successfully. Rows affected: " + updateCount);
+                console.println("[database] Query executed successfully. Rows affected: " + updateCount);
                 return updateCount; // Returning the number of rows affected
             }
         } catch (SQLException e) {
@@ -1664,13 +2526,13 @@ class DatabaseLibrary {
         if (connection != null) {
             try {
                 connection.close();
-                System.out.println("[database] Connection closed.");
+                console.println("[database] Connection closed.");
                 connection = null;
             } catch (SQLException e) {
                 throw new RuntimeException("[database] Failed to close connection: " + e.getMessage(), e);
             }
         } else {
-            System.out.println("[database] No active connection to close.");
+            console.println("[database] No active connection to close.");
         }
         return null;
     }
@@ -0,0 +1,464 @@
+package com.example.lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.ToIntFunction;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Second execution tier for user functions. Once a function has been called
+ * {@code threshold} times it is translated to Java source, compiled in memory
+ * with the JDK compiler on a background thread and loaded in its own class
+ * loader. The interpreter keeps running the function meanwhile; calls made
+ * after the code is installed run the compiled code instead.
+ *
+ * Only functions that work purely on int values are compiled: no output, no
+ * global variables, no library calls, and calls only to themselves. Such a
+ * function has no side effects, which keeps deoptimization simple: when an
+ * assumption breaks (an argument that is not an Integer, an int overflow, a
+ * division by zero, falling off the end without a return) the compiled code
+ * throws {@link ArithmeticException} and the call is simply run again by the
+ * interpreter, which then produces the exact result or error.
+ */
+class JitCompiler {
+    static final int DEFAULT_THRESHOLD = 1000;
+    // A function that keeps deoptimizing goes back to the interpreter for good
+    private static final int MAX_DEOPTS = 10;
+
+    /**
+     * Compiled code attached to a {@link FunctionDefNode}.
+     */
+    static class JitCode {
+        final ToIntFunction<int[]> entry;
+        final int[] localGlobalSlots; // globals that must stay undefined for the locals to be local
+        int deopts;
+
+        JitCode(ToIntFunction<int[]> entry, int[] localGlobalSlots) {
+            this.entry = entry;
+            this.localGlobalSlots = localGlobalSlots;
+        }
+    }
+
+    // Thrown while generating source for a construct outside the compiled subset
+    private static class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private enum Type {
+        INT, BOOL
+    }
+
+    private static int classCounter;
+    private static final Executor COMPILER_THREAD = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "nuvo-jit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Interpreter in;
+    private final int threshold;
+    private final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+
+    JitCompiler(Interpreter in, int threshold) {
+        this.in = in;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Runs {@code func} with the given frame in compiled code if possible.
+     *
+     * @return The result, or {@link Interpreter#UNDEFINED} if the caller has to
+     *         interpret the call. The frame is left untouched in that case.
+     */
+    Object call(FunctionDefNode func, Object[] locals) {
+        JitCode code = func.jitCode;
+        if (code == null) {
+            // Past the threshold the function is either being compiled or could not be
+            if (!func.jitDisabled && func.callCount <= threshold && ++func.callCount > threshold) {
+                COMPILER_THREAD.execute(() -> func.jitCode = compile(func));
+            }
+            return Interpreter.UNDEFINED;
+        }
+
+        int[] args = new int[func.parameters.size()];
+        for (int i = 0; i < args.length; i++) {
+            if (!(locals[i] instanceof Integer)) {
+                return deoptimize(func, code);
+            }
+            args[i] = (Integer) locals[i];
+        }
+        for (int globalSlot : code.localGlobalSlots) {
+            if (in.globals[globalSlot] != Interpreter.UNDEFINED) {
+                // A global of the same name exists, so writes would go to it
+                return deoptimize(func, code);
+            }
+        }
+        try {
+            return code.entry.applyAsInt(args);
+        } catch (ArithmeticException | StackOverflowError e) {
+            // Deep non-tail recursion falls back to the interpreter, which is not bounded by the Java stack
+            return deoptimize(func, code);
+        }
+    }
+
+    private Object deoptimize(FunctionDefNode func, JitCode code) {
+        if (++code.deopts > MAX_DEOPTS) {
+            func.jitCode = null;
+            func.jitDisabled = true;
+        }
+        return Interpreter.UNDEFINED;
+    }
+
+    private JitCode compile(FunctionDefNode func) {
+        if (javac == null) {
+            return null; // running on a JRE
+        }
+        String className = "NuvoJit" + nextClassNumber();
+        String source;
+        List<Integer> localGlobalSlots = new ArrayList<>();
+        try {
+            source = new SourceGenerator(func, className, localGlobalSlots).generate();
+        } catch (Unsupported e) {
+            return null;
+        }
+
+        Map<String, byte[]> classes = new HashMap<>();
+        StandardJavaFileManager standard = javac.getStandardFileManager(null, null, null);
+        ForwardingJavaFileManager<StandardJavaFileManager> fileManager =
+                new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+                    @Override
+                    public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                            FileObject sibling) {
+                        return new SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+                            @Override
+                            public OutputStream openOutputStream() {
+                                return new ByteArrayOutputStream() {
+                                    @Override
+                                    public void close() {
+                                        classes.put(name, toByteArray());
+                                    }
+                                };
+                            }
+                        };
+                    }
+                };
+        JavaFileObject unit = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        // Diagnostics are dropped: a function that does not compile just stays interpreted
+        Boolean ok = javac.getTask(null, fileManager, diagnostic -> {
+        }, List.of("-proc:none", "-g:none"), null, List.of(unit)).call();
+        if (!ok || !classes.containsKey(className)) {
+            return null;
+        }
+
+        try {
+            ClassLoader loader = new ClassLoader(JitCompiler.class.getClassLoader()) {
+                @Override
+                protected Class<?> findClass(String name) throws ClassNotFoundException {
+                    byte[] bytes = classes.get(name);
+                    if (bytes == null) {
+                        throw new ClassNotFoundException(name);
+                    }
+                    return defineClass(name, bytes, 0, bytes.length);
+                }
+            };
+            @SuppressWarnings("unchecked")
+            ToIntFunction<int[]> entry = (ToIntFunction<int[]>) loader.loadClass(className)
+                    .getDeclaredConstructor().newInstance();
+            return new JitCode(entry, localGlobalSlots.stream().mapToInt(Integer::intValue).toArray());
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static synchronized int nextClassNumber() {
+        return ++classCounter;
+    }
+
+    /**
+     * Translates one function body to a Java class. Parameters become
+     * {@code p<slot>}, other locals {@code v<slot>}; every value is an int or a
+     * boolean. Locals are declared without initializer, so javac's definite
+     * assignment check rejects any function that might read one before
+     * writing it.
+     */
+    private static class SourceGenerator {
+        private final FunctionDefNode func;
+        private final String className;
+        private final List<Integer> localGlobalSlots;
+        private final StringBuilder body = new StringBuilder();
+        private final Set<Integer> declared = new LinkedHashSet<>();
+        private int indent = 2;
+
+        SourceGenerator(FunctionDefNode func, String className, List<Integer> localGlobalSlots) {
+            this.func = func;
+            this.className = className;
+            this.localGlobalSlots = localGlobalSlots;
+        }
+
+        String generate() throws Unsupported {
+            // Self tail calls jump back to the top of the loop; "if (true)" keeps the throw reachable
+            line("tail: while (true) {");
+            indent++;
+            line("if (true) {");
+            block(func.body);
+            line("}");
+            line("throw new ArithmeticException(\"no return\");");
+            indent--;
+            line("}");
+
+            int arity = func.parameters.size();
+            StringBuilder params = new StringBuilder();
+            StringBuilder args = new StringBuilder();
+            for (int i = 0; i < arity; i++) {
+                params.append(i > 0 ? ", " : "").append("int p").append(i);
+                args.append(i > 0 ? ", " : "").append("a[").append(i).append(']');
+            }
+            StringBuilder locals = new StringBuilder();
+            for (int slot : declared) {
+                locals.append("        int v").append(slot).append(";\n");
+            }
+            return "public final class " + className + " implements java.util.function.ToIntFunction<int[]> {\n"
+                    + "    public int applyAsInt(int[] a) {\n"
+                    + "        return run(" + args + ");\n"
+                    + "    }\n\n"
+                    + "    static int run(" + params + ") {\n"
+                    + locals
+                    + body
+                    + "    }\n\n"
+                    + "    static int div(int a, int b) {\n"
+                    + "        if (b == 0 || (a == Integer.MIN_VALUE && b == -1)) throw new ArithmeticException();\n"
+                    + "        return a / b;\n"
+                    + "    }\n\n"
+                    + "    static int mod(int a, int b) {\n"
+                    + "        if (b == 0) throw new ArithmeticException();\n"
+                    + "        return a % b;\n"
+                    + "    }\n"
+                    + "}\n";
+        }
+
+        private void statement(Node node) throws Unsupported {
+            if (node instanceof ExpressionStatement) {
+                line(effect(((ExpressionStatement) node).expr) + ";");
+            } else if (node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+                line("if (" + condition(ifNode.condition) + ") {");
+                block(ifNode.ifBranch);
+                if (ifNode.elseBranch != null) {
+                    line("} else {");
+                    block(ifNode.elseBranch);
+                }
+                line("}");
+            } else if (node instanceof WhileNode) {
+                WhileNode whileNode = (WhileNode) node;
+                line("while (" + condition(whileNode.condition) + ") {");
+                block(whileNode.body);
+                line("}");
+            } else if (node instanceof ForNode) {
+                ForNode forNode = (ForNode) node;
+                line(effect(forNode.initialization) + ";");
+                line("while (" + condition(forNode.condition) + ") {");
+                block(forNode.body);
+                indent++;
+                line(effect(forNode.increment) + ";");
+                indent--;
+                line("}");
+            } else if (node instanceof ReturnNode && isSelfCall(((ReturnNode) node).value)) {
+                // Arguments are all evaluated before any parameter changes
+                List<Node> arguments = ((FunctionCallNode) ((ReturnNode) node).value).arguments;
+                line("{");
+                indent++;
+                for (int i = 0; i < arguments.size(); i++) {
+                    line("int t" + i + " = " + typed(arguments.get(i), Type.INT) + ";");
+                }
+                for (int i = 0; i < arguments.size(); i++) {
+                    line("p" + i + " = t" + i + ";");
+                }
+                line("continue tail;");
+                indent--;
+                line("}");
+            } else if (node instanceof ReturnNode && ((ReturnNode) node).value != null) {
+                line("return " + typed(((ReturnNode) node).value, Type.INT) + ";");
+            } else {
+                throw new Unsupported(node.getClass().getSimpleName());
+            }
+        }
+
+        private void block(List<Node> statements) throws Unsupported {
+            indent++;
+            for (Node stmt : statements) {
+                statement(stmt);
+            }
+            indent--;
+        }
+
+        private void line(String code) {
+            for (int i = 0; i < indent; i++) {
+                body.append("    ");
+            }
+            body.append(code).append('\n');
+        }
+
+        private static class Code {
+            final String code;
+            final Type type;
+
+            Code(String code, Type type) {
+                this.code = code;
+                this.type = type;
+            }
+        }
+
+        // An expression used as a statement; Java does not allow a parenthesized assignment there
+        private String effect(Node node) throws Unsupported {
+            String code = expression(node).code;
+            return node instanceof AssignNode ? code.substring(1, code.length() - 1) : code;
+        }
+
+        private String condition(Node node) throws Unsupported {
+            Code code = expression(node);
+            return code.type == Type.BOOL ? code.code : "(" + code.code + ") != 0";
+        }
+
+        private String typed(Node node, Type type) throws Unsupported {
+            Code code = expression(node);
+            if (code.type != type) {
+                throw new Unsupported("expected " + type);
+            }
+            return code.code;
+        }
+
+        private Code expression(Node node) throws Unsupported {
+            if (node instanceof LiteralNode) {
+                Object value = ((LiteralNode) node).value;
+                if (value instanceof Integer) {
+                    return new Code("(" + value + ")", Type.INT);
+                } else if (value instanceof Boolean) {
+                    return new Code(value.toString(), Type.BOOL);
+                }
+                throw new Unsupported("literal " + value);
+            } else if (node instanceof VariableNode) {
+                VariableNode var = (VariableNode) node;
+                return new Code(variable(var.slot, var.globalSlot, var.encrypted), Type.INT);
+            } else if (node instanceof AssignNode) {
+                AssignNode assign = (AssignNode) node;
+                String value = typed(assign.value, Type.INT);
+                String target = variable(assign.slot, assign.globalSlot, assign.encrypted);
+                if (assign.op != TokenType.ASSIGN) {
+                    value = arithmetic(Interpreter.operatorFromCompound(assign.op), target, value);
+                }
+                return new Code("(" + target + " = " + value + ")", Type.INT);
+            } else if (node instanceof BinaryNode) {
+                BinaryNode bin = (BinaryNode) node;
+                if (bin.op == TokenType.AND_AND || bin.op == TokenType.OR_OR) {
+                    // Both sides are always evaluated, as in the interpreter
+                    String op = bin.op == TokenType.AND_AND ? " & " : " | ";
+                    return new Code("(" + condition(bin.left) + op + condition(bin.right) + ")", Type.BOOL);
+                }
+                Code left = expression(bin.left);
+                Code right = expression(bin.right);
+                if (left.type != right.type) {
+                    throw new Unsupported("mixed operands");
+                }
+                switch (bin.op) {
+                    case EQ_EQ:
+                        return new Code("(" + left.code + " == " + right.code + ")", Type.BOOL);
+                    case NOT_EQ:
+                        return new Code("(" + left.code + " != " + right.code + ")", Type.BOOL);
+                    default:
+                        break;
+                }
+                if (left.type != Type.INT) {
+                    throw new Unsupported("boolean arithmetic");
+                }
+                switch (bin.op) {
+                    case LT:
+                        return new Code("(" + left.code + " < " + right.code + ")", Type.BOOL);
+                    case LT_EQ:
+                        return new Code("(" + left.code + " <= " + right.code + ")", Type.BOOL);
+                    case GT:
+                        return new Code("(" + left.code + " > " + right.code + ")", Type.BOOL);
+                    case GT_EQ:
+                        return new Code("(" + left.code + " >= " + right.code + ")", Type.BOOL);
+                    default:
+                        return new Code(arithmetic(bin.op, left.code, right.code), Type.INT);
+                }
+            } else if (node instanceof UnaryNode && ((UnaryNode) node).op == TokenType.NOT) {
+                // ++ and -- are left out: the interpreter turns their result into a double
+                return new Code("(!" + condition(((UnaryNode) node).expr) + ")", Type.BOOL);
+            } else if (node instanceof FunctionCallNode) {
+                FunctionCallNode call = (FunctionCallNode) node;
+                if (!isSelfCall(call)) {
+                    throw new Unsupported("call to " + call.name);
+                }
+                StringBuilder args = new StringBuilder();
+                for (Node arg : call.arguments) {
+                    args.append(args.length() > 0 ? ", " : "").append(typed(arg, Type.INT));
+                }
+                return new Code("run(" + args + ")", Type.INT);
+            }
+            throw new Unsupported(node.getClass().getSimpleName());
+        }
+
+        private boolean isSelfCall(Node node) {
+            return node instanceof FunctionCallNode && ((FunctionCallNode) node).name.equals(func.name)
+                    && ((FunctionCallNode) node).arguments.size() == func.parameters.size();
+        }
+
+        private String arithmetic(TokenType op, String left, String right) throws Unsupported {
+            // Overflow deoptimizes: the interpreter widens the result to a long
+            switch (op) {
+                case PLUS:
+                    return "Math.addExact(" + left + ", " + right + ")";
+                case MINUS:
+                    return "Math.subtractExact(" + left + ", " + right + ")";
+                case STAR:
+                    return "Math.multiplyExact(" + left + ", " + right + ")";
+                case SLASH:
+                    return "div(" + left + ", " + right + ")";
+                case MOD:
+                    return "mod(" + left + ", " + right + ")";
+                default:
+                    throw new Unsupported("operator " + op);
+            }
+        }
+
+        private String variable(int slot, int globalSlot, boolean encrypted) throws Unsupported {
+            if (encrypted || slot < 0) {
+                throw new Unsupported("variable");
+            }
+            if (globalSlot < 0) {
+                return "p" + slot;
+            }
+            if (declared.add(slot)) {
+                localGlobalSlots.add(globalSlot);
+            }
+            return "v" + slot;
+        }
+    }
+}
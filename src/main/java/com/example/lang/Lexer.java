@@ -1,37 +1,154 @@
 package com.example.lang;
 
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
+/**
+ * Turns source text into tokens, either all at once ({@link #tokenize()}) or
+ * one at a time as the parser asks for them (through a {@link TokenBuffer}).
+ *
+ * The text is scanned in a char window that is refilled from a Reader or a
+ * memory-mapped file as scanning reaches its end, so a script read that way
+ * never has to be in memory as a whole. A window only grows when a single
+ * token does not fit. Fixed tokens (operators, punctuation, keywords) share
+ * constant lexemes; other lexemes are copied straight out of the window.
+ * Keywords are recognized with a perfect hash and identifiers interned in
+ * the lexer's own {@link Symbols} straight from the window, so neither
+ * allocates a String once the name has been seen.
+ */
 public class Lexer {
-    private final String input;
+    private static final int WINDOW = 8192;
+    private static final String ENCRYPTED_PREFIX = "@ENC";
+
+    private static final String[] KEYWORDS = {
+            "use", "print", "if", "else", "for", "to", "input", "while", "function", "return", "true", "false" };
+    private static final TokenType[] KEYWORD_TYPES = {
+            TokenType.USE, TokenType.PRINT, TokenType.IF, TokenType.ELSE, TokenType.FOR, TokenType.TO,
+            TokenType.INPUT, TokenType.WHILE, TokenType.FUNCTION, TokenType.RETURN, TokenType.BOOLEAN,
+            TokenType.BOOLEAN };
+    // Perfect hash table over KEYWORDS, see keywordHash
+    private static final int KEYWORD_TABLE_SIZE = 16;
+    private static final String[] KEYWORD_TABLE = new String[KEYWORD_TABLE_SIZE];
+    private static final int[] KEYWORD_INDEX = new int[KEYWORD_TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            String keyword = KEYWORDS[i];
+            int index = keywordHash(keyword.charAt(0), keyword.charAt(keyword.length() - 1), keyword.length());
+            if (KEYWORD_TABLE[index] != null) {
+                throw new IllegalStateException("Keyword hash collision: " + keyword + ", " + KEYWORD_TABLE[index]);
+            }
+            KEYWORD_TABLE[index] = keyword;
+            KEYWORD_INDEX[index] = i;
+        }
+    }
+
+    // Where more text comes from once the window is used up; neither for a String
+    private final Reader reader;
+    private final ByteBuffer bytes; // a mapped file, decoded as UTF-8
+    private final CharsetDecoder decoder;
+    private boolean drained; // nothing more to read
+
+    private char[] buf;
+    private int limit; // end of the text in buf
+    private int base; // offset in the whole text of buf[0]
     private int pos;
-    private final int length;
+    private int start; // where in buf the current token starts
     private int line;
     private int column;
+    private final Symbols names = new Symbols(); // the identifiers read so far
+
+    // The token scan() found last
+    private String text;
+    private int tokenLine;
+    private int tokenColumn;
 
     public Lexer(String input) {
-        this.input = input;
-        this.pos = 0;
-        this.length = input.length();
+        this(input.toCharArray(), null, null);
+    }
+
+    /**
+     * A lexer that reads its text from {@code reader} as it goes. The reader
+     * is not closed.
+     */
+    public Lexer(Reader reader) {
+        this(new char[WINDOW], reader, null);
+    }
+
+    /**
+     * A lexer over {@code text} that starts at a token boundary at
+     * {@code offset}, which is at the given line and column. Offsets of the
+     * tokens are from the start of text.
+     */
+    Lexer(char[] text, int offset, int line, int column) {
+        this(text, null, null);
+        this.pos = offset;
+        this.line = line;
+        this.column = column;
+    }
+
+    private Lexer(char[] text, Reader reader, ByteBuffer bytes) {
+        this.buf = text;
+        this.reader = reader;
+        this.bytes = bytes;
+        this.limit = reader == null && bytes == null ? text.length : 0;
+        this.drained = limit == text.length;
+        this.decoder = bytes == null ? null
+                : StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
         this.line = 1;
         this.column = 1;
     }
 
+    /**
+     * A lexer over a file, which is memory-mapped and decoded a window at a
+     * time. Files too large to map in one piece are read through a Reader.
+     */
+    public static Lexer forFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return new Lexer(Files.newBufferedReader(path, StandardCharsets.UTF_8));
+            }
+            // The mapping stays valid after the channel is closed
+            return new Lexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * A lexer over UTF-8 text, such as a mapped file. Reads from the
+     * buffer's position to its limit.
+     */
+    Lexer(ByteBuffer bytes) {
+        this(new char[WINDOW], null, bytes);
+    }
+
     private boolean isAtEnd() {
-        return pos >= length;
+        return pos >= limit && !fill(1);
     }
 
     private char peek() {
-        return isAtEnd() ? '\0' : input.charAt(pos);
+        return isAtEnd() ? '\0' : buf[pos];
     }
 
     private char peekNext() {
-        return (pos + 1 >= length) ? '\0' : input.charAt(pos + 1);
+        return (pos + 1 >= limit && !fill(2)) ? '\0' : buf[pos + 1];
     }
 
     private char advance() {
-        char c = input.charAt(pos++);
+        char c = buf[pos++];
         if (c == '\n') {
             line++;
             column = 1;
@@ -42,18 +159,85 @@ public class Lexer {
     }
 
     private boolean match(char expected) {
-        if (isAtEnd() || input.charAt(pos) != expected)
+        if (isAtEnd() || buf[pos] != expected)
             return false;
         pos++;
         column++;
         return true;
     }
 
+    /**
+     * Makes at least {@code needed} characters from pos on available, if the
+     * text has that many left. Keeps the current token in the window.
+     */
+    private boolean fill(int needed) {
+        while (limit - pos < needed) {
+            if (drained) {
+                return false;
+            }
+            if (start > 0) {
+                // Drop the text before the current token
+                System.arraycopy(buf, start, buf, 0, limit - start);
+                base += start;
+                limit -= start;
+                pos -= start;
+                start = 0;
+            } else if (buf.length - limit < 2) {
+                // A token longer than the window (and room for a surrogate pair)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            read();
+        }
+        return true;
+    }
+
+    private void read() {
+        if (reader != null) {
+            try {
+                int n = reader.read(buf, limit, buf.length - limit);
+                if (n < 0) {
+                    drained = true;
+                } else {
+                    limit += n;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Lexer Error - cannot read input: " + e.getMessage());
+            }
+            return;
+        }
+        CharBuffer out = CharBuffer.wrap(buf, limit, buf.length - limit);
+        decoder.decode(bytes, out, true);
+        if (!bytes.hasRemaining()) {
+            decoder.flush(out);
+            drained = true;
+        }
+        limit = out.position();
+    }
+
     public List<Token> tokenize() {
         List<Token> tokens = new ArrayList<>();
+        TokenType type;
+        do {
+            type = scan();
+            tokens.add(new Token(type, text, tokenLine, tokenColumn));
+        } while (type != TokenType.EOF);
+        return tokens;
+    }
+
+    /**
+     * Scans the next token into a buffer.
+     */
+    void next(TokenBuffer tokens) {
+        TokenType type = scan();
+        tokens.add(type, text, base + start, pos - start, tokenLine, tokenColumn);
+    }
+
+    // Scans the next token, leaving its lexeme and position in the token fields
+    private TokenType scan() {
         while (!isAtEnd()) {
-            int startLine = line;
-            int startColumn = column;
+            start = pos;
+            tokenLine = line;
+            tokenColumn = column;
             char c = advance();
             switch (c) {
                 case ' ':
@@ -63,191 +247,184 @@ public class Lexer {
                     // Skip whitespace
                     break;
                 case '.':
-                    tokens.add(new Token(TokenType.DOT, ".", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.DOT, ".");
                 case '+':
                     if (match('+')) {
-                        tokens.add(new Token(TokenType.PLUS_PLUS, "++", startLine, startColumn));
+                        return fixed(TokenType.PLUS_PLUS, "++");
                     } else if (match('=')) {
-                        tokens.add(new Token(TokenType.PLUS_EQ, "+=", startLine, startColumn));
-                    } else {
-                        tokens.add(new Token(TokenType.PLUS, "+", startLine, startColumn));
+                        return fixed(TokenType.PLUS_EQ, "+=");
                     }
-                    break;
+                    return fixed(TokenType.PLUS, "+");
                 case '-':
                     if (match('-')) {
-                        tokens.add(new Token(TokenType.MINUS_MINUS, "--", startLine, startColumn));
+                        return fixed(TokenType.MINUS_MINUS, "--");
                     } else if (match('=')) {
-                        tokens.add(new Token(TokenType.MINUS_EQ, "-=", startLine, startColumn));
+                        return fixed(TokenType.MINUS_EQ, "-=");
                     } else if (match('>')) {
-                        tokens.add(new Token(TokenType.ARROW, "->", startLine, startColumn));
-                    } else {
-                        tokens.add(new Token(TokenType.MINUS, "-", startLine, startColumn));
+                        return fixed(TokenType.ARROW, "->");
                     }
-                    break;
+                    return fixed(TokenType.MINUS, "-");
                 case '*':
                     if (match('=')) {
-                        tokens.add(new Token(TokenType.STAR_EQ, "*=", startLine, startColumn));
-                    } else {
-                        tokens.add(new Token(TokenType.STAR, "*", startLine, startColumn));
+                        return fixed(TokenType.STAR_EQ, "*=");
                     }
-                    break;
+                    return fixed(TokenType.STAR, "*");
                 case '/':
                     if (match('=')) {
-                        tokens.add(new Token(TokenType.SLASH_EQ, "/=", startLine, startColumn));
+                        return fixed(TokenType.SLASH_EQ, "/=");
                     } else if (match('/')) {
                         // Comment, consume until end of line
                         while (!isAtEnd() && peek() != '\n')
                             advance();
-                    } else {
-                        tokens.add(new Token(TokenType.SLASH, "/", startLine, startColumn));
+                        break;
                     }
-                    break;
+                    return fixed(TokenType.SLASH, "/");
                 case '%':
-                    tokens.add(new Token(TokenType.MOD, "%", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.MOD, "%");
                 case '=':
                     if (match('=')) {
-                        tokens.add(new Token(TokenType.EQ_EQ, "==", startLine, startColumn));
-                    } else {
-                        tokens.add(new Token(TokenType.ASSIGN, "=", startLine, startColumn));
+                        return fixed(TokenType.EQ_EQ, "==");
                     }
-                    break;
+                    return fixed(TokenType.ASSIGN, "=");
                 case '!':
                     if (match('=')) {
-                        tokens.add(new Token(TokenType.NOT_EQ, "!=", startLine, startColumn));
-                    } else {
-                        tokens.add(new Token(TokenType.NOT, "!", startLine, startColumn));
+                        return fixed(TokenType.NOT_EQ, "!=");
                     }
-                    break;
+                    return fixed(TokenType.NOT, "!");
                 case '>':
                     if (match('=')) {
-                        tokens.add(new Token(TokenType.GT_EQ, ">=", startLine, startColumn));
-                    } else {
-                        tokens.add(new Token(TokenType.GT, ">", startLine, startColumn));
+                        return fixed(TokenType.GT_EQ, ">=");
                     }
-                    break;
+                    return fixed(TokenType.GT, ">");
                 case '<':
                     if (match('=')) {
-                        tokens.add(new Token(TokenType.LT_EQ, "<=", startLine, startColumn));
-                    } else {
-                        tokens.add(new Token(TokenType.LT, "<", startLine, startColumn));
+                        return fixed(TokenType.LT_EQ, "<=");
                     }
-                    break;
+                    return fixed(TokenType.LT, "<");
                 case '&':
                     if (match('&')) {
-                        tokens.add(new Token(TokenType.AND_AND, "&&", startLine, startColumn));
-                    } else {
-                        error(startLine, startColumn, "Unexpected character '&'");
+                        return fixed(TokenType.AND_AND, "&&");
                     }
-                    break;
+                    throw error(tokenLine, tokenColumn, "Unexpected character '&'");
                 case '|':
                     if (match('|')) {
-                        tokens.add(new Token(TokenType.OR_OR, "||", startLine, startColumn));
-                    } else {
-                        error(startLine, startColumn, "Unexpected character '|'");
+                        return fixed(TokenType.OR_OR, "||");
                     }
-                    break;
+                    throw error(tokenLine, tokenColumn, "Unexpected character '|'");
                 case '{':
-                    tokens.add(new Token(TokenType.LBRACE, "{", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.LBRACE, "{");
+                case '#':
+                    if (match('{')) {
+                        return fixed(TokenType.HASH_LBRACE, "#{");
+                    }
+                    throw error(tokenLine, tokenColumn, "Unexpected character '#'");
                 case '}':
-                    tokens.add(new Token(TokenType.RBRACE, "}", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.RBRACE, "}");
                 case '(':
-                    tokens.add(new Token(TokenType.LPAREN, "(", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.LPAREN, "(");
                 case ')':
-                    tokens.add(new Token(TokenType.RPAREN, ")", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.RPAREN, ")");
                 case '[':
-                    tokens.add(new Token(TokenType.LBRACKET, "[", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.LBRACKET, "[");
                 case ']':
-                    tokens.add(new Token(TokenType.RBRACKET, "]", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.RBRACKET, "]");
                 case ',':
-                    tokens.add(new Token(TokenType.COMMA, ",", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.COMMA, ",");
+                case ':':
+                    return fixed(TokenType.COLON, ":");
                 case ';':
-                    tokens.add(new Token(TokenType.SEMICOLON, ";", startLine, startColumn));
-                    break;
+                    return fixed(TokenType.SEMICOLON, ";");
                 case '"':
-                    tokens.add(new Token(TokenType.STRING, readString(), startLine, startColumn));
-                    break;
+                    text = readString();
+                    return TokenType.STRING;
                 default:
                     if (isDigit(c)) {
-                        tokens.add(numberToken(c, startLine, startColumn));
+                        return numberToken();
                     } else if (isAlpha(c) || c == '@') {
-                        tokens.add(identifierToken(c, startLine, startColumn));
-                    } else {
-                        error(startLine, startColumn, "Unexpected character '" + c + "'");
+                        return identifierToken();
                     }
+                    throw error(tokenLine, tokenColumn, "Unexpected character '" + c + "'");
             }
         }
-        tokens.add(new Token(TokenType.EOF, "", line, column));
-        return tokens;
+        start = pos;
+        tokenLine = line;
+        tokenColumn = column;
+        return fixed(TokenType.EOF, "");
     }
 
-    private String readAtIdentifier(char first) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(first);
-        while (!isAtEnd() && isAlphaNumeric(peek())) {
-            sb.append(advance());
-        }
-        return sb.toString();
+    private TokenType fixed(TokenType type, String lexeme) {
+        text = lexeme;
+        return type;
     }
 
-    private Token identifierToken(char first, int startLine, int startColumn) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(first);
+    private TokenType identifierToken() {
         while (!isAtEnd() && isAlphaNumeric(peek())) {
-            sb.append(advance());
+            advance();
+        }
+        int length = pos - start;
+
+        boolean isEncrypted = startsWith(ENCRYPTED_PREFIX, 0);
+        if (buf[start] == '@') {
+            // Check if identifier starts with @EVENT_TRIGGER
+            if (startsWith("@EVENT_TRIGGER", 0)) {
+                text = new String(buf, start, length);
+                return TokenType.EVENT_TRIGGER;
+            }
+            if (length == 5 && startsWith("@MEMO", 0)) {
+                return fixed(TokenType.MEMO, "@MEMO");
+            }
+        }
+
+        // Keywords, also after @ENC (with the prefix kept in the lexeme)
+        int from = isEncrypted ? ENCRYPTED_PREFIX.length() : 0;
+        int keyword = keyword(from, length - from);
+        if (keyword >= 0) {
+            text = isEncrypted ? new String(buf, start, length) : KEYWORDS[keyword];
+            return KEYWORD_TYPES[keyword];
         }
-        String word = sb.toString();
 
-        boolean isEncrypted = false;
-        String actualName = word;
-        if (word.startsWith("@ENC")) {
-            isEncrypted = true;
-            actualName = word.substring(4); // Remove @ENC
+        text = names.name(names.intern(buf, start, length));
+        return TokenType.IDENTIFIER;
+    }
+
+    // The KEYWORDS entry spelled by the length chars at start + from, or -1
+    private int keyword(int from, int length) {
+        if (length < 2) {
+            return -1;
         }
+        int first = start + from;
+        int index = keywordHash(buf[first], buf[first + length - 1], length);
+        String candidate = KEYWORD_TABLE[index];
+        if (candidate == null || candidate.length() != length) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            if (candidate.charAt(i) != buf[first + i]) {
+                return -1;
+            }
+        }
+        return KEYWORD_INDEX[index];
+    }
 
-        // Check if identifier starts with @EVENT_TRIGGER
-        if (word.startsWith("@EVENT_TRIGGER")) {
-            return new Token(TokenType.EVENT_TRIGGER, word, startLine, startColumn);
+    // Whether the current token has prefix at offset from
+    private boolean startsWith(String prefix, int from) {
+        if (pos - start - from < prefix.length()) {
+            return false;
         }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[start + from + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // Additional keywords
-        if (actualName.equals("use"))
-            return new Token(TokenType.USE, word, startLine, startColumn);
-        if (actualName.equals("print"))
-            return new Token(TokenType.PRINT, word, startLine, startColumn);
-        if (actualName.equals("if"))
-            return new Token(TokenType.IF, word, startLine, startColumn);
-        if (actualName.equals("else"))
-            return new Token(TokenType.ELSE, word, startLine, startColumn);
-        if (actualName.equals("for"))
-            return new Token(TokenType.FOR, word, startLine, startColumn);
-        if (actualName.equals("to"))
-            return new Token(TokenType.TO, word, startLine, startColumn);
-        if (actualName.equals("input"))
-            return new Token(TokenType.INPUT, word, startLine, startColumn);
-        if (actualName.equals("while"))
-            return new Token(TokenType.WHILE, word, startLine, startColumn);
-        if (actualName.equals("function"))
-            return new Token(TokenType.FUNCTION, word, startLine, startColumn);
-        if (actualName.equals("return"))
-            return new Token(TokenType.RETURN, word, startLine, startColumn);
-        if (actualName.equals("true") || actualName.equals("false"))
-            return new Token(TokenType.BOOLEAN, word, startLine, startColumn);
-
-        return new Token(TokenType.IDENTIFIER, word, startLine, startColumn);
+    // Collision-free for KEYWORDS (checked when the class loads)
+    private static int keywordHash(char first, char last, int length) {
+        return (first * 6 + last + length * 11) & (KEYWORD_TABLE_SIZE - 1);
     }
 
-    private Token numberToken(char first, int startLine, int startColumn) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(first);
+    private TokenType numberToken() {
         boolean hasDot = false;
         while (!isAtEnd() && (isDigit(peek()) || peek() == '.')) {
             if (peek() == '.') {
@@ -255,16 +432,23 @@ public class Lexer {
                     break;
                 hasDot = true;
             }
-            sb.append(advance());
+            advance();
         }
-        return new Token(TokenType.NUMBER, sb.toString(), startLine, startColumn);
+        text = new String(buf, start, pos - start);
+        return TokenType.NUMBER;
     }
 
     private String readString() {
-        StringBuilder sb = new StringBuilder();
+        // Offsets from start, which stays put while the window moves
+        int from = pos - start;
+        StringBuilder sb = null; // only once there is an escape
         while (!isAtEnd() && peek() != '"') {
             char c = advance();
             if (c == '\\') {
+                if (sb == null) {
+                    sb = new StringBuilder();
+                    sb.append(buf, start + from, pos - 1 - start - from);
+                }
                 if (!isAtEnd()) {
                     char next = advance();
                     switch (next) {
@@ -285,20 +469,21 @@ public class Lexer {
                             break;
                     }
                 }
-            } else {
+            } else if (sb != null) {
                 sb.append(c);
             }
         }
+        int to = pos - start;
         if (!isAtEnd())
             advance(); // consume the closing quote
         else {
-            throw new RuntimeException("Unterminated string literal at line " + line + ", column " + column);
+            throw error(tokenLine, tokenColumn, "Unterminated string literal");
         }
-        return sb.toString();
+        return sb != null ? sb.toString() : new String(buf, start + from, to - from);
     }
 
-    private void error(int line, int column, String message) {
-        throw new RuntimeException("Lexer Error at " + line + ":" + column + " - " + message);
+    private RuntimeException error(int line, int column, String message) {
+        return new ParseException("Lexer Error", line, column, message);
     }
 
     private boolean isDigit(char c) {
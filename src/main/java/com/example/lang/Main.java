@@ -2,37 +2,73 @@ package com.example.lang;
 
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class Main {
     public static void main(String[] args) {
         try {
-            if (args.length < 1) {
-                System.err.println("Usage: java Main <script_file>");
+            Interpreter.Engine engine = Interpreter.Engine.TREE;
+            int jitThreshold = -1;
+            int memoCapacity = -1;
+            boolean memoStats = false;
+            boolean useCache = true;
+            long maxSteps = ExecutionBudget.UNLIMITED;
+            long maxMillis = ExecutionBudget.UNLIMITED;
+            long maxBytes = ExecutionBudget.UNLIMITED;
+            String filePath = null;
+            for (String arg : args) {
+                if (arg.startsWith("--engine=")) {
+                    engine = Interpreter.Engine.valueOf(arg.substring("--engine=".length()).toUpperCase());
+                } else if (arg.equals("--jit")) {
+                    jitThreshold = JitCompiler.DEFAULT_THRESHOLD;
+                } else if (arg.startsWith("--jit=")) {
+                    jitThreshold = Integer.parseInt(arg.substring("--jit=".length()));
+                } else if (arg.equals("--memo")) {
+                    memoCapacity = Memoizer.DEFAULT_CAPACITY;
+                } else if (arg.startsWith("--memo=")) {
+                    memoCapacity = Integer.parseInt(arg.substring("--memo=".length()));
+                } else if (arg.equals("--memo-stats")) {
+                    memoStats = true;
+                } else if (arg.equals("--no-cache")) {
+                    useCache = false;
+                } else if (arg.startsWith("--max-steps=")) {
+                    maxSteps = Long.parseLong(arg.substring("--max-steps=".length()));
+                } else if (arg.startsWith("--max-time=")) {
+                    maxMillis = Long.parseLong(arg.substring("--max-time=".length()));
+                } else if (arg.startsWith("--max-memory=")) {
+                    maxBytes = Long.parseLong(arg.substring("--max-memory=".length()));
+                } else if (filePath == null) {
+                    filePath = arg; // Use the first non-option argument
+                }
+            }
+            if (filePath == null) {
+                System.err.println("Usage: java Main [--engine=tree|closure|vm] [--jit[=threshold]] [--memo[=capacity]] [--memo-stats] [--no-cache] [--max-steps=N] [--max-time=ms] [--max-memory=bytes] <script_file>");
                 System.exit(1);
             }
 
-            // Specify the path to your input file
-            String filePath = args[0]; // Use the first argument
-
-            // Read the entire input from the script file
-            String inputCode = readInput(filePath);
-
-            // Initialize Lexer
-            Lexer lexer = new Lexer(inputCode);
-            List<Token> tokens = lexer.tokenize();
-
-            // Initialize Parser
-            Parser parser = new Parser(tokens);
-            List<Node> statements = parser.parse();
+            // Load the program from its .nvc file if the script has not changed since it was
+            // written; otherwise lex and parse the mapped script file, tokenized as the parser goes
+            Path script = Paths.get(filePath);
+            List<Node> statements = useCache ? AstCache.parse(script) : new Parser(Lexer.forFile(script)).parse();
 
             // Initialize Interpreter
-            Interpreter interpreter = new Interpreter();
+            Interpreter interpreter = new Interpreter(engine);
+            if (jitThreshold >= 0) {
+                interpreter.enableJit(jitThreshold);
+            }
+            if (memoCapacity >= 0) {
+                interpreter.enableMemoization(memoCapacity);
+            }
+            interpreter.setBudget(new ExecutionBudget(maxSteps, maxMillis, maxBytes));
 
-            // Execute statements
+            // Execute statements, then let the events the script scheduled run
             interpreter.execute(statements);
+            interpreter.awaitEvents(Long.MAX_VALUE);
+            if (memoStats) {
+                System.err.print(interpreter.getMemoStatistics());
+            }
 
         } catch (RuntimeException e) {
             System.err.println("Error: " + e.getMessage());
@@ -40,10 +76,8 @@ public class Main {
         } catch (IOException e) {
             System.err.println("IO Error: " + e.getMessage());
             e.printStackTrace(); // Optional: Print stack trace for debugging
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-
-    private static String readInput(String filename) throws IOException {
-        return new String(Files.readAllBytes(Paths.get(filename)));
-    }
 }
@@ -0,0 +1,450 @@
+package com.example.lang;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The map type of the language, an open-addressing hash table that keeps
+ * insertion order.
+ *
+ * Entries are appended to dense arrays; a separate power-of-two index maps
+ * hash slots to entry numbers and is probed linearly. Each index slot also
+ * holds the key's hash, so probing past other keys reads only the index and
+ * a lookup touches the entry arrays once. Removing an entry
+ * leaves a hole in the entry arrays and a tombstone in the index, both
+ * dropped when the table is next rebuilt. A map whose keys are all Integers
+ * keeps them in an {@code int[]}, one whose keys are all Strings in a
+ * {@code String[]}; any other key moves it to an {@code Object[]} for good,
+ * like {@link ArrayValue}.
+ *
+ * Keys are normalized first: integral Doubles in int range become Integers,
+ * so {@code m[1]} and {@code m[1.0]} are the same entry. Lists, maps and sets
+ * cannot be keys, since changing them would change their hash.
+ */
+final class MapValue extends AbstractMap<Object, Object> {
+    private static final int INTS = 0;
+    private static final int STRINGS = 1;
+    private static final int OBJECTS = 2;
+
+    private static final long EMPTY = 0; // index slot never used
+    private static final long DELETED = -1; // index slot of a removed entry
+    private static final Object REMOVED = new Object(); // value of a removed entry
+
+    private int kind = INTS;
+    // Entry arrays, in insertion order. Only the key array for the current kind is set
+    private int[] intKeys;
+    private String[] stringKeys;
+    private Object[] objectKeys;
+    private Object[] values;
+    private int count; // entries used, including removed ones
+    private int size;
+
+    // Hash slot to the key's hash in the high half and entry number + 1 in the low half, or EMPTY or DELETED
+    private long[] index;
+    private int used; // index slots that are not EMPTY
+
+    MapValue() {
+        this(8);
+    }
+
+    MapValue(int expected) {
+        int capacity = Math.max(8, expected);
+        intKeys = new int[capacity];
+        values = new Object[capacity];
+        index = new long[indexSizeFor(capacity)];
+    }
+
+    /**
+     * The key a value stands for, or an error for values that cannot be keys.
+     */
+    static Object key(Object value) {
+        // Class checks first: failing interface checks are slow, and most keys are ints or strings
+        if (value instanceof Integer || value instanceof String) {
+            return value;
+        }
+        if (value instanceof Double) {
+            double d = (Double) value;
+            if (d == (int) d) {
+                return (int) d;
+            }
+        } else if (value instanceof List || value instanceof Map || value instanceof Set) {
+            throw new RuntimeException("Unhashable key: " + value);
+        }
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key(key)) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int entry = find(key(key));
+        return entry >= 0 ? values[entry] : null;
+    }
+
+    /**
+     * The value for {@code key}, or an error if there is none.
+     */
+    Object lookup(Object key) {
+        int entry = find(key(key));
+        if (entry < 0) {
+            throw new RuntimeException("Key not found: " + key);
+        }
+        return values[entry];
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        key = key(key);
+        // Made room for first, so one probe finds either the key or where it goes
+        if (!fits(key)) {
+            convert(key);
+        }
+        if (count == values.length) {
+            growEntries();
+        }
+        if ((used + 1) * 3 > index.length * 2) {
+            rebuild(size + 1);
+        }
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            int entry = (int) index[slot] - 1;
+            Object previous = values[entry];
+            values[entry] = value;
+            return previous;
+        }
+        slot = ~slot;
+        int entry = count++;
+        switch (kind) {
+            case INTS:
+                intKeys[entry] = (Integer) key;
+                break;
+            case STRINGS:
+                stringKeys[entry] = (String) key;
+                break;
+            default:
+                objectKeys[entry] = key;
+                break;
+        }
+        values[entry] = value;
+        if (index[slot] == EMPTY) {
+            used++;
+        }
+        index[slot] = slotValue(hash(key), entry);
+        size++;
+        return null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        key = key(key);
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return null;
+        }
+        int entry = (int) index[slot] - 1;
+        Object previous = values[entry];
+        index[slot] = DELETED;
+        values[entry] = REMOVED;
+        if (kind == STRINGS) {
+            stringKeys[entry] = null;
+        } else if (kind == OBJECTS) {
+            objectKeys[entry] = null;
+        }
+        size--;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, 0, count, null);
+        if (stringKeys != null) {
+            Arrays.fill(stringKeys, 0, count, null);
+        }
+        if (objectKeys != null) {
+            Arrays.fill(objectKeys, 0, count, null);
+        }
+        Arrays.fill(index, EMPTY);
+        count = 0;
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * The keys in insertion order.
+     */
+    List<Object> keyList() {
+        List<Object> keys = new ArrayValue(size);
+        for (int entry = 0; entry < count; entry++) {
+            if (values[entry] != REMOVED) {
+                keys.add(keyAt(entry));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public Set<Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Entry<Object, Object>>() {
+            @Override
+            public Iterator<Entry<Object, Object>> iterator() {
+                return new Iterator<Entry<Object, Object>>() {
+                    private int next = skipRemoved(0);
+                    private int last = -1;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < count;
+                    }
+
+                    @Override
+                    public Entry<Object, Object> next() {
+                        if (next >= count) {
+                            throw new NoSuchElementException();
+                        }
+                        last = next;
+                        next = skipRemoved(next + 1);
+                        return new SimpleEntry<>(keyAt(last), values[last]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        MapValue.this.remove(keyAt(last));
+                        last = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int entry = 0; entry < count; entry++) {
+            if (values[entry] != REMOVED) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(keyAt(entry)).append(": ").append(values[entry] == this ? "(this map)" : values[entry]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private int skipRemoved(int entry) {
+        while (entry < count && values[entry] == REMOVED) {
+            entry++;
+        }
+        return entry;
+    }
+
+    private Object keyAt(int entry) {
+        switch (kind) {
+            case INTS:
+                return intKeys[entry];
+            case STRINGS:
+                return stringKeys[entry];
+            default:
+                return objectKeys[entry];
+        }
+    }
+
+    // Entry number of a normalized key, or -1
+    private int find(Object key) {
+        int slot = findSlot(key);
+        return slot < 0 ? -1 : (int) index[slot] - 1;
+    }
+
+    /**
+     * The index slot of a normalized key. If the key is absent, returns
+     * {@code ~slot} for the slot it would be inserted at (valid only for
+     * keys that fit the current kind).
+     */
+    private int findSlot(Object key) {
+        if (!fits(key)) {
+            return -1; // a key of another kind cannot be in the map
+        }
+        int mask = index.length - 1;
+        int hash = hash(key);
+        int free = -1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            long e = index[slot];
+            if (e == EMPTY) {
+                return ~(free >= 0 ? free : slot);
+            }
+            if (e == DELETED) {
+                if (free < 0) {
+                    free = slot;
+                }
+            } else if ((int) (e >>> 32) == hash && matches((int) e - 1, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean matches(int entry, Object key) {
+        switch (kind) {
+            case INTS:
+                return intKeys[entry] == (Integer) key;
+            case STRINGS:
+                return key.equals(stringKeys[entry]);
+            default:
+                return Objects.equals(key, objectKeys[entry]);
+        }
+    }
+
+    private static long slotValue(int hash, int entry) {
+        return (long) hash << 32 | (entry + 1);
+    }
+
+    private boolean fits(Object key) {
+        switch (kind) {
+            case INTS:
+                return key instanceof Integer;
+            case STRINGS:
+                return key instanceof String;
+            default:
+                return true;
+        }
+    }
+
+    // Moves to key storage that can hold key as well as the current keys
+    private void convert(Object key) {
+        int capacity = values.length;
+        if (size == 0) {
+            // Nothing to keep: start over with the kind of the new key
+            clear();
+            intKeys = null;
+            stringKeys = null;
+            objectKeys = null;
+            if (key instanceof String) {
+                kind = STRINGS;
+                stringKeys = new String[capacity];
+            } else {
+                kind = OBJECTS;
+                objectKeys = new Object[capacity];
+            }
+            return;
+        }
+        Object[] keys = new Object[capacity];
+        for (int entry = 0; entry < count; entry++) {
+            if (values[entry] != REMOVED) {
+                keys[entry] = keyAt(entry);
+            }
+        }
+        intKeys = null;
+        stringKeys = null;
+        objectKeys = keys;
+        kind = OBJECTS; // hashes do not depend on the kind, so the index stays valid
+    }
+
+    private void growEntries() {
+        if (size < count * 3 / 4) {
+            rebuild(size); // a quarter or more are holes: compacting makes room
+            if (count < values.length) {
+                return;
+            }
+        }
+        int capacity = values.length + (values.length >> 1) + 1;
+        values = Arrays.copyOf(values, capacity);
+        switch (kind) {
+            case INTS:
+                intKeys = Arrays.copyOf(intKeys, capacity);
+                break;
+            case STRINGS:
+                stringKeys = Arrays.copyOf(stringKeys, capacity);
+                break;
+            default:
+                objectKeys = Arrays.copyOf(objectKeys, capacity);
+                break;
+        }
+    }
+
+    // Drops removed entries and rehashes into an index sized for at least `expected` entries
+    private void rebuild(int expected) {
+        // The hashes are only kept in the index
+        int[] hashes = new int[count];
+        for (long e : index) {
+            if (e != EMPTY && e != DELETED) {
+                hashes[(int) e - 1] = (int) (e >>> 32);
+            }
+        }
+        int live = 0;
+        for (int entry = 0; entry < count; entry++) {
+            if (values[entry] == REMOVED) {
+                continue;
+            }
+            if (live != entry) {
+                values[live] = values[entry];
+                hashes[live] = hashes[entry];
+                switch (kind) {
+                    case INTS:
+                        intKeys[live] = intKeys[entry];
+                        break;
+                    case STRINGS:
+                        stringKeys[live] = stringKeys[entry];
+                        break;
+                    default:
+                        objectKeys[live] = objectKeys[entry];
+                        break;
+                }
+            }
+            live++;
+        }
+        Arrays.fill(values, live, count, null);
+        if (kind == STRINGS) {
+            Arrays.fill(stringKeys, live, count, null);
+        } else if (kind == OBJECTS) {
+            Arrays.fill(objectKeys, live, count, null);
+        }
+        count = live;
+        index = new long[indexSizeFor(Math.max(expected, live))];
+        int mask = index.length - 1;
+        for (int entry = 0; entry < count; entry++) {
+            int slot = hashes[entry] & mask;
+            while (index[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = slotValue(hashes[entry], entry);
+        }
+        used = count;
+    }
+
+    // Keeps the index at most two thirds full
+    private static int indexSizeFor(int entries) {
+        int needed = entries * 3 / 2 + 1;
+        return Integer.highestOneBit(Math.max(16, needed - 1)) << 1;
+    }
+
+    private static int hash(Object key) {
+        return mix(key == null ? 0 : key.hashCode());
+    }
+
+    // Spreads the bits so consecutive ints do not fill runs of adjacent slots
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the results of pure user functions, keyed by argument values.
+ * Functions marked with {@code @MEMO} are cached; in global mode every pure
+ * function is. Each function gets its own cache of at most
+ * {@code capacity} entries, evicting the least recently used one.
+ *
+ * A function is pure if neither it nor anything it calls prints, reads
+ * input, calls library methods, stores into lists, defines functions,
+ * schedules events, uses encrypted variables or reads global variables.
+ * Its locals must stay local: when a global of the same name exists at call
+ * time, writes would go to the global, so the call is not cached. Only calls
+ * whose arguments are plain numbers, strings or booleans are cached, and
+ * list results are not, since lists can be modified afterwards.
+ */
+class Memoizer {
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    /**
+     * Result cache of one function, in least recently used order.
+     */
+    static class Table extends LinkedHashMap<Object, Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        final int[] localGlobalSlots; // globals that must stay undefined for the locals to be local
+        long hits;
+        long misses;
+        long evictions;
+
+        Table(int capacity, int[] localGlobalSlots) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.localGlobalSlots = localGlobalSlots;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            if (size() > capacity) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Interpreter in;
+    private final boolean all;
+    private final int capacity;
+    // Every function that got a table, for the statistics
+    private final List<FunctionDefNode> memoized = new ArrayList<>();
+
+    Memoizer(Interpreter in, boolean all, int capacity) {
+        this.in = in;
+        this.all = all;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cache for a call of {@code func} with the given frame, or
+     * null if the call must run uncached.
+     */
+    Table table(FunctionDefNode func, Object[] locals) {
+        if (!func.memoize && !all) {
+            return null;
+        }
+        // Functions were (re)defined since the last check, so callees and cached results may be stale
+        if (func.memoVersion != in.functionsVersion()) {
+            func.memoVersion = in.functionsVersion();
+            int[] slots = pureGlobalSlots(func);
+            Table previous = func.memo;
+            func.memo = slots != null ? new Table(capacity, slots) : null;
+            if (previous != null && func.memo != null) {
+                func.memo.hits = previous.hits;
+                func.memo.misses = previous.misses;
+                func.memo.evictions = previous.evictions;
+            } else if (func.memo != null && !memoized.contains(func)) {
+                memoized.add(func);
+            }
+        }
+        Table table = func.memo;
+        if (table == null) {
+            return null;
+        }
+        for (int globalSlot : table.localGlobalSlots) {
+            if (in.globals[globalSlot] != Interpreter.UNDEFINED) {
+                return null;
+            }
+        }
+        for (int i = 0; i < func.parameters.size(); i++) {
+            Object arg = locals[i];
+            if (arg != null && !(arg instanceof Number) && !(arg instanceof String) && !(arg instanceof Boolean)) {
+                return null;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Cache key for the arguments in a frame. Integer 1 and Double 1.0 are
+     * different keys, as they print differently.
+     */
+    static Object key(FunctionDefNode func, Object[] locals) {
+        int arity = func.parameters.size();
+        if (arity == 1) {
+            return locals[0];
+        }
+        return Arrays.asList(Arrays.copyOf(locals, arity));
+    }
+
+    /**
+     * @return The cached result, or {@link Interpreter#UNDEFINED} on a miss.
+     */
+    static Object lookup(Table table, Object key) {
+        Object result = table.getOrDefault(key, Interpreter.UNDEFINED);
+        if (result == Interpreter.UNDEFINED) {
+            table.misses++;
+        } else {
+            table.hits++;
+        }
+        return result;
+    }
+
+    static void store(Table table, Object key, Object result) {
+        if (!(result instanceof Collection) && !(result instanceof Map)) {
+            table.put(key, result);
+        }
+    }
+
+    /**
+     * One line per cached function: hits, misses, evictions and size.
+     */
+    String statistics() {
+        StringBuilder sb = new StringBuilder();
+        for (FunctionDefNode func : memoized) {
+            Table table = func.memo;
+            if (table == null) {
+                continue;
+            }
+            long calls = table.hits + table.misses;
+            sb.append(String.format("memo %s: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries%n",
+                    func.name, table.hits, table.misses, calls == 0 ? 0.0 : 100.0 * table.hits / calls,
+                    table.evictions, table.size()));
+        }
+        return sb.toString();
+    }
+
+    // Purity analysis
+
+    /**
+     * Checks that {@code func} and everything it calls is pure.
+     *
+     * @return The global slots that must be undefined at call time, or null
+     *         if the function is not pure.
+     */
+    private int[] pureGlobalSlots(FunctionDefNode func) {
+        Set<Integer> slots = new HashSet<>();
+        if (!isPure(func, new HashSet<>(), slots)) {
+            return null;
+        }
+        return slots.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    private boolean isPure(FunctionDefNode func, Set<FunctionDefNode> visiting, Set<Integer> slots) {
+        if (!visiting.add(func)) {
+            return true; // recursion: pure if the rest of the cycle is
+        }
+        Set<String> assigned = new HashSet<>();
+        collectAssigned(func.body, assigned);
+        for (Node stmt : func.body) {
+            if (!isPure(stmt, assigned, visiting, slots)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isPure(Node node, Set<String> assigned, Set<FunctionDefNode> visiting, Set<Integer> slots) {
+        if (node == null || node instanceof LiteralNode) {
+            return true;
+        }
+        if (node instanceof PrintNode || node instanceof InputNode || node instanceof ObjectMethodCallNode
+                || node instanceof AssignIndexNode || node instanceof FunctionDefNode
+                || node instanceof EventTriggerNode || node instanceof UseNode) {
+            return false;
+        }
+        if (node instanceof VariableNode) {
+            VariableNode var = (VariableNode) node;
+            return !var.encrypted && isLocal(var.name, var.slot, var.globalSlot, assigned, slots);
+        }
+        if (node instanceof AssignNode) {
+            AssignNode assign = (AssignNode) node;
+            return !assign.encrypted && isLocal(assign.name, assign.slot, assign.globalSlot, assigned, slots)
+                    && isPure(assign.value, assigned, visiting, slots);
+        }
+        if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            FunctionDefNode callee = in.function(call.symbol);
+            if (callee == null || callee.parameters.size() != call.arguments.size()
+                    || !isPure(callee, visiting, slots)) {
+                return false;
+            }
+            for (Node arg : call.arguments) {
+                if (!isPure(arg, assigned, visiting, slots)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (Node child : children(node)) {
+            if (!isPure(child, assigned, visiting, slots)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parameters are always local; other names only if the function assigns them
+    private boolean isLocal(String name, int slot, int globalSlot, Set<String> assigned, Set<Integer> slots) {
+        if (slot < 0) {
+            return false;
+        }
+        if (globalSlot < 0) {
+            return true;
+        }
+        if (!assigned.contains(name)) {
+            return false; // only ever read, so it refers to a global
+        }
+        slots.add(globalSlot);
+        return true;
+    }
+
+    private void collectAssigned(List<Node> statements, Set<String> assigned) {
+        if (statements == null) {
+            return;
+        }
+        for (Node stmt : statements) {
+            collectAssigned(stmt, assigned);
+        }
+    }
+
+    private void collectAssigned(Node node, Set<String> assigned) {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof AssignNode) {
+            assigned.add(((AssignNode) node).name);
+        } else if (node instanceof UnaryNode && ((UnaryNode) node).expr instanceof VariableNode) {
+            assigned.add(((VariableNode) ((UnaryNode) node).expr).name);
+        }
+        for (Node child : children(node)) {
+            collectAssigned(child, assigned);
+        }
+    }
+
+    // Sub-nodes of the node types a pure function may contain
+    private static List<Node> children(Node node) {
+        List<Node> children = new ArrayList<>();
+        if (node instanceof BinaryNode) {
+            children.add(((BinaryNode) node).left);
+            children.add(((BinaryNode) node).right);
+        } else if (node instanceof UnaryNode) {
+            children.add(((UnaryNode) node).expr);
+        } else if (node instanceof AssignNode) {
+            children.add(((AssignNode) node).value);
+        } else if (node instanceof ArrayLiteralNode) {
+            children.addAll(((ArrayLiteralNode) node).elements);
+        } else if (node instanceof MapLiteralNode) {
+            children.addAll(((MapLiteralNode) node).keys);
+            children.addAll(((MapLiteralNode) node).values);
+        } else if (node instanceof SetLiteralNode) {
+            children.addAll(((SetLiteralNode) node).elements);
+        } else if (node instanceof IndexNode) {
+            children.add(((IndexNode) node).target);
+            children.add(((IndexNode) node).index);
+        } else if (node instanceof FunctionCallNode) {
+            children.addAll(((FunctionCallNode) node).arguments);
+        } else if (node instanceof ExpressionStatement) {
+            children.add(((ExpressionStatement) node).expr);
+        } else if (node instanceof ReturnNode) {
+            children.add(((ReturnNode) node).value);
+        } else if (node instanceof IfNode) {
+            children.add(((IfNode) node).condition);
+            addAll(children, ((IfNode) node).ifBranch);
+            addAll(children, ((IfNode) node).elseBranch);
+        } else if (node instanceof ForNode) {
+            children.add(((ForNode) node).initialization);
+            children.add(((ForNode) node).condition);
+            children.add(((ForNode) node).increment);
+            addAll(children, ((ForNode) node).body);
+        } else if (node instanceof WhileNode) {
+            children.add(((WhileNode) node).condition);
+            addAll(children, ((WhileNode) node).body);
+        }
+        children.removeIf(child -> child == null);
+        return children;
+    }
+
+    private static void addAll(List<Node> children, List<Node> statements) {
+        if (statements != null) {
+            children.addAll(statements);
+        }
+    }
+}
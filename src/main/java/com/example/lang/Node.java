@@ -0,0 +1,10 @@
+package com.example.lang;
+
+/**
+ * A node of the syntax tree. {@link Parser} builds them and
+ * {@link Interpreter} runs them; the node classes themselves are internal to
+ * this package. Nodes are filled in and changed as the program runs, so a
+ * tree must not be run by two interpreters at the same time.
+ */
+public abstract class Node {
+}
@@ -0,0 +1,210 @@
+package com.example.lang;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Exact arithmetic for the numeric tower. Integer values are stored in the
+ * narrowest of Integer, Long and BigInteger that holds them; arithmetic on
+ * integral operands is exact and widens only when a result overflows.
+ * BigDecimal is used when a Long or BigInteger meets a fraction, where a
+ * double would lose the integer's low digits.
+ *
+ * Operands that are plain Integers and Doubles never get here: the
+ * interpreter keeps its int and double fast paths for those and only calls
+ * in for integral results that may not fit an int, and for wide operands.
+ */
+final class Numbers {
+    private static final MathContext DIVISION = MathContext.DECIMAL128;
+    // 2^63: doubles below it in magnitude convert to long exactly when integral
+    private static final double LONG_RANGE = 9.223372036854775808E18;
+
+    private Numbers() {
+    }
+
+    static boolean isWide(Object value) {
+        return value instanceof Long || value instanceof BigInteger || value instanceof BigDecimal;
+    }
+
+    /**
+     * Parses an integer literal into the narrowest type that holds it.
+     */
+    static Number parseInteger(String digits) {
+        if (digits.length() < 10) {
+            return Integer.parseInt(digits);
+        }
+        return narrow(new BigInteger(digits));
+    }
+
+    static Number narrow(long value) {
+        return (int) value == value ? (Number) (int) value : (Number) value;
+    }
+
+    static Number narrow(BigInteger value) {
+        return value.bitLength() < 64 ? narrow(value.longValue()) : value;
+    }
+
+    /**
+     * Applies an arithmetic or comparison operator. At least one operand is
+     * wide, or both are integral; other operands are Integer or Double.
+     */
+    static Object apply(Number left, Number right, TokenType op) {
+        if (isLong(left) && isLong(right)) {
+            Object result = applyLong(left.longValue(), right.longValue(), op);
+            if (result != null) {
+                return result;
+            }
+        }
+        BigInteger a = toBigInteger(left);
+        BigInteger b = toBigInteger(right);
+        if (a != null && b != null) {
+            return applyBig(a, b, op);
+        }
+        BigDecimal x = toBigDecimal(left);
+        BigDecimal y = toBigDecimal(right);
+        if (x == null || y == null) {
+            return null; // infinity or NaN: the caller falls back to double
+        }
+        return applyDecimal(x, y, op);
+    }
+
+    // Returns null on overflow
+    private static Object applyLong(long a, long b, TokenType op) {
+        try {
+            switch (op) {
+                case PLUS:
+                    return narrow(Math.addExact(a, b));
+                case MINUS:
+                    return narrow(Math.subtractExact(a, b));
+                case STAR:
+                    return narrow(Math.multiplyExact(a, b));
+                case SLASH:
+                    if (b == 0) {
+                        throw new RuntimeException("Division by zero");
+                    }
+                    return a == Long.MIN_VALUE && b == -1 ? null : narrow(a / b);
+                case MOD:
+                    if (b == 0) {
+                        throw new RuntimeException("Division by zero");
+                    }
+                    return narrow(a % b);
+                default:
+                    return compare(Long.compare(a, b), op);
+            }
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    private static Object applyBig(BigInteger a, BigInteger b, TokenType op) {
+        switch (op) {
+            case PLUS:
+                return narrow(a.add(b));
+            case MINUS:
+                return narrow(a.subtract(b));
+            case STAR:
+                return narrow(a.multiply(b));
+            case SLASH:
+                if (b.signum() == 0) {
+                    throw new RuntimeException("Division by zero");
+                }
+                return narrow(a.divide(b));
+            case MOD:
+                if (b.signum() == 0) {
+                    throw new RuntimeException("Division by zero");
+                }
+                return narrow(a.remainder(b));
+            default:
+                return compare(a.compareTo(b), op);
+        }
+    }
+
+    private static Object applyDecimal(BigDecimal x, BigDecimal y, TokenType op) {
+        switch (op) {
+            case PLUS:
+                return x.add(y);
+            case MINUS:
+                return x.subtract(y);
+            case STAR:
+                return x.multiply(y);
+            case SLASH:
+                if (y.signum() == 0) {
+                    throw new RuntimeException("Division by zero");
+                }
+                return x.divide(y, DIVISION);
+            case MOD:
+                // Like the double case, % works on the integer parts
+                return applyBig(x.toBigInteger(), y.toBigInteger(), op);
+            default:
+                return compare(x.compareTo(y), op);
+        }
+    }
+
+    private static Object compare(int comparison, TokenType op) {
+        switch (op) {
+            case EQ_EQ:
+                return comparison == 0;
+            case NOT_EQ:
+                return comparison != 0;
+            case GT:
+                return comparison > 0;
+            case LT:
+                return comparison < 0;
+            case GT_EQ:
+                return comparison >= 0;
+            case LT_EQ:
+                return comparison <= 0;
+            default:
+                throw new RuntimeException("Unsupported operator: " + op);
+        }
+    }
+
+    private static boolean isLong(Number n) {
+        if (n instanceof Integer || n instanceof Long) {
+            return true;
+        }
+        if (n instanceof Double) {
+            double d = (Double) n;
+            return d == Math.floor(d) && d >= -LONG_RANGE && d < LONG_RANGE;
+        }
+        return false;
+    }
+
+    // Null if the value has a fraction or is not finite
+    private static BigInteger toBigInteger(Number n) {
+        if (n instanceof BigInteger) {
+            return (BigInteger) n;
+        }
+        if (n instanceof Integer || n instanceof Long) {
+            return BigInteger.valueOf(n.longValue());
+        }
+        if (n instanceof BigDecimal) {
+            BigDecimal d = (BigDecimal) n;
+            return d.signum() == 0 || d.stripTrailingZeros().scale() <= 0 ? d.toBigInteger() : null;
+        }
+        double d = n.doubleValue();
+        if (Double.isInfinite(d) || d != Math.floor(d)) {
+            return null;
+        }
+        return new BigDecimal(d).toBigInteger();
+    }
+
+    // Null if the value is not finite
+    private static BigDecimal toBigDecimal(Number n) {
+        if (n instanceof BigDecimal) {
+            return (BigDecimal) n;
+        }
+        if (n instanceof BigInteger) {
+            return new BigDecimal((BigInteger) n);
+        }
+        if (n instanceof Integer || n instanceof Long) {
+            return BigDecimal.valueOf(n.longValue());
+        }
+        double d = n.doubleValue();
+        if (Double.isInfinite(d) || Double.isNaN(d)) {
+            return null;
+        }
+        return BigDecimal.valueOf(d);
+    }
+}
@@ -0,0 +1,515 @@
+package com.example.lang;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * AST rewrites applied to a parsed program before it is resolved and run:
+ * <ul>
+ * <li>constant folding of operators applied to literals (arithmetic,
+ * comparisons, string concatenation), using the interpreter's own operator
+ * code so the result is exactly what evaluation would have produced;</li>
+ * <li>dead branch elimination for {@code if}/{@code while}/{@code for} with a
+ * constant condition;</li>
+ * <li>hoisting of loop-invariant expressions into temporaries assigned just
+ * before the loop.</li>
+ * </ul>
+ *
+ * Hoisting is deliberately conservative. An expression is only moved when
+ * evaluating it early cannot be observed: it is built from literals, plain
+ * variables and operators that cannot fail, every variable in it was assigned
+ * before the loop and is not written inside it, and it cannot produce a list
+ * (which the loop could then mutate). Loops that call functions or library
+ * methods, read input or store into lists are left alone, and so are all
+ * loops of a program that schedules events, since those run on another
+ * thread.
+ */
+class Optimizer {
+    private static final String TEMP_PREFIX = "$hoist"; // cannot clash with a lexer identifier
+
+    private final Interpreter interpreter;
+    private int tempCount;
+    // Per program
+    private boolean hoisting;
+    private Set<String> encryptedNames;
+
+    Optimizer(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    List<Node> optimize(List<Node> program) {
+        encryptedNames = new HashSet<>();
+        hoisting = !scan(program);
+        return optimizeBlock(program, new HashSet<>());
+    }
+
+    /**
+     * Collects the names used with the @ENC prefix and reports whether the
+     * program contains an event trigger.
+     */
+    private boolean scan(List<Node> statements) {
+        boolean events = false;
+        for (Node stmt : statements) {
+            events |= scanNode(stmt);
+        }
+        return events;
+    }
+
+    private boolean scanNode(Node node) {
+        boolean events = false;
+        for (Node child : children(node)) {
+            events |= scanNode(child);
+        }
+        if (node instanceof VariableNode && Resolver.isEncrypted(((VariableNode) node).name)) {
+            encryptedNames.add(Resolver.stripPrefix(((VariableNode) node).name));
+        } else if (node instanceof AssignNode && Resolver.isEncrypted(((AssignNode) node).name)) {
+            encryptedNames.add(Resolver.stripPrefix(((AssignNode) node).name));
+        }
+        return events || node instanceof EventTriggerNode;
+    }
+
+    /**
+     * @param defined Names certainly assigned before the block starts.
+     */
+    private List<Node> optimizeBlock(List<Node> statements, Set<String> defined) {
+        if (statements == null) {
+            return null;
+        }
+        Set<String> blockDefined = new HashSet<>(defined);
+        List<Node> out = new ArrayList<>(statements.size());
+        for (Node stmt : statements) {
+            optimizeStatement(stmt, blockDefined, out);
+        }
+        return out;
+    }
+
+    private void optimizeStatement(Node node, Set<String> defined, List<Node> out) {
+        if (node instanceof PrintNode) {
+            PrintNode print = (PrintNode) node;
+            print.expr = fold(print.expr);
+        } else if (node instanceof ExpressionStatement) {
+            ExpressionStatement stmt = (ExpressionStatement) node;
+            stmt.expr = fold(stmt.expr);
+            markAssigned(stmt.expr, defined);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            ifNode.condition = fold(ifNode.condition);
+            if (ifNode.condition instanceof LiteralNode) {
+                // Only the branch that runs is kept, inline: blocks do not open a scope
+                List<Node> branch = interpreter.isTrue(((LiteralNode) ifNode.condition).value)
+                        ? ifNode.ifBranch
+                        : ifNode.elseBranch;
+                if (branch != null) {
+                    for (Node stmt : branch) {
+                        optimizeStatement(stmt, defined, out);
+                    }
+                }
+                return;
+            }
+            ifNode.ifBranch = optimizeBlock(ifNode.ifBranch, defined);
+            ifNode.elseBranch = optimizeBlock(ifNode.elseBranch, defined);
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            whileNode.condition = fold(whileNode.condition);
+            if (isFalse(whileNode.condition)) {
+                return;
+            }
+            whileNode.body = optimizeBlock(whileNode.body, defined);
+            List<Node> temps = hoist(whileNode.condition, null, whileNode.body, defined);
+            if (temps != null) {
+                temps.remove(temps.size() - 1);
+                whileNode.condition = temps.remove(temps.size() - 1);
+                for (Node temp : temps) {
+                    out.add(new ExpressionStatement(temp));
+                }
+            }
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            forNode.initialization = fold(forNode.initialization);
+            forNode.condition = fold(forNode.condition);
+            forNode.increment = fold(forNode.increment);
+            Node init = forNode.initialization;
+            if (isFalse(forNode.condition)) {
+                if (init != null) {
+                    out.add(new ExpressionStatement(init));
+                    markAssigned(init, defined);
+                }
+                return;
+            }
+            Set<String> loopDefined = new HashSet<>(defined);
+            markAssigned(init, loopDefined);
+            forNode.body = optimizeBlock(forNode.body, loopDefined);
+            // After a plain "i = start" the temps can go before the initialization, which keeps the
+            // loop recognizable as a counted loop; they must not read the loop variable then
+            boolean tempsFirst = init instanceof AssignNode && ((AssignNode) init).op == TokenType.ASSIGN
+                    && isSimple(((AssignNode) init).value);
+            Set<String> tempsDefined = loopDefined;
+            if (tempsFirst) {
+                tempsDefined = new HashSet<>(defined);
+                tempsDefined.remove(Resolver.stripPrefix(((AssignNode) init).name));
+            }
+            List<Node> temps = hoist(forNode.condition, forNode.increment, forNode.body, tempsDefined);
+            if (temps != null) {
+                forNode.condition = temps.remove(temps.size() - 2);
+                forNode.increment = temps.remove(temps.size() - 1);
+                if (tempsFirst) {
+                    // temp assignments...; for (initialization; ...)
+                    for (Node temp : temps) {
+                        out.add(new ExpressionStatement(temp));
+                    }
+                } else {
+                    // initialization; temp assignments...; for (last temp assignment; ...)
+                    if (init != null) {
+                        out.add(new ExpressionStatement(init));
+                    }
+                    forNode.initialization = temps.remove(temps.size() - 1);
+                    for (Node temp : temps) {
+                        out.add(new ExpressionStatement(temp));
+                    }
+                }
+            }
+            markAssigned(init, defined);
+        } else if (node instanceof FunctionDefNode) {
+            FunctionDefNode func = (FunctionDefNode) node;
+            Set<String> parameters = new HashSet<>();
+            for (String param : func.parameters) {
+                parameters.add(Resolver.stripPrefix(param));
+            }
+            func.body = optimizeBlock(func.body, parameters);
+        } else if (node instanceof ReturnNode) {
+            ReturnNode ret = (ReturnNode) node;
+            ret.value = fold(ret.value);
+        } else if (node instanceof InputNode) {
+            InputNode input = (InputNode) node;
+            input.prompt = fold(input.prompt);
+        } else if (node instanceof EventTriggerNode) {
+            EventTriggerNode etn = (EventTriggerNode) node;
+            etn.timeExpr = fold(etn.timeExpr);
+            etn.timesExpr = fold(etn.timesExpr);
+        }
+        out.add(node);
+    }
+
+    private boolean isFalse(Node condition) {
+        return condition instanceof LiteralNode && !interpreter.isTrue(((LiteralNode) condition).value);
+    }
+
+    private void markAssigned(Node expr, Set<String> defined) {
+        if (expr instanceof AssignNode && ((AssignNode) expr).op == TokenType.ASSIGN) {
+            defined.add(Resolver.stripPrefix(((AssignNode) expr).name));
+        }
+    }
+
+    // Constant folding
+
+    private Node fold(Node node) {
+        if (node instanceof BinaryNode) {
+            BinaryNode bin = (BinaryNode) node;
+            bin.left = fold(bin.left);
+            bin.right = fold(bin.right);
+            if (bin.left instanceof LiteralNode && bin.right instanceof LiteralNode) {
+                try {
+                    return new LiteralNode(interpreter.applyOp(((LiteralNode) bin.left).value,
+                            ((LiteralNode) bin.right).value, bin.op));
+                } catch (RuntimeException e) {
+                    return bin; // e.g. division by zero: keep the error at run time
+                }
+            }
+        } else if (node instanceof UnaryNode) {
+            UnaryNode un = (UnaryNode) node;
+            un.expr = fold(un.expr);
+            if (un.op == TokenType.NOT && !un.postfix && un.expr instanceof LiteralNode) {
+                return new LiteralNode(!interpreter.isTrue(((LiteralNode) un.expr).value));
+            }
+        } else if (node instanceof AssignNode) {
+            ((AssignNode) node).value = fold(((AssignNode) node).value);
+        } else if (node instanceof ArrayLiteralNode) {
+            List<Node> elements = ((ArrayLiteralNode) node).elements;
+            elements.replaceAll(this::fold);
+        } else if (node instanceof MapLiteralNode) {
+            ((MapLiteralNode) node).keys.replaceAll(this::fold);
+            ((MapLiteralNode) node).values.replaceAll(this::fold);
+        } else if (node instanceof SetLiteralNode) {
+            ((SetLiteralNode) node).elements.replaceAll(this::fold);
+        } else if (node instanceof IndexNode) {
+            IndexNode indexNode = (IndexNode) node;
+            indexNode.target = fold(indexNode.target);
+            indexNode.index = fold(indexNode.index);
+        } else if (node instanceof AssignIndexNode) {
+            AssignIndexNode assignIndex = (AssignIndexNode) node;
+            assignIndex.target = fold(assignIndex.target);
+            assignIndex.index = fold(assignIndex.index);
+            assignIndex.value = fold(assignIndex.value);
+        } else if (node instanceof FunctionCallNode) {
+            ((FunctionCallNode) node).arguments.replaceAll(this::fold);
+        } else if (node instanceof ObjectMethodCallNode) {
+            ObjectMethodCallNode om = (ObjectMethodCallNode) node;
+            om.target = fold(om.target);
+            om.arguments.replaceAll(this::fold);
+        }
+        return node;
+    }
+
+    // Loop-invariant hoisting
+
+    /**
+     * Replaces invariant expressions in a loop with temporaries.
+     *
+     * @return null if nothing was hoisted, otherwise the temp assignments
+     *         followed by the rewritten condition and increment.
+     */
+    private List<Node> hoist(Node condition, Node increment, List<Node> body, Set<String> defined) {
+        if (!hoisting) {
+            return null;
+        }
+        Set<String> written = new HashSet<>();
+        List<Node> loopParts = new ArrayList<>(body);
+        loopParts.add(condition);
+        if (increment != null) {
+            loopParts.add(increment);
+        }
+        for (Node part : loopParts) {
+            if (!collectWrites(part, written)) {
+                return null;
+            }
+        }
+
+        List<Node> temps = new ArrayList<>();
+        Node newCondition = rewrite(condition, defined, written, temps);
+        Node newIncrement = increment != null ? rewrite(increment, defined, written, temps) : null;
+        for (Node stmt : body) {
+            rewriteStatement(stmt, defined, written, temps);
+        }
+        if (temps.isEmpty()) {
+            return null;
+        }
+        temps.add(newCondition);
+        temps.add(newIncrement);
+        return temps;
+    }
+
+    /**
+     * Adds every variable name assigned under {@code node} to {@code written}.
+     *
+     * @return false if the node does something that rules out hoisting.
+     */
+    private boolean collectWrites(Node node, Set<String> written) {
+        if (node instanceof FunctionCallNode || node instanceof ObjectMethodCallNode
+                || node instanceof AssignIndexNode || node instanceof InputNode || node instanceof UseNode
+                || node instanceof FunctionDefNode || node instanceof EventTriggerNode) {
+            return false;
+        }
+        if (node instanceof AssignNode) {
+            written.add(Resolver.stripPrefix(((AssignNode) node).name));
+        } else if (node instanceof UnaryNode && ((UnaryNode) node).expr instanceof VariableNode) {
+            written.add(Resolver.stripPrefix(((VariableNode) ((UnaryNode) node).expr).name));
+        }
+        for (Node child : children(node)) {
+            if (!collectWrites(child, written)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rewriteStatement(Node node, Set<String> defined, Set<String> written, List<Node> temps) {
+        if (node instanceof ExpressionStatement) {
+            ExpressionStatement stmt = (ExpressionStatement) node;
+            stmt.expr = rewrite(stmt.expr, defined, written, temps);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            ifNode.condition = rewrite(ifNode.condition, defined, written, temps);
+            rewriteBlock(ifNode.ifBranch, defined, written, temps);
+            rewriteBlock(ifNode.elseBranch, defined, written, temps);
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            whileNode.condition = rewrite(whileNode.condition, defined, written, temps);
+            rewriteBlock(whileNode.body, defined, written, temps);
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            forNode.initialization = rewrite(forNode.initialization, defined, written, temps);
+            forNode.condition = rewrite(forNode.condition, defined, written, temps);
+            forNode.increment = rewrite(forNode.increment, defined, written, temps);
+            rewriteBlock(forNode.body, defined, written, temps);
+        } else if (node instanceof ReturnNode) {
+            ReturnNode ret = (ReturnNode) node;
+            ret.value = rewrite(ret.value, defined, written, temps);
+        }
+        // Print expressions are left alone: they read encrypted values differently
+    }
+
+    private void rewriteBlock(List<Node> statements, Set<String> defined, Set<String> written, List<Node> temps) {
+        if (statements != null) {
+            for (Node stmt : statements) {
+                rewriteStatement(stmt, defined, written, temps);
+            }
+        }
+    }
+
+    private Node rewrite(Node node, Set<String> defined, Set<String> written, List<Node> temps) {
+        if (node == null) {
+            return null;
+        }
+        if ((node instanceof BinaryNode || node instanceof UnaryNode) && isInvariant(node, defined, written)
+                && !mayBeList(node)) {
+            String temp = TEMP_PREFIX + tempCount++;
+            temps.add(new AssignNode(temp, TokenType.ASSIGN, node));
+            return new VariableNode(temp);
+        }
+        if (node instanceof BinaryNode) {
+            BinaryNode bin = (BinaryNode) node;
+            bin.left = rewrite(bin.left, defined, written, temps);
+            bin.right = rewrite(bin.right, defined, written, temps);
+        } else if (node instanceof UnaryNode && ((UnaryNode) node).op == TokenType.NOT) {
+            UnaryNode un = (UnaryNode) node;
+            un.expr = rewrite(un.expr, defined, written, temps);
+        } else if (node instanceof AssignNode) {
+            AssignNode assign = (AssignNode) node;
+            assign.value = rewrite(assign.value, defined, written, temps);
+        } else if (node instanceof IndexNode) {
+            IndexNode indexNode = (IndexNode) node;
+            indexNode.target = rewrite(indexNode.target, defined, written, temps);
+            indexNode.index = rewrite(indexNode.index, defined, written, temps);
+        } else if (node instanceof ArrayLiteralNode) {
+            ((ArrayLiteralNode) node).elements.replaceAll(elem -> rewrite(elem, defined, written, temps));
+        } else if (node instanceof MapLiteralNode) {
+            ((MapLiteralNode) node).keys.replaceAll(key -> rewrite(key, defined, written, temps));
+            ((MapLiteralNode) node).values.replaceAll(value -> rewrite(value, defined, written, temps));
+        } else if (node instanceof SetLiteralNode) {
+            ((SetLiteralNode) node).elements.replaceAll(elem -> rewrite(elem, defined, written, temps));
+        }
+        return node;
+    }
+
+    /**
+     * True for side-effect free expressions over variables that are defined
+     * before the loop and not written in it, whose evaluation cannot throw.
+     * Bare variables and literals alone are not worth a temporary.
+     */
+    private boolean isInvariant(Node node, Set<String> defined, Set<String> written) {
+        if (node instanceof BinaryNode) {
+            BinaryNode bin = (BinaryNode) node;
+            if ((bin.op == TokenType.SLASH || bin.op == TokenType.MOD) && !isSafeDivisor(bin.right)) {
+                return false;
+            }
+            return isInvariantOperand(bin.left, defined, written) && isInvariantOperand(bin.right, defined, written);
+        }
+        if (node instanceof UnaryNode) {
+            UnaryNode un = (UnaryNode) node;
+            return un.op == TokenType.NOT && !un.postfix && isInvariantOperand(un.expr, defined, written);
+        }
+        return false;
+    }
+
+    private boolean isInvariantOperand(Node node, Set<String> defined, Set<String> written) {
+        if (node instanceof LiteralNode) {
+            return true;
+        }
+        if (node instanceof VariableNode) {
+            String name = ((VariableNode) node).name;
+            return !Resolver.isEncrypted(name) && !encryptedNames.contains(name) && defined.contains(name)
+                    && !written.contains(name);
+        }
+        return isInvariant(node, defined, written);
+    }
+
+    // Literals and variables combined with operators: nothing that writes, calls or reads input
+    private boolean isSimple(Node node) {
+        if (node instanceof LiteralNode || node instanceof VariableNode) {
+            return true;
+        }
+        if (node instanceof BinaryNode) {
+            return isSimple(((BinaryNode) node).left) && isSimple(((BinaryNode) node).right);
+        }
+        return node instanceof UnaryNode && ((UnaryNode) node).op == TokenType.NOT && isSimple(((UnaryNode) node).expr);
+    }
+
+    private boolean isSafeDivisor(Node node) {
+        // % truncates its operands to int, so 0.5 is as bad as 0
+        return node instanceof LiteralNode && ((LiteralNode) node).value instanceof Number
+                && Math.abs(((Number) ((LiteralNode) node).value).doubleValue()) >= 1;
+    }
+
+    // Only list + list gives a list; every other operator yields a number, boolean or string
+    private boolean mayBeList(Node node) {
+        if (node instanceof LiteralNode) {
+            return false;
+        }
+        if (node instanceof BinaryNode) {
+            BinaryNode bin = (BinaryNode) node;
+            return bin.op == TokenType.PLUS && mayBeList(bin.left) && mayBeList(bin.right);
+        }
+        if (node instanceof UnaryNode) {
+            return false;
+        }
+        return true;
+    }
+
+    private static List<Node> children(Node node) {
+        List<Node> children = new ArrayList<>();
+        if (node instanceof BinaryNode) {
+            children.add(((BinaryNode) node).left);
+            children.add(((BinaryNode) node).right);
+        } else if (node instanceof UnaryNode) {
+            children.add(((UnaryNode) node).expr);
+        } else if (node instanceof AssignNode) {
+            children.add(((AssignNode) node).value);
+        } else if (node instanceof ArrayLiteralNode) {
+            children.addAll(((ArrayLiteralNode) node).elements);
+        } else if (node instanceof MapLiteralNode) {
+            children.addAll(((MapLiteralNode) node).keys);
+            children.addAll(((MapLiteralNode) node).values);
+        } else if (node instanceof SetLiteralNode) {
+            children.addAll(((SetLiteralNode) node).elements);
+        } else if (node instanceof IndexNode) {
+            children.add(((IndexNode) node).target);
+            children.add(((IndexNode) node).index);
+        } else if (node instanceof AssignIndexNode) {
+            children.add(((AssignIndexNode) node).target);
+            children.add(((AssignIndexNode) node).index);
+            children.add(((AssignIndexNode) node).value);
+        } else if (node instanceof FunctionCallNode) {
+            children.addAll(((FunctionCallNode) node).arguments);
+        } else if (node instanceof ObjectMethodCallNode) {
+            children.add(((ObjectMethodCallNode) node).target);
+            children.addAll(((ObjectMethodCallNode) node).arguments);
+        } else if (node instanceof PrintNode) {
+            children.add(((PrintNode) node).expr);
+        } else if (node instanceof ExpressionStatement) {
+            children.add(((ExpressionStatement) node).expr);
+        } else if (node instanceof IfNode) {
+            children.add(((IfNode) node).condition);
+            addAll(children, ((IfNode) node).ifBranch);
+            addAll(children, ((IfNode) node).elseBranch);
+        } else if (node instanceof ForNode) {
+            children.add(((ForNode) node).initialization);
+            children.add(((ForNode) node).condition);
+            children.add(((ForNode) node).increment);
+            addAll(children, ((ForNode) node).body);
+        } else if (node instanceof WhileNode) {
+            children.add(((WhileNode) node).condition);
+            addAll(children, ((WhileNode) node).body);
+        } else if (node instanceof InputNode) {
+            children.add(((InputNode) node).prompt);
+            children.add(((InputNode) node).variable);
+        } else if (node instanceof ReturnNode) {
+            children.add(((ReturnNode) node).value);
+        } else if (node instanceof EventTriggerNode) {
+            children.add(((EventTriggerNode) node).timeExpr);
+            children.add(((EventTriggerNode) node).timesExpr);
+            children.add(((EventTriggerNode) node).action);
+        } else if (node instanceof FunctionDefNode) {
+            addAll(children, ((FunctionDefNode) node).body);
+        }
+        children.removeIf(child -> child == null);
+        return children;
+    }
+
+    private static void addAll(List<Node> children, List<Node> statements) {
+        if (statements != null) {
+            children.addAll(statements);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.lang;
+
+import com.example.lang.vm.Sealed;
+
+import java.util.List;
+
+/**
+ * A list stored in the variable that statements like {@code a += [x]} and
+ * {@code a = a + [x]} append to, marking that no other reference to the list
+ * exists yet. Such statements then extend the list in place instead of
+ * copying it.
+ *
+ * Reading the variable as a value unseals it, which hands out the list and
+ * marks it shared; the next append copies it as {@code +} always did, and
+ * owns the copy. Indexing into the variable does not share the list.
+ */
+final class OwnedList extends Sealed {
+    final List<Object> list;
+    boolean shared; // read as a value, so others may hold the list
+    private boolean busy; // claimed by an appending statement that is still evaluating its operand
+
+    private OwnedList(List<Object> list) {
+        this.list = list;
+    }
+
+    /**
+     * True for the contents an appending statement extends in place. Lists
+     * of other types, from libraries, are copied by the first append.
+     */
+    static boolean isList(Object content) {
+        // Class checks: this runs for every s = s + x statement, mostly on numbers
+        return content instanceof ArrayValue || content instanceof OwnedList;
+    }
+
+    /**
+     * The list in a variable's content, without sharing it; null if the
+     * variable holds no list.
+     */
+    static List<?> peek(Object content) {
+        if (content instanceof OwnedList) {
+            return ((OwnedList) content).list;
+        }
+        return content instanceof List ? (List<?>) content : null;
+    }
+
+    /**
+     * Claims a variable's content for an appending statement, so appends
+     * nested in its operand copy the list rather than change it.
+     *
+     * @return The content to pass to {@link #append}.
+     */
+    static Object claim(Object content) {
+        if (content instanceof OwnedList) {
+            OwnedList owned = (OwnedList) content;
+            if (owned.shared || owned.busy) {
+                return owned.list;
+            }
+            owned.busy = true;
+        }
+        return content;
+    }
+
+    /**
+     * {@code claimed + value}, appending in place when the list is still
+     * owned.
+     *
+     * @return The new content of the variable.
+     */
+    @SuppressWarnings("unchecked")
+    static Object append(Object claimed, Object value, Interpreter in) {
+        if (claimed instanceof OwnedList) {
+            OwnedList owned = (OwnedList) claimed;
+            owned.busy = false;
+            if (!owned.shared && value instanceof List) {
+                in.allocate((long) ExecutionBudget.ELEMENT_BYTES * ((List<?>) value).size());
+                owned.list.addAll((List<?>) value);
+                return owned;
+            }
+            claimed = owned.list;
+        }
+        if (claimed instanceof List && value instanceof List) {
+            in.allocateList(((List<?>) claimed).size() + ((List<?>) value).size());
+            List<Object> copy = new ArrayValue((List<?>) claimed);
+            copy.addAll((List<?>) value);
+            return new OwnedList(copy);
+        }
+        return in.applyOp(in.plainValue(claimed), value, TokenType.PLUS);
+    }
+}
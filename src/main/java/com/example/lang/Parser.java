@@ -3,13 +3,13 @@ package com.example.lang;
 import java.util.ArrayList;
 import java.util.List;
 
-abstract class Node {
-}
+import com.example.lang.vm.FunctionProto;
 
 // Expression Nodes
 class BinaryNode extends Node {
     Node left, right;
     TokenType op;
+    TypeFeedback feedback = TypeFeedback.UNINITIALIZED; // operand types seen by the tree walker
 
     BinaryNode(Node left, TokenType op, Node right) {
         this.left = left;
@@ -27,6 +27,7 @@ class UnaryNode extends Node {
     TokenType op;
     Node expr;
     boolean postfix;
+    TypeFeedback feedback = TypeFeedback.UNINITIALIZED; // operand types seen by the tree walker
 
     UnaryNode(TokenType op, Node expr, boolean postfix) {
         this.op = op;
@@ -45,6 +46,10 @@ class LiteralNode extends Node {
 
 class VariableNode extends Node {
     String name;
+    // Filled in by Resolver
+    boolean encrypted;
+    int slot = -1; // slot in the enclosing function frame, -1 if none
+    int globalSlot = -1; // slot in the global frame, -1 if none
 
     VariableNode(String name) {
         this.name = name;
@@ -55,6 +60,11 @@ class AssignNode extends Node {
     String name;
     TokenType op;
     Node value;
+    // Filled in by Resolver
+    boolean encrypted;
+    int slot = -1;
+    int globalSlot = -1;
+    List<Node> appended; // see Rope.appendedOperands
 
     AssignNode(String name, TokenType op, Node value) {
         this.name = name;
@@ -96,6 +106,9 @@ class ForNode extends Node {
     Node condition;
     Node increment;
     List<Node> body;
+    // Set on first execution by the tree walker
+    boolean analyzed;
+    CountedLoop counted; // null unless a counted loop
 
     ForNode(Node initialization, Node condition, Node increment, List<Node> body) {
         this.initialization = initialization;
@@ -129,6 +142,22 @@ class FunctionDefNode extends Node {
     String name;
     List<String> parameters;
     List<Node> body;
+    // Filled in by Resolver
+    int symbol; // of name, see Symbols
+    int frameSize; // number of local slots
+    FunctionProto bytecode; // compiled on first call by the VM engine
+    ClosureCompiler.Stmt closure; // compiled on first call by the closure engine
+    // Tiering state, maintained by JitCompiler
+    int callCount;
+    volatile JitCompiler.JitCode jitCode; // installed by the compiler thread
+    boolean jitDisabled;
+    // Frames released by finished calls, reused by later ones
+    Object[][] framePool;
+    int pooledFrames;
+    // Result caching, see Memoizer
+    boolean memoize; // marked @MEMO
+    Memoizer.Table memo; // null unless the function is pure
+    int memoVersion; // functions version memo was computed for
 
     FunctionDefNode(String name, List<String> parameters, List<Node> body) {
         this.name = name;
@@ -139,7 +168,11 @@ class FunctionDefNode extends Node {
 
 class FunctionCallNode extends Node {
     String name;
+    int symbol; // of name, see Symbols; filled in by Resolver
     List<Node> arguments;
+    // Call site cache, see Interpreter.linkFunction
+    FunctionDefNode target;
+    int linkedVersion;
 
     FunctionCallNode(String name, List<Node> arguments) {
         this.name = name;
@@ -163,6 +196,26 @@ class ArrayLiteralNode extends Node {
     }
 }
 
+// {key: value, ...}; keys[i] goes with values[i]
+class MapLiteralNode extends Node {
+    List<Node> keys;
+    List<Node> values;
+
+    MapLiteralNode(List<Node> keys, List<Node> values) {
+        this.keys = keys;
+        this.values = values;
+    }
+}
+
+// #{element, ...}
+class SetLiteralNode extends Node {
+    List<Node> elements;
+
+    SetLiteralNode(List<Node> elements) {
+        this.elements = elements;
+    }
+}
+
 // New node for event triggers
 class EventTriggerNode extends Node {
     Node timeExpr;
@@ -206,6 +259,7 @@ class ObjectMethodCallNode extends Node {
 class IndexNode extends Node {
     Node target; // The array or list being indexed
     Node index; // The index expression
+    CountedLoop loop; // enclosing counted loop whose counter is the index, if any
 
     IndexNode(Node target, Node index) {
         this.target = target;
@@ -228,32 +282,70 @@ class AssignIndexNode extends Node {
     }
 }
 
+// A lexer or parser error, with its position kept apart from the message
+class ParseException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final String stage; // "Lexer Error" or "Parse Error"
+    final int line;
+    final int column;
+    final String reason;
+
+    ParseException(String stage, int line, int column, String reason) {
+        super(stage + " at " + line + ":" + column + " - " + reason);
+        this.stage = stage;
+        this.line = line;
+        this.column = column;
+        this.reason = reason;
+    }
+
+    /**
+     * The same error, {@code lines} lines further down.
+     */
+    ParseException movedBy(int lines) {
+        return lines == 0 ? this : new ParseException(stage, line + lines, column, reason);
+    }
+}
+
 public class Parser {   
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
     private int current = 0;
+    private String error; // of the statement parse() stopped at, null if it did not
 
     public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+        this.tokens = new TokenBuffer(tokens);
+    }
+
+    /**
+     * A parser that takes tokens from {@code lexer} as it needs them.
+     */
+    public Parser(Lexer lexer) {
+        this.tokens = new TokenBuffer(lexer);
     }
 
     // Helper Methods
 
-    private Token peek() {
-        return tokens.get(current);
+    private TokenType peekType() {
+        return tokens.type(current);
     }
 
-    private Token previous() {
-        return tokens.get(current - 1);
+    private TokenType previousType() {
+        return tokens.type(current - 1);
     }
 
-    private Token advanceToken() {
+    private String previousLexeme() {
+        return tokens.lexeme(current - 1);
+    }
+
+    // Returns the lexeme of the token advanced over
+    private String advanceToken() {
         if (!isAtEnd())
             current++;
-        return previous();
+        return previousLexeme();
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return peekType() == TokenType.EOF;
     }
 
     private boolean match(TokenType... types) {
@@ -269,18 +361,69 @@ public class Parser {
     private boolean check(TokenType type) {
         if (isAtEnd())
             return false;
-        return peek().type == type;
+        return peekType() == type;
     }
 
-    private Token consume(TokenType type, String message) {
+    // Returns the lexeme of the consumed token
+    private String consume(TokenType type, String message) {
         if (check(type))
             return advanceToken();
-        Token token = peek();
-        throw error(token, message);
+        throw error(current, message);
+    }
+
+    private RuntimeException error(int token, String message) {
+        return error(tokens.line(token), tokens.column(token), message);
+    }
+
+    private RuntimeException error(int line, int column, String message) {
+        return new ParseException("Parse Error", line, column, message);
+    }
+
+    // For parsing one statement at a time, see IncrementalParser
+
+    boolean atEnd() {
+        return isAtEnd();
+    }
+
+    int nextOffset() {
+        return tokens.offset(current);
+    }
+
+    int nextLine() {
+        return tokens.line(current);
+    }
+
+    int nextColumn() {
+        return tokens.column(current);
+    }
+
+    // Offset just past the last token parsed
+    int previousEnd() {
+        return current == 0 ? 0 : tokens.offset(current - 1) + tokens.length(current - 1);
     }
 
-    private RuntimeException error(Token token, String message) {
-        return new RuntimeException("Parse Error at " + token.line + ":" + token.column + " - " + message);
+    /**
+     * After an error, skips to just past the next ';' or '}', where the next
+     * statement most likely starts. Characters the lexer rejects are skipped
+     * too.
+     */
+    void synchronize() {
+        while (true) {
+            try {
+                if (isAtEnd()) {
+                    return;
+                }
+                advanceToken();
+                if (previousType() == TokenType.SEMICOLON || previousType() == TokenType.RBRACE) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                if (e != tokens.lexerError()) {
+                    throw e;
+                }
+                // The lexer has moved past the bad character; go on with the next token
+            }
+        }
     }
 
     // Parsing Methods
@@ -291,13 +434,32 @@ public class Parser {
             try {
                 statements.add(parseStatement());
             } catch (RuntimeException e) {
+                if (e == tokens.lexerError()) {
+                    throw e; // the script cannot be read, as when tokenizing it up front
+                }
                 System.err.println("Parse Error: " + e.getMessage());
+                error = e.getMessage();
                 break; // Stop parsing further if there's an error
             }
         }
         return statements;
     }
 
+    /**
+     * Whether {@link #parse()} stopped at an error, so that the statements it
+     * returned are only those before it.
+     */
+    boolean failed() {
+        return error != null;
+    }
+
+    /**
+     * The message of the error {@link #parse()} stopped at, or null.
+     */
+    String error() {
+        return error;
+    }
+
     // Helper to convert the AST to a String representation (optional)
     public String getParseResultAsString() {
         List<Node> nodes = parse();
@@ -313,6 +475,13 @@ public class Parser {
             return parseFunctionDef();
         }
 
+        if (match(TokenType.MEMO)) {
+            consume(TokenType.FUNCTION, "Expect 'function' after @MEMO.");
+            FunctionDefNode func = (FunctionDefNode) parseFunctionDef();
+            func.memoize = true;
+            return func;
+        }
+
         if (match(TokenType.RETURN)) {
             return parseReturn();
         }
@@ -359,21 +528,19 @@ public class Parser {
     }
 
     private Node parseUseStatement() {
-        Token libName = consume(TokenType.IDENTIFIER, "Expect library name after 'use'.");
+        String libName = consume(TokenType.IDENTIFIER, "Expect library name after 'use'.");
         consume(TokenType.SEMICOLON, "Expect ';' after library name.");
-        return new UseNode(libName.lexeme);
+        return new UseNode(libName);
     }
 
     private Node parseFunctionDef() {
-        Token nameToken = consume(TokenType.IDENTIFIER, "Expect function name.");
-        String name = nameToken.lexeme;
+        String name = consume(TokenType.IDENTIFIER, "Expect function name.");
 
         consume(TokenType.LPAREN, "Expect '(' after function name.");
         List<String> parameters = new ArrayList<>();
         if (!match(TokenType.RPAREN)) {
             do {
-                Token param = consume(TokenType.IDENTIFIER, "Expect parameter name.");
-                parameters.add(param.lexeme);
+                parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
             } while (match(TokenType.COMMA));
             consume(TokenType.RPAREN, "Expect ')' after parameters.");
         }
@@ -469,8 +636,7 @@ public class Parser {
 
         // Check if we have a comma indicating a unit
         if (match(TokenType.COMMA)) {
-            Token unitToken = consume(TokenType.STRING, "Expect a time unit as a string.");
-            unit = unitToken.lexeme;
+            unit = consume(TokenType.STRING, "Expect a time unit as a string.");
 
             // Check if we have another comma indicating the times parameter
             if (match(TokenType.COMMA)) {
@@ -489,7 +655,7 @@ public class Parser {
 
     private List<Node> parseBlock() {
         List<Node> statements = new ArrayList<>();
-        while (!isAtEnd() && peek().type != TokenType.RBRACE) {
+        while (!isAtEnd() && peekType() != TokenType.RBRACE) {
             statements.add(parseStatement());
         }
         return statements;
@@ -503,17 +669,21 @@ public class Parser {
         Node left = parseLogicalOr();
 
         if (match(TokenType.ASSIGN, TokenType.PLUS_EQ, TokenType.MINUS_EQ, TokenType.STAR_EQ, TokenType.SLASH_EQ)) {
-            Token op = previous();
+            TokenType op = previousType();
+            // Only the last few tokens stay buffered, so take the position now
+            int opLine = tokens.line(current - 1);
+            int opColumn = tokens.column(current - 1);
             Node right = parseAssignment();
 
             if (left instanceof VariableNode) {
-                return new AssignNode(((VariableNode) left).name, op.type, right);
+                VariableNode target = (VariableNode) left;
+                return new AssignNode(target.name, op, right);
             } else if (left instanceof IndexNode) {
                 // Handle assignment to array elements, e.g., employees[i] = value;
                 IndexNode indexNode = (IndexNode) left;
-                return new AssignIndexNode(indexNode.target, indexNode.index, op.type, right);
+                return new AssignIndexNode(indexNode.target, indexNode.index, op, right);
             } else {
-                throw error(op, "Invalid assignment target.");
+                throw error(opLine, opColumn, "Invalid assignment target.");
             }
         }
         return left;
@@ -522,9 +692,9 @@ public class Parser {
     private Node parseLogicalOr() {
         Node left = parseLogicalAnd();
         while (match(TokenType.OR_OR)) {
-            Token op = previous();
+            TokenType op = previousType();
             Node right = parseLogicalAnd();
-            left = new BinaryNode(left, op.type, right);
+            left = new BinaryNode(left, op, right);
         }
         return left;
     }
@@ -532,9 +702,9 @@ public class Parser {
     private Node parseLogicalAnd() {
         Node left = parseEquality();
         while (match(TokenType.AND_AND)) {
-            Token op = previous();
+            TokenType op = previousType();
             Node right = parseEquality();
-            left = new BinaryNode(left, op.type, right);
+            left = new BinaryNode(left, op, right);
         }
         return left;
     }
@@ -542,9 +712,9 @@ public class Parser {
     private Node parseEquality() {
         Node left = parseComparison();
         while (match(TokenType.EQ_EQ, TokenType.NOT_EQ)) {
-            Token op = previous();
+            TokenType op = previousType();
             Node right = parseComparison();
-            left = new BinaryNode(left, op.type, right);
+            left = new BinaryNode(left, op, right);
         }
         return left;
     }
@@ -552,9 +722,9 @@ public class Parser {
     private Node parseComparison() {
         Node left = parseTerm();
         while (match(TokenType.GT, TokenType.GT_EQ, TokenType.LT, TokenType.LT_EQ)) {
-            Token op = previous();
+            TokenType op = previousType();
             Node right = parseTerm();
-            left = new BinaryNode(left, op.type, right);
+            left = new BinaryNode(left, op, right);
         }
         return left;
     }
@@ -562,9 +732,9 @@ public class Parser {
     private Node parseTerm() {
         Node left = parseFactor();
         while (match(TokenType.PLUS, TokenType.MINUS)) {
-            Token op = previous();
+            TokenType op = previousType();
             Node right = parseFactor();
-            left = new BinaryNode(left, op.type, right);
+            left = new BinaryNode(left, op, right);
         }
         return left;
     }
@@ -572,25 +742,25 @@ public class Parser {
     private Node parseFactor() {
         Node left = parseUnary();
         while (match(TokenType.STAR, TokenType.SLASH, TokenType.MOD)) {
-            Token op = previous();
+            TokenType op = previousType();
             Node right = parseUnary();
-            left = new BinaryNode(left, op.type, right);
+            left = new BinaryNode(left, op, right);
         }
         return left;
     }
 
     private Node parseUnary() {
         if (match(TokenType.PLUS_PLUS, TokenType.MINUS_MINUS, TokenType.NOT)) {
-            Token op = previous();
+            TokenType op = previousType();
             Node expr = parseUnary();
-            return new UnaryNode(op.type, expr, false);
+            return new UnaryNode(op, expr, false);
         }
 
         Node primary = parsePrimary();
 
         while (match(TokenType.PLUS_PLUS, TokenType.MINUS_MINUS)) {
-            Token op = previous();
-            primary = new UnaryNode(op.type, primary, true);
+            TokenType op = previousType();
+            primary = new UnaryNode(op, primary, true);
         }
 
         return primary;
@@ -598,25 +768,25 @@ public class Parser {
 
     private Node parsePrimary() {
         if (match(TokenType.NUMBER)) {
-            String numStr = previous().lexeme;
+            String numStr = previousLexeme();
             if (numStr.contains(".")) {
                 return new LiteralNode(Double.parseDouble(numStr));
             } else {
-                return new LiteralNode(Integer.parseInt(numStr));
+                return new LiteralNode(Numbers.parseInteger(numStr));
             }
         }
 
         if (match(TokenType.STRING)) {
-            return new LiteralNode(previous().lexeme);
+            return new LiteralNode(previousLexeme());
         }
 
         if (match(TokenType.BOOLEAN)) {
-            String boolStr = previous().lexeme;
+            String boolStr = previousLexeme();
             return new LiteralNode(Boolean.parseBoolean(boolStr));
         }
 
         if (match(TokenType.IDENTIFIER)) {
-            String identifier = previous().lexeme;
+            String identifier = previousLexeme();
             Node expr = new VariableNode(identifier);
 
             // Handle function calls, method calls, and array indexing
@@ -633,8 +803,7 @@ public class Parser {
                     expr = new FunctionCallNode(identifier, args);
                 } else if (match(TokenType.DOT)) {
                     // Method call
-                    Token methodNameToken = consume(TokenType.IDENTIFIER, "Expect method name after '.'");
-                    String methodName = methodNameToken.lexeme;
+                    String methodName = consume(TokenType.IDENTIFIER, "Expect method name after '.'");
                     consume(TokenType.LPAREN, "Expect '(' after method name.");
                     List<Node> args = new ArrayList<>();
                     if (!check(TokenType.RPAREN)) {
@@ -674,7 +843,31 @@ public class Parser {
             return new ArrayLiteralNode(elements);
         }
 
-        Token token = peek();
-        throw error(token, "Expect expression.");
+        if (match(TokenType.LBRACE)) {
+            List<Node> keys = new ArrayList<>();
+            List<Node> values = new ArrayList<>();
+            if (!match(TokenType.RBRACE)) {
+                do {
+                    keys.add(parseExpression());
+                    consume(TokenType.COLON, "Expect ':' after map key.");
+                    values.add(parseExpression());
+                } while (match(TokenType.COMMA));
+                consume(TokenType.RBRACE, "Expect '}' after map entries.");
+            }
+            return new MapLiteralNode(keys, values);
+        }
+
+        if (match(TokenType.HASH_LBRACE)) {
+            List<Node> elements = new ArrayList<>();
+            if (!match(TokenType.RBRACE)) {
+                do {
+                    elements.add(parseExpression());
+                } while (match(TokenType.COMMA));
+                consume(TokenType.RBRACE, "Expect '}' after set elements.");
+            }
+            return new SetLiteralNode(elements);
+        }
+
+        throw error(current, "Expect expression.");
     }
 }
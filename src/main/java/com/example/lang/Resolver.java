@@ -0,0 +1,240 @@
+package com.example.lang;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static pass that runs between {@link Parser#parse()} and execution and binds
+ * every variable reference to an array slot.
+ *
+ * A name is bound at one of two depths: depth 0 is the frame of the enclosing
+ * function ({@code slot}), depth 1 is the global frame ({@code globalSlot}).
+ * Parameters only live at depth 0. Any other name inside a function gets both
+ * slots, so that the interpreter can keep the old "local first, then global"
+ * lookup while each probe is a single array index instead of a hash lookup.
+ *
+ * Names are interned once per use, here, to symbols of the resolver's own
+ * {@link Symbols}, and looked up without the {@code @ENC} prefix in arrays
+ * indexed by symbol. The numbering is the interpreter's, so the arrays only
+ * hold the names of the programs it runs.
+ */
+class Resolver {
+    private final Symbols symbols = new Symbols();
+    private int[] globalSlots = new int[0]; // symbol to slot + 1, 0 if none
+    private int globalCount;
+    // Symbol to slot + 1 in the function being resolved; the symbols set are listed in bound
+    private int[] localSlots = new int[0];
+    private int[] bound = new int[16];
+    private int boundCount;
+    private boolean inFunction; // false while resolving top-level code
+    private int localCount;
+    private int parameterCount;
+
+    void resolve(List<Node> nodes) {
+        for (Node node : nodes) {
+            resolveNode(node);
+        }
+    }
+
+    /**
+     * Returns the global slot for the given (already stripped) name, allocating
+     * a new one if the name has not been seen before.
+     */
+    int globalSlot(String name) {
+        return globalSlot(symbols.intern(name));
+    }
+
+    /**
+     * The symbol of a name, which is what functions are looked up by.
+     */
+    int symbol(String name) {
+        return symbols.intern(name);
+    }
+
+    String name(int symbol) {
+        return symbols.name(symbol);
+    }
+
+    private int globalSlot(int symbol) {
+        if (symbol >= globalSlots.length) {
+            globalSlots = Arrays.copyOf(globalSlots, Math.max(symbol + 1, globalSlots.length * 2));
+        }
+        if (globalSlots[symbol] == 0) {
+            globalSlots[symbol] = ++globalCount;
+        }
+        return globalSlots[symbol] - 1;
+    }
+
+    int globalCount() {
+        return globalCount;
+    }
+
+    private void resolveBlock(List<Node> statements) {
+        if (statements == null) {
+            return;
+        }
+        for (Node stmt : statements) {
+            resolveNode(stmt);
+        }
+    }
+
+    private void resolveNode(Node node) {
+        if (node == null || node instanceof LiteralNode) {
+            return;
+        }
+        if (node instanceof VariableNode) {
+            VariableNode var = (VariableNode) node;
+            int symbol = symbols.intern(var.name);
+            var.encrypted = symbols.isEncrypted(symbol);
+            int plain = symbols.plain(symbol);
+            var.slot = localSlot(plain);
+            var.globalSlot = isParameter(var.slot) ? -1 : globalSlot(plain);
+        } else if (node instanceof AssignNode) {
+            AssignNode assign = (AssignNode) node;
+            resolveNode(assign.value);
+            int symbol = symbols.intern(assign.name);
+            assign.encrypted = symbols.isEncrypted(symbol);
+            int plain = symbols.plain(symbol);
+            assign.slot = localSlot(plain);
+            assign.globalSlot = isParameter(assign.slot) ? -1 : globalSlot(plain);
+            assign.appended = Rope.appendedOperands(assign);
+        } else if (node instanceof ArrayLiteralNode) {
+            resolveBlock(((ArrayLiteralNode) node).elements);
+        } else if (node instanceof MapLiteralNode) {
+            resolveBlock(((MapLiteralNode) node).keys);
+            resolveBlock(((MapLiteralNode) node).values);
+        } else if (node instanceof SetLiteralNode) {
+            resolveBlock(((SetLiteralNode) node).elements);
+        } else if (node instanceof BinaryNode) {
+            resolveNode(((BinaryNode) node).left);
+            resolveNode(((BinaryNode) node).right);
+        } else if (node instanceof UnaryNode) {
+            resolveNode(((UnaryNode) node).expr);
+        } else if (node instanceof IndexNode) {
+            resolveNode(((IndexNode) node).target);
+            resolveNode(((IndexNode) node).index);
+        } else if (node instanceof AssignIndexNode) {
+            AssignIndexNode assignIndex = (AssignIndexNode) node;
+            resolveNode(assignIndex.target);
+            resolveNode(assignIndex.index);
+            resolveNode(assignIndex.value);
+        } else if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            call.symbol = symbols.intern(call.name);
+            resolveBlock(call.arguments);
+        } else if (node instanceof ObjectMethodCallNode) {
+            resolveNode(((ObjectMethodCallNode) node).target);
+            resolveBlock(((ObjectMethodCallNode) node).arguments);
+        } else if (node instanceof PrintNode) {
+            resolveNode(((PrintNode) node).expr);
+        } else if (node instanceof ExpressionStatement) {
+            resolveNode(((ExpressionStatement) node).expr);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            resolveNode(ifNode.condition);
+            resolveBlock(ifNode.ifBranch);
+            resolveBlock(ifNode.elseBranch);
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            resolveNode(forNode.initialization);
+            resolveNode(forNode.condition);
+            resolveNode(forNode.increment);
+            resolveBlock(forNode.body);
+        } else if (node instanceof WhileNode) {
+            resolveNode(((WhileNode) node).condition);
+            resolveBlock(((WhileNode) node).body);
+        } else if (node instanceof InputNode) {
+            resolveNode(((InputNode) node).prompt);
+            resolveNode(((InputNode) node).variable);
+        } else if (node instanceof ReturnNode) {
+            resolveNode(((ReturnNode) node).value);
+        } else if (node instanceof EventTriggerNode) {
+            EventTriggerNode etn = (EventTriggerNode) node;
+            resolveNode(etn.timeExpr);
+            resolveNode(etn.timesExpr);
+            // The action runs later, in whatever frame is current then: only globals are its own
+            boolean enclosingInFunction = inFunction;
+            inFunction = false;
+            resolveNode(etn.action);
+            inFunction = enclosingInFunction;
+        } else if (node instanceof FunctionDefNode) {
+            resolveFunction((FunctionDefNode) node);
+        } else if (node instanceof UseNode) {
+            // Library variables are bound by name when the library is loaded
+        } else {
+            throw new RuntimeException("Resolver: unknown node type " + node.getClass().getName());
+        }
+    }
+
+    private void resolveFunction(FunctionDefNode func) {
+        boolean enclosingInFunction = inFunction;
+        int enclosingLocalCount = localCount;
+        int enclosingParameterCount = parameterCount;
+        // The enclosing function's bindings, set aside while this one has the table
+        int enclosingBoundCount = boundCount;
+        int[] enclosingSlots = new int[enclosingBoundCount];
+        for (int i = 0; i < enclosingBoundCount; i++) {
+            enclosingSlots[i] = localSlots[bound[i]];
+            localSlots[bound[i]] = 0;
+        }
+
+        // Argument i is always stored in slot i; a repeated parameter name binds to the last one
+        inFunction = true;
+        func.symbol = symbols.intern(func.name);
+        for (int i = 0; i < func.parameters.size(); i++) {
+            bind(symbols.plain(symbols.intern(func.parameters.get(i))), i);
+        }
+        localCount = func.parameters.size();
+        parameterCount = localCount;
+        resolveBlock(func.body);
+        func.frameSize = localCount;
+
+        for (int i = enclosingBoundCount; i < boundCount; i++) {
+            localSlots[bound[i]] = 0;
+        }
+        boundCount = enclosingBoundCount;
+        for (int i = 0; i < enclosingBoundCount; i++) {
+            localSlots[bound[i]] = enclosingSlots[i];
+        }
+        inFunction = enclosingInFunction;
+        localCount = enclosingLocalCount;
+        parameterCount = enclosingParameterCount;
+    }
+
+    private int localSlot(int symbol) {
+        if (!inFunction) {
+            return -1;
+        }
+        if (symbol < localSlots.length && localSlots[symbol] != 0) {
+            return localSlots[symbol] - 1;
+        }
+        int slot = localCount++;
+        bind(symbol, slot);
+        return slot;
+    }
+
+    private void bind(int symbol, int slot) {
+        if (symbol >= localSlots.length) {
+            localSlots = Arrays.copyOf(localSlots, Math.max(symbol + 1, localSlots.length * 2));
+        }
+        if (localSlots[symbol] == 0) {
+            if (boundCount == bound.length) {
+                bound = Arrays.copyOf(bound, boundCount * 2);
+            }
+            bound[boundCount++] = symbol;
+        }
+        localSlots[symbol] = slot + 1;
+    }
+
+    private boolean isParameter(int slot) {
+        return slot >= 0 && slot < parameterCount;
+    }
+
+    static boolean isEncrypted(String name) {
+        return name.startsWith("@ENC");
+    }
+
+    static String stripPrefix(String name) {
+        return isEncrypted(name) ? name.substring(4) : name;
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.lang;
+
+import com.example.lang.vm.Sealed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * String value that statements like {@code s = s + x} and {@code s += x}
+ * append to in place, instead of copying the whole string every time.
+ *
+ * A rope only ever lives in a variable slot: like an encrypted value it is a
+ * {@link Sealed}, so every read of the variable gets the flattened String
+ * (cached until the next append). Only the appending statements see the rope
+ * itself.
+ *
+ * Several ropes may share one builder, each seeing its first {@code length}
+ * characters. Appending writes into the builder only when this rope owns its
+ * end; otherwise the prefix is copied first. Older ropes therefore never
+ * change, which keeps a statement correct even when evaluating its operands
+ * appended to the same variable.
+ */
+final class Rope extends Sealed {
+    private final StringBuilder chars;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder chars, int length) {
+        this.chars = chars;
+        this.length = length;
+    }
+
+    /**
+     * Appends {@code value} to a String or Rope, as {@code +} would.
+     */
+    static Rope append(Object base, Object value) {
+        String suffix = String.valueOf(value);
+        if (base instanceof Rope) {
+            return ((Rope) base).append(suffix);
+        }
+        String prefix = (String) base;
+        StringBuilder chars = new StringBuilder(Math.max(16, 2 * (prefix.length() + suffix.length())));
+        chars.append(prefix).append(suffix);
+        return new Rope(chars, chars.length());
+    }
+
+    /**
+     * The number of chars of a String or Rope.
+     */
+    static int length(Object string) {
+        return string instanceof Rope ? ((Rope) string).length : ((String) string).length();
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * True for the values the appending statements work on.
+     */
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    private Rope append(String suffix) {
+        synchronized (chars) {
+            if (chars.length() == length) {
+                chars.append(suffix);
+                return new Rope(chars, chars.length());
+            }
+        }
+        StringBuilder copy = new StringBuilder(Math.max(16, 2 * (length + suffix.length())));
+        copy.append(this).append(suffix);
+        return new Rope(copy, copy.length());
+    }
+
+    @Override
+    public String toString() {
+        String s = flat;
+        if (s == null) {
+            synchronized (chars) {
+                s = chars.substring(0, length);
+            }
+            flat = s;
+        }
+        return s;
+    }
+
+    /**
+     * Operands an assignment appends to its own variable: {@code a} for
+     * {@code s += a}, and {@code a, b} for {@code s = s + a + b}.
+     *
+     * @return The operands in evaluation order, or null if the assignment
+     *         does not have that shape.
+     */
+    static List<Node> appendedOperands(AssignNode assign) {
+        if (assign.encrypted) {
+            return null;
+        }
+        if (assign.op == TokenType.PLUS_EQ) {
+            return Collections.singletonList(assign.value);
+        }
+        if (assign.op != TokenType.ASSIGN) {
+            return null;
+        }
+        List<Node> operands = new ArrayList<>();
+        Node node = assign.value;
+        while (node instanceof BinaryNode && ((BinaryNode) node).op == TokenType.PLUS) {
+            operands.add(((BinaryNode) node).right);
+            node = ((BinaryNode) node).left;
+        }
+        if (operands.isEmpty() || !(node instanceof VariableNode)) {
+            return null;
+        }
+        VariableNode var = (VariableNode) node;
+        if (!var.name.equals(assign.name) || var.slot != assign.slot || var.globalSlot != assign.globalSlot) {
+            return null;
+        }
+        Collections.reverse(operands);
+        return operands;
+    }
+}
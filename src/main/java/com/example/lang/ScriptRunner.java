@@ -0,0 +1,122 @@
+package com.example.lang;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs programs inside the calling JVM, one fresh {@link Interpreter} per
+ * run, and hands back what they printed. This is how the web server runs
+ * submitted code; it replaces compiling this package and starting a JVM for
+ * every request.
+ *
+ * Runs share nothing, so several may go at once on different threads, each
+ * on a program of its own (see {@link Node}). A run blocks its thread while
+ * the program waits on input, a database or its events; the server gives
+ * every run a virtual thread for that reason.
+ */
+public final class ScriptRunner {
+    /**
+     * How long a run waits by default for the events its program scheduled
+     * with {@code @EVENT_TRIGGER} before stopping them.
+     */
+    public static final long DEFAULT_EVENT_TIMEOUT_MILLIS = 10_000;
+
+    private ScriptRunner() {
+    }
+
+    /**
+     * Lexes and parses a program.
+     *
+     * @throws RuntimeException with the position and reason of the first
+     *         syntax error
+     */
+    public static List<Node> parse(String code) {
+        return new Parser(new Lexer(code).tokenize()).parse();
+    }
+
+    /**
+     * What a run printed, and the limit of its budget it went over if any.
+     */
+    public static final class Result {
+        private final String output;
+        private final ExecutionBudget.Exceeded budgetExceeded;
+
+        Result(String output, ExecutionBudget.Exceeded budgetExceeded) {
+            this.output = output;
+            this.budgetExceeded = budgetExceeded;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * The limit the run went over, or null if it stayed within its budget.
+         */
+        public ExecutionBudget.Exceeded getBudgetExceeded() {
+            return budgetExceeded;
+        }
+    }
+
+    /**
+     * Runs a program on the tree engine, reading the lines of {@code input}
+     * as its input, and returns its output. See
+     * {@link #run(List, Console, ExecutionBudget, long)}.
+     */
+    public static Result run(List<Node> program, String input, ExecutionBudget budget, long eventTimeoutMillis) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, true, StandardCharsets.UTF_8);
+        ExecutionBudget.Exceeded exceeded = run(program,
+                Console.of(out, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))), budget,
+                eventTimeoutMillis);
+        return new Result(buffer.toString(StandardCharsets.UTF_8), exceeded);
+    }
+
+    /**
+     * Runs a program on the tree engine with {@code console} as its input
+     * and output, within {@code budget}. A runtime error ends the run and is
+     * printed as "Error: message", where the old child process printed it;
+     * so is going over the budget. Events still pending after
+     * {@code eventTimeoutMillis}, or when the time budget runs out, are
+     * stopped and a line says so.
+     *
+     * @return the limit the run went over, or null
+     */
+    public static ExecutionBudget.Exceeded run(List<Node> program, Console console, ExecutionBudget budget,
+            long eventTimeoutMillis) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setConsole(console);
+        interpreter.setBudget(budget);
+        long start = System.nanoTime();
+        ExecutionBudget.Exceeded exceeded = null;
+        try {
+            interpreter.execute(program);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long wait = Math.min(eventTimeoutMillis, budget.getMaxMillis() - elapsed);
+            if (!interpreter.awaitEvents(wait)) {
+                if (wait < eventTimeoutMillis) {
+                    elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    exceeded = new ExecutionBudget.Exceeded(ExecutionBudget.Limit.TIME, budget.getMaxMillis(), elapsed);
+                    console.println("Error: " + exceeded.getMessage());
+                } else {
+                    console.println("Scheduled events stopped after " + eventTimeoutMillis + " ms.");
+                }
+            }
+        } catch (ExecutionBudget.Exceeded e) {
+            exceeded = e; // also thrown by a console that cannot print within the time budget
+            console.println("Error: " + e.getMessage());
+        } catch (RuntimeException e) {
+            console.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            console.println("Error: interrupted");
+        } finally {
+            interpreter.cancelEvents();
+        }
+        return exceeded != null ? exceeded : interpreter.getBudgetExceeded();
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.lang;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Submitted programs kept in memory by the SHA-256 of their source, so that
+ * code sent again unchanged is not lexed and parsed again. Used by the web
+ * server in place of writing every submission to a shared script file.
+ *
+ * A program is kept as its tree encoded by {@link AstCache}, and every run
+ * gets a new tree decoded from it: trees are changed as they run (see
+ * {@link Node}), so one cannot be handed to two runs. Decoding is several
+ * times cheaper than lexing and parsing. A program with a node the encoding
+ * does not know keeps its token list instead and is parsed again from it.
+ *
+ * The store holds at most {@code maxScripts} programs and about
+ * {@code maxBytes} of sources and trees, and drops the least recently used
+ * ones to stay within both. Unlike {@link AstCache}, the key is a digest:
+ * different users' code must never be taken for each other, and in a
+ * running server the digest costs little next to a parse.
+ */
+public final class ScriptStore {
+    public static final int DEFAULT_MAX_SCRIPTS = 256;
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    // Rough heap size of a Token, for programs kept as tokens
+    private static final int TOKEN_BYTES = 64;
+
+    /**
+     * A program as parsed once.
+     */
+    public static final class Script {
+        private final byte[] tree; // null if not encodable
+        private final List<Token> tokens; // null if tree is not
+        private final String parseError;
+        final long bytes; // what keeping it costs, roughly
+
+        private Script(String code, byte[] tree, List<Token> tokens, String parseError) {
+            this.tree = tree;
+            this.tokens = tokens;
+            this.parseError = parseError;
+            this.bytes = 2L * code.length() + (tree != null ? tree.length : (long) TOKEN_BYTES * tokens.size());
+        }
+
+        /**
+         * A new tree of the program, for one run. If parsing stopped at an
+         * error, the statements before it.
+         */
+        public List<Node> program() {
+            return tree != null ? AstCache.decode(tree) : new Parser(tokens).parse();
+        }
+
+        /**
+         * The message of the syntax error parsing stopped at, or null.
+         */
+        public String parseError() {
+            return parseError;
+        }
+    }
+
+    private final int maxScripts;
+    private final long maxBytes;
+    // By key, in least recently used order; guarded by this
+    private final LinkedHashMap<String, Script> scripts = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public ScriptStore() {
+        this(DEFAULT_MAX_SCRIPTS, DEFAULT_MAX_BYTES);
+    }
+
+    public ScriptStore(int maxScripts, long maxBytes) {
+        this.maxScripts = maxScripts;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The program with the source {@code code}, parsed now if it is not
+     * kept yet.
+     *
+     * @throws RuntimeException if the code cannot be tokenized; nothing is
+     *         kept then
+     */
+    public Script get(String code) {
+        return get(code, null);
+    }
+
+    /**
+     * The program with the source {@code code}, taken from {@code parser}
+     * if it is not kept yet, so that code the editor's parser has seen is
+     * not parsed a second time. The parser parses {@code code} first, which
+     * costs next to nothing if it was the last version it parsed.
+     *
+     * @throws RuntimeException if the code cannot be tokenized; nothing is
+     *         kept then
+     */
+    public Script get(String code, IncrementalParser parser) {
+        String key = key(code);
+        synchronized (this) {
+            Script script = scripts.get(key);
+            if (script != null) {
+                hits++;
+                return script;
+            }
+            misses++;
+        }
+        // Parsed outside the lock; two requests with the same new code both parse it
+        Script script = parser != null ? parse(code, parser) : parse(code);
+        if (script.bytes > maxBytes) {
+            return script; // would push out everything else
+        }
+        synchronized (this) {
+            Script kept = scripts.putIfAbsent(key, script);
+            if (kept != null) {
+                return kept;
+            }
+            bytes += script.bytes;
+            Iterator<Script> eldest = scripts.values().iterator();
+            while (scripts.size() > maxScripts || bytes > maxBytes) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+        return script;
+    }
+
+    private static Script parse(String code) {
+        List<Token> tokens = new Lexer(code).tokenize();
+        Parser parser = new Parser(tokens);
+        List<Node> program = parser.parse();
+        byte[] tree = AstCache.encode(program);
+        return new Script(code, tree, tree == null ? tokens : null, parser.error());
+    }
+
+    private static Script parse(String code, IncrementalParser parser) {
+        List<Node> program;
+        String error;
+        synchronized (parser) { // another request of the session may parse other code meanwhile
+            parser.parse(code);
+            program = parser.getProgram();
+            error = parser.getProgramError();
+        }
+        byte[] tree = AstCache.encode(program);
+        if (tree == null) {
+            return parse(code); // kept as tokens, which the session parser does not keep
+        }
+        return new Script(code, tree, null, error);
+    }
+
+    /**
+     * Number of programs kept, hits and misses, on one line.
+     */
+    public synchronized String getStatistics() {
+        return scripts.size() + " scripts, " + bytes / 1024 + " KB, " + hits + " hits, " + misses + " misses";
+    }
+
+    private static String key(String code) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(sha256.digest(code.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.lang;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The set type of the language: the keys of a {@link MapValue}, so elements
+ * are normalized and specialized the same way, and keep insertion order.
+ */
+final class SetValue extends AbstractSet<Object> {
+    private final MapValue map;
+
+    SetValue() {
+        this(8);
+    }
+
+    SetValue(int expected) {
+        map = new MapValue(expected);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        return map.containsKey(element);
+    }
+
+    @Override
+    public boolean add(Object element) {
+        if (map.containsKey(element)) {
+            return false;
+        }
+        map.put(element, Boolean.TRUE);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        return map.remove(element) != null;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return map.keySet().iterator();
+    }
+
+    /**
+     * The elements in insertion order.
+     */
+    List<Object> toList() {
+        return map.keyList();
+    }
+
+    @Override
+    public String toString() {
+        String entries = map.keyList().toString();
+        return "#{" + entries.substring(1, entries.length() - 1) + "}";
+    }
+}
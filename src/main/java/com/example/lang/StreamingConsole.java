@@ -0,0 +1,147 @@
+package com.example.lang;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A console whose output lines are taken by another thread as they are
+ * printed, to be sent on to a client while the program runs. Input comes
+ * from a fixed text, one line per read.
+ *
+ * At most about {@code capacity} chars of output wait to be taken. A program
+ * printing faster than they are taken blocks in {@link #println} until there
+ * is room, so a slow reader slows the program down instead of growing the
+ * buffer. A single line longer than the capacity is let through once the
+ * buffer is empty. After {@link #close}, when the reader has gone away,
+ * printing fails, which ends the program at its next print. A reader that
+ * stays but stops taking holds the program no longer than its time budget:
+ * a print still waiting then throws {@link ExecutionBudget.Exceeded}.
+ * Interrupting a waiting print ends it with an error too.
+ *
+ * Locks are not monitors, so that a virtual thread blocked here does not
+ * hold on to its carrier.
+ */
+public final class StreamingConsole implements Console {
+    private final String[] input;
+    private int nextInput; // guarded by lock
+    private final int capacity;
+    private final long maxMillis;
+    private final long started = System.nanoTime();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition taken = lock.newCondition();
+    private final Condition printed = lock.newCondition();
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+    private int chars; // in lines
+    private boolean finished; // no more lines will be printed
+    private boolean closed; // no more lines will be taken
+
+    /**
+     * @param maxMillis the time budget of the run, which starts now; prints
+     *                  wait for room until it is spent
+     */
+    public StreamingConsole(String input, int capacity, long maxMillis) {
+        this.input = input.isEmpty() ? new String[0] : input.split("\r?\n");
+        this.capacity = capacity;
+        this.maxMillis = maxMillis;
+    }
+
+    @Override
+    public void println(String line) {
+        lock.lock();
+        try {
+            while (!closed && !lines.isEmpty() && chars + line.length() > capacity) {
+                long elapsed = System.nanoTime() - started;
+                long left = maxMillis == ExecutionBudget.UNLIMITED ? Long.MAX_VALUE
+                        : TimeUnit.MILLISECONDS.toNanos(maxMillis) - elapsed;
+                if (left <= 0) {
+                    throw new ExecutionBudget.Exceeded(ExecutionBudget.Limit.TIME, maxMillis,
+                            TimeUnit.NANOSECONDS.toMillis(elapsed));
+                }
+                try {
+                    taken.awaitNanos(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Output interrupted.");
+                }
+            }
+            if (closed) {
+                throw new RuntimeException("Output closed: the client has gone away.");
+            }
+            lines.add(line);
+            chars += line.length();
+            printed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prints the prompt as a line of its own and returns the next line of
+     * the input text, or null when it has been read to the end.
+     */
+    @Override
+    public String readLine(String prompt) {
+        println(prompt);
+        lock.lock();
+        try {
+            return nextInput < input.length ? input[nextInput++] : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The next line printed, waiting for one if there is none yet; null once
+     * {@link #finish} was called and every line has been taken, or after
+     * {@link #close}.
+     */
+    public String take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (lines.isEmpty() && !finished && !closed) {
+                printed.await();
+            }
+            String line = lines.poll();
+            if (line != null) {
+                chars -= line.length();
+                taken.signalAll(); // printers wait for different amounts of room
+            }
+            return line;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Says the program is done: {@link #take} returns null once the lines
+     * printed so far have been taken.
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            printed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Says nobody will take lines any more: waiting and later prints fail,
+     * and the lines not yet taken are dropped.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            lines.clear();
+            chars = 0;
+            taken.signalAll();
+            printed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
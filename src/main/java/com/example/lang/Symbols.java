@@ -0,0 +1,127 @@
+package com.example.lang;
+
+import java.util.Arrays;
+
+/**
+ * A symbol table: interns identifiers to small ints, numbered from 0 in the
+ * order they are first seen, that the later passes use in place of the name.
+ *
+ * Each {@link Resolver}, so each interpreter, has its own table, and arrays
+ * indexed by symbol only grow with the names of the programs it runs. A
+ * lexer keeps one for the program it reads, so that every occurrence of a
+ * name shares one String. A table belongs to one thread.
+ *
+ * An {@code @ENC} name is its own symbol, marked encrypted, and points to
+ * the symbol of the name without the prefix, which is the variable it
+ * denotes. So {@code @ENCx} and {@code x} share a slot without anyone
+ * stripping the prefix off a String again.
+ */
+final class Symbols {
+    private static final String ENCRYPTED_PREFIX = "@ENC";
+
+    // Open addressing over symbol + 1 (0 is a free slot), probed linearly
+    private int[] table = new int[64];
+    private String[] names = new String[32];
+    private int[] hashes = new int[32];
+    private int[] plain = new int[32]; // the symbol without @ENC; itself if not encrypted
+    private int count;
+
+    /**
+     * The symbol of the name in {@code chars[start, start + length)}. Only
+     * allocates the first time a name is seen.
+     */
+    int intern(char[] chars, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+            int symbol = table[slot] - 1;
+            if (symbol < 0) {
+                return add(new String(chars, start, length), hash, slot);
+            }
+            if (hashes[symbol] == hash && matches(names[symbol], chars, start, length)) {
+                return symbol;
+            }
+        }
+    }
+
+    int intern(String name) {
+        int hash = name.hashCode(); // the same hash as above
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+            int symbol = table[slot] - 1;
+            if (symbol < 0) {
+                return add(name, hash, slot);
+            }
+            if (hashes[symbol] == hash && names[symbol].equals(name)) {
+                return symbol;
+            }
+        }
+    }
+
+    String name(int symbol) {
+        return names[symbol];
+    }
+
+    boolean isEncrypted(int symbol) {
+        return plain[symbol] != symbol;
+    }
+
+    /**
+     * The symbol of the variable a name denotes: the name without {@code @ENC}.
+     */
+    int plain(int symbol) {
+        return plain[symbol];
+    }
+
+    private int add(String name, int hash, int slot) {
+        int symbol = count++;
+        if (symbol == names.length) {
+            names = Arrays.copyOf(names, symbol * 2);
+            hashes = Arrays.copyOf(hashes, symbol * 2);
+            plain = Arrays.copyOf(plain, symbol * 2);
+        }
+        names[symbol] = name;
+        hashes[symbol] = hash;
+        table[slot] = symbol + 1;
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        // After the table is consistent: interning the plain name may add to it (and grow plain)
+        int plainSymbol = name.startsWith(ENCRYPTED_PREFIX) ? intern(name.substring(ENCRYPTED_PREFIX.length())) : symbol;
+        plain[symbol] = plainSymbol;
+        return symbol;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int symbol = 0; symbol < count; symbol++) {
+            int slot = mix(hashes[symbol]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = symbol + 1;
+        }
+    }
+
+    private static boolean matches(String name, char[] chars, int start, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Spreads the bits so similar names do not fill runs of adjacent slots
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.lang;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The tokens the parser is reading, kept as parallel arrays (type, lexeme,
+ * offset, length, line, column) instead of one object per token.
+ *
+ * Tokens are pulled from the lexer only when the parser reaches them, and
+ * only the last {@link #WINDOW} are kept: the parser looks at the current
+ * token and the one before it, so a script is never tokenized as a whole.
+ * Tokens are numbered from 0 in the order they were read.
+ */
+final class TokenBuffer {
+    private static final int WINDOW = 16; // a power of two
+
+    // One of these is the source
+    private final Lexer lexer;
+    private final Iterator<Token> list;
+
+    private final TokenType[] types = new TokenType[WINDOW];
+    private final String[] lexemes = new String[WINDOW];
+    private final int[] offsets = new int[WINDOW]; // in the source text, or -1 if not known
+    private final int[] lengths = new int[WINDOW];
+    private final int[] lines = new int[WINDOW];
+    private final int[] columns = new int[WINDOW];
+    private int count; // tokens read so far
+    private RuntimeException lexerError;
+
+    TokenBuffer(Lexer lexer) {
+        this.lexer = lexer;
+        this.list = null;
+    }
+
+    TokenBuffer(List<Token> tokens) {
+        this.lexer = null;
+        this.list = tokens.iterator();
+    }
+
+    TokenType type(int token) {
+        return types[slot(token)];
+    }
+
+    String lexeme(int token) {
+        return lexemes[slot(token)];
+    }
+
+    int offset(int token) {
+        return offsets[slot(token)];
+    }
+
+    int length(int token) {
+        return lengths[slot(token)];
+    }
+
+    int line(int token) {
+        return lines[slot(token)];
+    }
+
+    int column(int token) {
+        return columns[slot(token)];
+    }
+
+    /**
+     * The error the lexer failed with, if it did.
+     */
+    RuntimeException lexerError() {
+        return lexerError;
+    }
+
+    void add(TokenType type, String lexeme, int offset, int length, int line, int column) {
+        int slot = count++ & (WINDOW - 1);
+        types[slot] = type;
+        lexemes[slot] = lexeme;
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        lines[slot] = line;
+        columns[slot] = column;
+    }
+
+    private int slot(int token) {
+        while (token >= count) {
+            pull();
+        }
+        if (token < count - WINDOW) {
+            throw new IllegalStateException("Token " + token + " is no longer buffered");
+        }
+        return token & (WINDOW - 1);
+    }
+
+    private void pull() {
+        if (lexer != null) {
+            try {
+                lexer.next(this);
+            } catch (RuntimeException e) {
+                lexerError = e;
+                throw e;
+            }
+        } else if (list.hasNext()) {
+            Token token = list.next();
+            add(token.type, token.lexeme, -1, token.lexeme.length(), token.line, token.column);
+        } else {
+            // Past the end of a list without an EOF token
+            int last = (count - 1) & (WINDOW - 1);
+            add(TokenType.EOF, "", -1, 0, count > 0 ? lines[last] : 1, count > 0 ? columns[last] : 1);
+        }
+    }
+}
@@ -10,8 +10,9 @@ public enum TokenType {
     PLUS_EQ, MINUS_EQ, STAR_EQ, SLASH_EQ,
     PLUS_PLUS, MINUS_MINUS,
     ARROW,
-    COMMA, SEMICOLON,
+    COMMA, SEMICOLON, COLON,
     LBRACE, RBRACE,
+    HASH_LBRACE, // #{ opening a set literal
     LPAREN, RPAREN,
     LBRACKET, RBRACKET,
 
@@ -22,6 +23,7 @@ public enum TokenType {
     PRINT, IF, ELSE, FOR, TO, INPUT, WHILE,
     FUNCTION, RETURN,
     EVENT_TRIGGER,
+    MEMO, // @MEMO annotation on a function
     USE, // Newly added keyword for imports
 
     // End of file
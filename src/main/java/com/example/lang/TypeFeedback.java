@@ -0,0 +1,45 @@
+package com.example.lang;
+
+/**
+ * Operand types an operator node has seen so far. A node starts out
+ * {@link #UNINITIALIZED}, picks a specialized variant from the first operands
+ * it evaluates, and drops to {@link #GENERIC} for good once a guard fails.
+ */
+enum TypeFeedback {
+    UNINITIALIZED,
+    INT, // both operands Integer
+    NUMBER, // both operands Integer or Double, at least one a Double
+    STRING, // string concatenation
+    GENERIC; // anything else, handled by applyOp/applyUnary
+
+    static TypeFeedback of(TokenType op, Object left, Object right) {
+        if (op == TokenType.AND_AND || op == TokenType.OR_OR) {
+            return GENERIC;
+        }
+        if (op == TokenType.PLUS && (left instanceof String || right instanceof String)) {
+            return STRING;
+        }
+        if (left instanceof Integer && right instanceof Integer) {
+            return INT;
+        }
+        if (isNumber(left) && isNumber(right)) {
+            return NUMBER;
+        }
+        return GENERIC;
+    }
+
+    static TypeFeedback of(Object operand) {
+        if (operand instanceof Integer) {
+            return INT;
+        }
+        if (isNumber(operand)) {
+            return NUMBER;
+        }
+        return GENERIC;
+    }
+
+    // Longs, BigIntegers and BigDecimals need exact arithmetic, so they stay generic
+    static boolean isNumber(Object operand) {
+        return operand instanceof Integer || operand instanceof Double;
+    }
+}
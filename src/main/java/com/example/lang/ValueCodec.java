@@ -0,0 +1,194 @@
+package com.example.lang;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary form of values for encrypted variables: a tag byte, then the
+ * payload. Numbers, booleans and strings come back with the same type, and
+ * lists, maps and sets element by element, where going through
+ * {@code String.valueOf} and back lost both.
+ *
+ * Values of other types (library objects) are stored as their string form.
+ */
+final class ValueCodec {
+    private static final byte NULL = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte BIG_INTEGER = 3;
+    private static final byte BIG_DECIMAL = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte TRUE = 6;
+    private static final byte FALSE = 7;
+    private static final byte STRING = 8;
+    private static final byte LIST = 9;
+    private static final byte MAP = 10;
+    private static final byte SET = 11;
+
+    // Deeper nesting can only come from a list that contains itself
+    private static final int MAX_DEPTH = 1000;
+
+    private ValueCodec() {
+    }
+
+    /**
+     * The binary form of a value. The working buffer is zeroed; the caller
+     * owns the result and should zero it once done.
+     */
+    static byte[] encode(Object value) {
+        Buffer bytes = new Buffer();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            write(out, value, 0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Encryption failed: " + e.getMessage());
+        } finally {
+            bytes.wipe();
+        }
+    }
+
+    static Object decode(byte[] encoded) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded))) {
+            return read(in);
+        } catch (IOException e) {
+            throw new RuntimeException("Decryption failed: " + e.getMessage());
+        }
+    }
+
+    private static void write(DataOutputStream out, Object value, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new RuntimeException("Cannot encrypt a value that contains itself.");
+        }
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(out, ((BigInteger) value).toByteArray());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                write(out, element, depth + 1);
+            }
+        } else if (value instanceof Set) {
+            Collection<?> set = (Collection<?>) value;
+            out.writeByte(SET);
+            out.writeInt(set.size());
+            for (Object element : set) {
+                write(out, element, depth + 1);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write(out, entry.getKey(), depth + 1);
+                write(out, entry.getValue(), depth + 1);
+            }
+        } else {
+            out.writeByte(STRING);
+            writeBytes(out, String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Object read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INT:
+                return in.readInt();
+            case DOUBLE:
+                return in.readDouble();
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case LONG:
+                return in.readLong();
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(in));
+            case BIG_DECIMAL:
+                return new BigDecimal(new String(readBytes(in), StandardCharsets.UTF_8));
+            case LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayValue(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case SET: {
+                int size = in.readInt();
+                Set<Object> set = new SetValue(size);
+                for (int i = 0; i < size; i++) {
+                    set.add(read(in));
+                }
+                return set;
+            }
+            case MAP: {
+                int size = in.readInt();
+                Map<Object, Object> map = new MapValue(size);
+                for (int i = 0; i < size; i++) {
+                    Object key = read(in);
+                    map.put(key, read(in));
+                }
+                return map;
+            }
+            default:
+                throw new IOException("unknown tag " + tag);
+        }
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(16);
+        }
+
+        void wipe() {
+            Arrays.fill(buf, (byte) 0);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
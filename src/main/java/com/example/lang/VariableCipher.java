@@ -0,0 +1,186 @@
+package com.example.lang;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encryption of {@code @ENC} variables, kept off the per-access path.
+ *
+ * Each thread creates its two ciphers once: with the fixed key and IV,
+ * {@code doFinal} leaves a cipher ready for the next value, so nothing is
+ * looked up or allocated per call.
+ *
+ * What is encrypted is the {@link ValueCodec} form of the value, so reads
+ * get back the same types without any text parsing.
+ *
+ * Reads go through a small cache of plaintexts, keyed on the identity of the
+ * {@link EncryptedValue} (a variable gets a new one on every write, so an
+ * entry can never go stale). Writes fill it, so {@code @ENCx++} in a loop
+ * encrypts once per iteration and never decrypts. Entries live for
+ * {@link #TTL_NANOS} at most. Values that cannot change (numbers, booleans,
+ * strings) are cached as they are; for lists, maps and sets, which every
+ * read must copy, the encoded plaintext is kept and overwritten with zeros
+ * when the entry goes. Strings and numbers cannot be wiped in Java, so for
+ * those the cache only bounds how long it holds a reference.
+ */
+final class VariableCipher {
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final SecretKeySpec KEY =
+            new SecretKeySpec("0123456789abcdef".getBytes(StandardCharsets.UTF_8), "AES");
+    private static final IvParameterSpec IV =
+            new IvParameterSpec("abcdef9876543210".getBytes(StandardCharsets.UTF_8));
+
+    private static final ThreadLocal<Cipher> ENCRYPTORS = ThreadLocal.withInitial(() -> newCipher(Cipher.ENCRYPT_MODE));
+    private static final ThreadLocal<Cipher> DECRYPTORS = ThreadLocal.withInitial(() -> newCipher(Cipher.DECRYPT_MODE));
+
+    private static final int CACHE_SIZE = 64; // a power of two
+    static final long TTL_NANOS = 500_000_000L;
+
+    private static final class Entry {
+        final EncryptedValue owner;
+        final long expires;
+        Object value; // the value, if it cannot change
+        byte[] plaintext; // otherwise its encoded form
+
+        Entry(EncryptedValue owner, long expires) {
+            this.owner = owner;
+            this.expires = expires;
+        }
+    }
+
+    // Direct-mapped on the owner's identity hash; guarded by this
+    private final Entry[] cache = new Entry[CACHE_SIZE];
+    private long nextSweep;
+
+    /**
+     * Encrypts a value for storing in an {@code @ENC} variable, and remembers
+     * its plaintext for the next read.
+     */
+    EncryptedValue seal(Object value) {
+        byte[] plaintext = ValueCodec.encode(value);
+        EncryptedValue sealed = new EncryptedValue(encrypt(plaintext));
+        Entry entry = new Entry(sealed, System.nanoTime() + TTL_NANOS);
+        if (isImmutable(value)) {
+            entry.value = value;
+            zero(plaintext);
+        } else {
+            entry.plaintext = plaintext;
+        }
+        store(entry);
+        return sealed;
+    }
+
+    /**
+     * The value of an {@code @ENC} variable; lists, maps and sets are fresh
+     * copies.
+     */
+    Object read(EncryptedValue sealed) {
+        synchronized (this) {
+            int slot = slot(sealed);
+            Entry entry = cache[slot];
+            if (entry != null && entry.owner == sealed) {
+                if (System.nanoTime() - entry.expires < 0) {
+                    return entry.value != null ? entry.value : ValueCodec.decode(entry.plaintext);
+                }
+                evict(slot);
+            }
+        }
+        byte[] plaintext = decrypt(sealed.ciphertext);
+        Object value = ValueCodec.decode(plaintext);
+        Entry entry = new Entry(sealed, System.nanoTime() + TTL_NANOS);
+        if (isImmutable(value)) {
+            entry.value = value;
+            zero(plaintext);
+        } else {
+            entry.plaintext = plaintext;
+        }
+        store(entry);
+        return value;
+    }
+
+    /**
+     * Drops every cached plaintext.
+     */
+    synchronized void clear() {
+        for (int slot = 0; slot < CACHE_SIZE; slot++) {
+            evict(slot);
+        }
+    }
+
+    private synchronized void store(Entry entry) {
+        long now = System.nanoTime();
+        if (now - nextSweep >= 0) {
+            // Expired entries nobody reads again would otherwise stay until their slot is reused
+            for (int slot = 0; slot < CACHE_SIZE; slot++) {
+                if (cache[slot] != null && now - cache[slot].expires >= 0) {
+                    evict(slot);
+                }
+            }
+            nextSweep = now + TTL_NANOS;
+        }
+        int slot = slot(entry.owner);
+        evict(slot);
+        cache[slot] = entry;
+    }
+
+    private void evict(int slot) {
+        Entry entry = cache[slot];
+        if (entry != null) {
+            zero(entry.plaintext);
+            entry.plaintext = null;
+            entry.value = null;
+            cache[slot] = null;
+        }
+    }
+
+    private static int slot(EncryptedValue owner) {
+        return System.identityHashCode(owner) & (CACHE_SIZE - 1);
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value instanceof Integer || value instanceof Double || value instanceof Boolean
+                || value instanceof String || value instanceof Long || value instanceof BigInteger
+                || value instanceof BigDecimal;
+    }
+
+    private static void zero(byte[] bytes) {
+        if (bytes != null) {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private static byte[] encrypt(byte[] plaintext) {
+        try {
+            return ENCRYPTORS.get().doFinal(plaintext);
+        } catch (Exception ex) {
+            ENCRYPTORS.remove(); // in whatever state the failure left it
+            throw new RuntimeException("Encryption failed: " + ex.getMessage());
+        }
+    }
+
+    private static byte[] decrypt(byte[] ciphertext) {
+        try {
+            return DECRYPTORS.get().doFinal(ciphertext);
+        } catch (Exception ex) {
+            DECRYPTORS.remove();
+            throw new RuntimeException("Decryption failed: " + ex.getMessage());
+        }
+    }
+
+    private static Cipher newCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, KEY, IV);
+            return cipher;
+        } catch (Exception ex) {
+            throw new RuntimeException((mode == Cipher.ENCRYPT_MODE ? "Encryption" : "Decryption")
+                    + " failed: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.lang;
+
+import java.util.List;
+
+import com.example.lang.vm.FunctionProto;
+import com.example.lang.vm.OpCode;
+import com.example.lang.vm.Sealed;
+import com.example.lang.vm.VmRuntime;
+
+/**
+ * Connects the {@link com.example.lang.vm.VirtualMachine} to an
+ * {@link Interpreter}: the VM reads and writes the interpreter's frames and
+ * delegates operator semantics, library calls and uncompiled nodes to it.
+ */
+class VmHost implements VmRuntime {
+    // Maps VM opcodes back to the operator tokens understood by applyOp
+    private static final TokenType[] OPERATORS = new TokenType[OpCode.OR + 1];
+
+    static {
+        OPERATORS[OpCode.ADD] = TokenType.PLUS;
+        OPERATORS[OpCode.SUB] = TokenType.MINUS;
+        OPERATORS[OpCode.MUL] = TokenType.STAR;
+        OPERATORS[OpCode.DIV] = TokenType.SLASH;
+        OPERATORS[OpCode.MOD] = TokenType.MOD;
+        OPERATORS[OpCode.EQ] = TokenType.EQ_EQ;
+        OPERATORS[OpCode.NE] = TokenType.NOT_EQ;
+        OPERATORS[OpCode.GT] = TokenType.GT;
+        OPERATORS[OpCode.LT] = TokenType.LT;
+        OPERATORS[OpCode.GE] = TokenType.GT_EQ;
+        OPERATORS[OpCode.LE] = TokenType.LT_EQ;
+        OPERATORS[OpCode.AND] = TokenType.AND_AND;
+        OPERATORS[OpCode.OR] = TokenType.OR_OR;
+    }
+
+    // Handle of a call whose result is cached, see enterCall
+    private static final class CachedCall {
+        final Memoizer.Table table;
+        final Object key;
+
+        CachedCall(Memoizer.Table table, Object key) {
+            this.table = table;
+            this.key = key;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final BytecodeCompiler compiler = new BytecodeCompiler();
+
+    VmHost(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    @Override
+    public Object undefined() {
+        return Interpreter.UNDEFINED;
+    }
+
+    @Override
+    public Object[] globals() {
+        return interpreter.globals;
+    }
+
+    @Override
+    public List<Object> newList(int size) {
+        return new ArrayValue(size);
+    }
+
+    @Override
+    public Object binary(int opcode, Object left, Object right) {
+        return interpreter.applyOp(left, right, OPERATORS[opcode]);
+    }
+
+    @Override
+    public Object unary(int opcode, Object value) {
+        return interpreter.applyUnary(value, opcode == OpCode.INC ? TokenType.PLUS_PLUS : TokenType.MINUS_MINUS);
+    }
+
+    @Override
+    public boolean isTrue(Object value) {
+        return interpreter.isTrue(value);
+    }
+
+    @Override
+    public Object unseal(Object value, boolean decrypt) {
+        return interpreter.unseal((Sealed) value, decrypt);
+    }
+
+    @Override
+    public void print(Object value) {
+        interpreter.print(value);
+    }
+
+    @Override
+    public void checkIndex(Object target, Object index) {
+        interpreter.checkIndex(target, index);
+    }
+
+    @Override
+    public Object index(Object target, Object index) {
+        return interpreter.index(target, index);
+    }
+
+    @Override
+    public Object storeIndex(Object target, Object index, int opcode, Object value) {
+        TokenType op = opcode < 0 ? TokenType.ASSIGN : compoundOf(OPERATORS[opcode]);
+        return interpreter.storeIndex(target, index, op, value);
+    }
+
+    @Override
+    public Object invoke(Object target, String methodName, List<Object> args) {
+        return interpreter.callObjectMethod(target, methodName, args);
+    }
+
+    @Override
+    public FunctionProto function(int symbol, int argCount) {
+        return compiled(interpreter.lookupFunction(symbol, argCount));
+    }
+
+    FunctionProto compiled(FunctionDefNode func) {
+        if (func.bytecode == null) {
+            func.bytecode = compiler.compileFunction(func);
+        }
+        return func.bytecode;
+    }
+
+    @Override
+    public Object enterCall(FunctionProto function, Object[] frame, int depth) {
+        interpreter.enterHeapCall(depth, frame.length);
+        FunctionDefNode func = (FunctionDefNode) function.getSource();
+        Memoizer.Table table = interpreter.memoTable(func, frame);
+        return table == null ? null : new CachedCall(table, Memoizer.key(func, frame));
+    }
+
+    @Override
+    public Object cachedResult(Object call) {
+        return Memoizer.lookup(((CachedCall) call).table, ((CachedCall) call).key);
+    }
+
+    @Override
+    public void cacheResult(Object call, Object result) {
+        Memoizer.store(((CachedCall) call).table, ((CachedCall) call).key, result);
+    }
+
+    @Override
+    public void step() {
+        interpreter.step();
+    }
+
+    @Override
+    public void execute(Object node, Object[] locals) {
+        Object[] callerFrame = interpreter.frame;
+        interpreter.frame = locals;
+        try {
+            interpreter.executeNode((Node) node);
+        } finally {
+            interpreter.frame = callerFrame;
+        }
+    }
+
+    @Override
+    public Object evaluate(Object node, Object[] locals, boolean decrypt) {
+        Object[] callerFrame = interpreter.frame;
+        interpreter.frame = locals;
+        try {
+            return interpreter.evaluate((Node) node, decrypt);
+        } finally {
+            interpreter.frame = callerFrame;
+        }
+    }
+
+    private static TokenType compoundOf(TokenType op) {
+        switch (op) {
+            case PLUS:
+                return TokenType.PLUS_EQ;
+            case MINUS:
+                return TokenType.MINUS_EQ;
+            case STAR:
+                return TokenType.STAR_EQ;
+            case SLASH:
+                return TokenType.SLASH_EQ;
+            default:
+                throw new RuntimeException("Unsupported compound assignment operator: " + op);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.lang.vm;
+
+/**
+ * A compiled unit of code: the instruction array, its constant pool and the
+ * deepest operand stack it can build up.
+ */
+public final class Chunk {
+    final String name;
+    final int[] code;
+    final Object[] constants;
+    final int maxStack;
+
+    Chunk(String name, int[] code, Object[] constants, int maxStack) {
+        this.name = name;
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Human readable listing, used when debugging the compiler.
+     */
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder("== ").append(name).append(" ==\n");
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            sb.append(String.format("%04d %d", pc, op));
+            for (int i = 1; i <= OpCode.operandCount(op); i++) {
+                sb.append(' ').append(code[pc + i]);
+            }
+            sb.append('\n');
+            pc += 1 + OpCode.operandCount(op);
+        }
+        return sb.toString();
+    }
+}
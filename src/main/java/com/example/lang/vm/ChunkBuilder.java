@@ -0,0 +1,108 @@
+package com.example.lang.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles a {@link Chunk}: appends instructions, interns constants, patches
+ * forward jumps and keeps track of the maximum operand stack depth.
+ */
+public final class ChunkBuilder {
+    private final String name;
+    private int[] code = new int[64];
+    private int length;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    private int stackDepth;
+    private int maxStack;
+
+    public ChunkBuilder(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Appends an instruction and returns its position.
+     */
+    public int emit(int op, int... operands) {
+        if (operands.length != OpCode.operandCount(op)) {
+            throw new IllegalArgumentException("Opcode " + op + " expects " + OpCode.operandCount(op) + " operands");
+        }
+        int position = length;
+        ensureCapacity(length + 1 + operands.length);
+        code[length++] = op;
+        for (int operand : operands) {
+            code[length++] = operand;
+        }
+        stackDepth += OpCode.stackEffect(op, operands);
+        maxStack = Math.max(maxStack, stackDepth);
+        return position;
+    }
+
+    /**
+     * Emits a jump with a placeholder target; pass the result to {@link #patch}.
+     */
+    public int emitJump(int op) {
+        return emit(op, -1);
+    }
+
+    /**
+     * Points a previously emitted jump at the current end of the code.
+     */
+    public void patch(int jumpPosition) {
+        code[jumpPosition + 1] = length;
+    }
+
+    public int position() {
+        return length;
+    }
+
+    /**
+     * Returns the pool index of a constant. Equal literals share one entry,
+     * other objects (AST nodes, prototypes) are pooled by identity.
+     */
+    public int constant(Object value) {
+        boolean literal = value instanceof String || value instanceof Number || value instanceof Boolean;
+        if (literal) {
+            Integer index = constantIndex.get(constantKey(value));
+            if (index != null) {
+                return index;
+            }
+        }
+        constants.add(value);
+        int index = constants.size() - 1;
+        if (literal) {
+            constantIndex.put(constantKey(value), index);
+        }
+        return index;
+    }
+
+    // Integer 1 and Double 1.0 must not share a pool entry
+    private static Object constantKey(Object value) {
+        return Arrays.asList(value.getClass(), value);
+    }
+
+    /**
+     * Tells the builder that control flow merges with a different stack depth,
+     * e.g. after a branch that leaves nothing behind.
+     */
+    public void setStackDepth(int depth) {
+        stackDepth = depth;
+    }
+
+    public int stackDepth() {
+        return stackDepth;
+    }
+
+    public Chunk build() {
+        return new Chunk(name, Arrays.copyOf(code, length), constants.toArray(), maxStack);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > code.length) {
+            code = Arrays.copyOf(code, Math.max(capacity, code.length * 2));
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.lang.vm;
+
+/**
+ * A compiled user function.
+ */
+public final class FunctionProto {
+    final String name;
+    final int arity;
+    final int frameSize;
+    final Chunk chunk;
+    final Object source; // the host's definition of the function, opaque to the VM
+
+    public FunctionProto(String name, int arity, int frameSize, Chunk chunk, Object source) {
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.chunk = chunk;
+        this.source = source;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Object getSource() {
+        return source;
+    }
+}
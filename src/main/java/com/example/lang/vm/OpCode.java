@@ -0,0 +1,132 @@
+package com.example.lang.vm;
+
+/**
+ * Instruction set of the stack VM. Operands follow the opcode inline in the
+ * code array; the comment on each opcode lists them.
+ */
+public final class OpCode {
+    public static final int CONST = 0; // constant index
+    public static final int NULL = 1;
+    public static final int POP = 2;
+    public static final int DUP = 3;
+    public static final int SWAP = 4;
+
+    public static final int LOAD_LOCAL = 5; // slot
+    public static final int LOAD_GLOBAL = 6; // global slot, name constant
+    public static final int LOAD_VAR = 7; // slot, global slot, name constant
+    public static final int LOAD_VAR_RAW = 8; // slot or -1, global slot or -1, name constant (no decryption)
+    public static final int STORE_LOCAL = 9; // slot
+    public static final int STORE_GLOBAL = 10; // global slot
+    public static final int STORE_VAR = 11; // slot, global slot
+
+    // Binary operators, all without operands
+    public static final int ADD = 12;
+    public static final int SUB = 13;
+    public static final int MUL = 14;
+    public static final int DIV = 15;
+    public static final int MOD = 16;
+    public static final int EQ = 17;
+    public static final int NE = 18;
+    public static final int GT = 19;
+    public static final int LT = 20;
+    public static final int GE = 21;
+    public static final int LE = 22;
+    public static final int AND = 23;
+    public static final int OR = 24;
+
+    public static final int NOT = 25;
+    public static final int INC = 26;
+    public static final int DEC = 27;
+
+    public static final int JUMP = 28; // target
+    public static final int JUMP_IF_FALSE = 29; // target
+
+    public static final int ARRAY = 30; // element count
+    public static final int INDEX = 31;
+    public static final int CHECK_INDEX = 32;
+    public static final int STORE_INDEX = 33; // compound operator opcode, or -1 for plain '='
+
+    public static final int FUNCTION = 34; // symbol of the name, argument count
+    public static final int CALL = 35; // argument count
+    public static final int RETURN = 36;
+    public static final int INVOKE = 37; // method name constant, argument count
+    public static final int PRINT = 38;
+
+    public static final int EXEC = 39; // node constant, run by the host as a statement
+    public static final int EVAL = 40; // node constant, evaluated by the host
+    public static final int EVAL_RAW = 41; // node constant, evaluated by the host without decryption
+    public static final int HALT = 42;
+    public static final int TAIL_CALL = 43; // argument count; replaces the running call with the callee
+
+    private static final int[] OPERAND_COUNTS = {
+            1, 0, 0, 0, 0,
+            1, 2, 3, 3, 1, 1, 2,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0,
+            1, 1,
+            1, 0, 0, 1,
+            2, 1, 0, 2, 0,
+            1, 1, 1, 0, 1
+    };
+
+    private OpCode() {
+    }
+
+    public static int operandCount(int op) {
+        return OPERAND_COUNTS[op];
+    }
+
+    /**
+     * Net change of the operand stack caused by executing the instruction.
+     */
+    static int stackEffect(int op, int[] operands) {
+        switch (op) {
+            case CONST:
+            case NULL:
+            case DUP:
+            case LOAD_LOCAL:
+            case LOAD_GLOBAL:
+            case LOAD_VAR:
+            case LOAD_VAR_RAW:
+            case FUNCTION:
+            case EVAL:
+            case EVAL_RAW:
+                return 1;
+            case POP:
+            case STORE_LOCAL:
+            case STORE_GLOBAL:
+            case STORE_VAR:
+            case JUMP_IF_FALSE:
+            case PRINT:
+            case RETURN:
+                return -1;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case MOD:
+            case EQ:
+            case NE:
+            case GT:
+            case LT:
+            case GE:
+            case LE:
+            case AND:
+            case OR:
+            case INDEX:
+                return -1;
+            case STORE_INDEX:
+                return -2;
+            case ARRAY:
+                return 1 - operands[0];
+            case CALL:
+                return -operands[0]; // arguments and callee replaced by the result
+            case TAIL_CALL:
+                return -operands[0] - 1;
+            case INVOKE:
+                return -operands[1]; // arguments and target replaced by the result
+            default:
+                return 0;
+        }
+    }
+}
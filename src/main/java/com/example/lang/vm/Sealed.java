@@ -0,0 +1,13 @@
+package com.example.lang.vm;
+
+/**
+ * Base for values the VM must not use directly. When one is loaded from a
+ * variable it is handed to {@link VmRuntime#unseal} first (encrypted
+ * variables are stored this way).
+ *
+ * This is a class rather than a marker interface on purpose: the check runs
+ * on every variable load, and a class check is a single compare where an
+ * interface check has to scan the value's supertypes.
+ */
+public abstract class Sealed {
+}
@@ -0,0 +1,383 @@
+package com.example.lang.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stack based interpreter for compiled {@link Chunk}s.
+ *
+ * Calls do not recurse on the Java stack: each user function call pushes an
+ * entry onto the VM's own frame stack, which lives on the heap and grows on
+ * demand. Tail calls push nothing, so tail recursion runs in constant space.
+ * This is also why the host hands calls to the VM once its own recursion is
+ * deep, see {@link #call}.
+ */
+public final class VirtualMachine {
+    private static final Object[] NO_LOCALS = new Object[0];
+    // Caller of the function run by call(): returning to it ends the run
+    private static final Chunk RETURN_TO_HOST = new Chunk("<host>", new int[] { OpCode.HALT }, new Object[0], 1);
+
+    private final VmRuntime runtime;
+    private final Object undefined;
+
+    // Frame stack, one entry per active call below the running one
+    private Chunk[] callerChunks = new Chunk[16];
+    private int[] callerPcs = new int[16];
+    private Object[][] callerLocals = new Object[16][];
+    private Object[] cachedCalls = new Object[16]; // of the callee, see VmRuntime.enterCall
+    private int frameCount;
+
+    private Object[] stack = new Object[64];
+
+    public VirtualMachine(VmRuntime runtime) {
+        this.runtime = runtime;
+        this.undefined = runtime.undefined();
+    }
+
+    public void run(Chunk main) {
+        frameCount = 0;
+        execute(main, NO_LOCALS);
+    }
+
+    /**
+     * Runs a call of {@code function}, whose arguments are already in
+     * {@code frame}, and returns its result. Calls it makes in turn stay on
+     * the VM's frame stack, however deep they go.
+     */
+    public Object call(FunctionProto function, Object[] frame) {
+        callerChunks[0] = RETURN_TO_HOST;
+        callerPcs[0] = 0;
+        callerLocals[0] = NO_LOCALS;
+        cachedCalls[0] = null;
+        frameCount = 1;
+        return execute(function.chunk, frame);
+    }
+
+    // Runs until HALT, which leaves the result of call() on the operand stack
+    private Object execute(Chunk entry, Object[] entryLocals) {
+        ensureStack(entry.maxStack + 1);
+
+        Chunk chunk = entry;
+        int[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        Object[] locals = entryLocals;
+        Object[] globals = runtime.globals();
+        Object[] stack = this.stack;
+        int sp = 0;
+        int pc = 0;
+
+        while (true) {
+            int op = code[pc++];
+            switch (op) {
+                case OpCode.CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case OpCode.NULL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.POP:
+                    sp--;
+                    break;
+                case OpCode.DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case OpCode.SWAP: {
+                    Object top = stack[sp - 1];
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = top;
+                    break;
+                }
+                case OpCode.LOAD_LOCAL: {
+                    Object value = locals[code[pc++]];
+                    if (value instanceof Sealed) {
+                        value = runtime.unseal(value, true);
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.LOAD_GLOBAL: {
+                    Object value = globals[code[pc]];
+                    if (value == undefined) {
+                        throw undefinedVariable(constants[code[pc + 1]]);
+                    }
+                    pc += 2;
+                    if (value instanceof Sealed) {
+                        value = runtime.unseal(value, true);
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.LOAD_VAR: {
+                    Object value = locals[code[pc]];
+                    if (value == undefined) {
+                        value = globals[code[pc + 1]];
+                        if (value == undefined) {
+                            throw undefinedVariable(constants[code[pc + 2]]);
+                        }
+                    }
+                    pc += 3;
+                    if (value instanceof Sealed) {
+                        value = runtime.unseal(value, true);
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.LOAD_VAR_RAW: {
+                    // Either slot may be -1 here; only used for print expressions
+                    int slot = code[pc];
+                    int globalSlot = code[pc + 1];
+                    Object value = slot >= 0 ? locals[slot] : undefined;
+                    if (value == undefined && globalSlot >= 0) {
+                        value = globals[globalSlot];
+                    }
+                    if (value == undefined) {
+                        throw undefinedVariable(constants[code[pc + 2]]);
+                    }
+                    pc += 3;
+                    if (value instanceof Sealed) {
+                        value = runtime.unseal(value, false);
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.STORE_LOCAL:
+                    locals[code[pc++]] = stack[--sp];
+                    break;
+                case OpCode.STORE_GLOBAL:
+                    globals[code[pc++]] = stack[--sp];
+                    break;
+                case OpCode.STORE_VAR: {
+                    int slot = code[pc];
+                    int globalSlot = code[pc + 1];
+                    pc += 2;
+                    // Same rule as the tree walker: existing local, then existing global, else new local
+                    if (locals[slot] != undefined || globals[globalSlot] == undefined) {
+                        locals[slot] = stack[--sp];
+                    } else {
+                        globals[globalSlot] = stack[--sp];
+                    }
+                    break;
+                }
+                case OpCode.ADD:
+                case OpCode.SUB:
+                case OpCode.MUL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Integer && right instanceof Integer) {
+                        long l = (Integer) left;
+                        long r = (Integer) right;
+                        long result = op == OpCode.ADD ? l + r : op == OpCode.SUB ? l - r : l * r;
+                        if ((int) result == result) {
+                            stack[sp - 1] = (int) result;
+                            break;
+                        }
+                    }
+                    stack[sp - 1] = runtime.binary(op, left, right);
+                    break;
+                }
+                case OpCode.LT:
+                case OpCode.LE:
+                case OpCode.GT:
+                case OpCode.GE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Integer && right instanceof Integer) {
+                        int l = (Integer) left;
+                        int r = (Integer) right;
+                        stack[sp - 1] = op == OpCode.LT ? l < r : op == OpCode.LE ? l <= r : op == OpCode.GT ? l > r : l >= r;
+                    } else {
+                        stack[sp - 1] = runtime.binary(op, left, right);
+                    }
+                    break;
+                }
+                case OpCode.DIV:
+                case OpCode.MOD:
+                case OpCode.EQ:
+                case OpCode.NE:
+                case OpCode.AND:
+                case OpCode.OR: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = runtime.binary(op, stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !isTrue(stack[sp - 1]);
+                    break;
+                case OpCode.INC:
+                case OpCode.DEC:
+                    stack[sp - 1] = runtime.unary(op, stack[sp - 1]);
+                    break;
+                case OpCode.JUMP:
+                    if (code[pc] < pc) {
+                        runtime.step(); // back to the top of a loop
+                    }
+                    pc = code[pc];
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (isTrue(stack[--sp])) {
+                        pc++;
+                    } else {
+                        pc = code[pc];
+                    }
+                    break;
+                case OpCode.ARRAY: {
+                    int count = code[pc++];
+                    List<Object> list = runtime.newList(count);
+                    for (int i = sp - count; i < sp; i++) {
+                        list.add(stack[i]);
+                    }
+                    sp -= count;
+                    stack[sp++] = list;
+                    break;
+                }
+                case OpCode.CHECK_INDEX:
+                    runtime.checkIndex(stack[sp - 2], stack[sp - 1]);
+                    break;
+                case OpCode.INDEX: {
+                    Object index = stack[--sp];
+                    stack[sp - 1] = runtime.index(stack[sp - 1], index);
+                    break;
+                }
+                case OpCode.STORE_INDEX: {
+                    Object value = stack[--sp];
+                    Object index = stack[--sp];
+                    stack[sp - 1] = runtime.storeIndex(stack[sp - 1], index, code[pc++], value);
+                    break;
+                }
+                case OpCode.FUNCTION: {
+                    stack[sp++] = runtime.function(code[pc], code[pc + 1]);
+                    pc += 2;
+                    break;
+                }
+                case OpCode.CALL: {
+                    int argCount = code[pc++];
+                    FunctionProto function = (FunctionProto) stack[sp - argCount - 1];
+                    Object[] frame = new Object[function.frameSize];
+                    System.arraycopy(stack, sp - argCount, frame, 0, argCount);
+                    Arrays.fill(frame, argCount, frame.length, undefined);
+                    sp -= argCount + 1;
+
+                    Object cachedCall = runtime.enterCall(function, frame, frameCount + 1);
+                    if (cachedCall != null) {
+                        Object result = runtime.cachedResult(cachedCall);
+                        if (result != undefined) {
+                            stack[sp++] = result;
+                            break;
+                        }
+                    }
+                    if (frameCount == callerChunks.length) {
+                        growFrames();
+                    }
+                    callerChunks[frameCount] = chunk;
+                    callerPcs[frameCount] = pc;
+                    callerLocals[frameCount] = locals;
+                    cachedCalls[frameCount] = cachedCall;
+                    frameCount++;
+
+                    chunk = function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    locals = frame;
+                    pc = 0;
+                    if (sp + chunk.maxStack > stack.length) {
+                        this.stack = stack = Arrays.copyOf(stack, Math.max(sp + chunk.maxStack, stack.length * 2));
+                    }
+                    break;
+                }
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[pc++];
+                    FunctionProto function = (FunctionProto) stack[sp - argCount - 1];
+                    Object[] frame = new Object[function.frameSize];
+                    System.arraycopy(stack, sp - argCount, frame, 0, argCount);
+                    Arrays.fill(frame, argCount, frame.length, undefined);
+                    sp -= argCount + 1;
+                    runtime.step();
+
+                    // The caller's frame entry stays as it is: the callee returns straight to it,
+                    // and its result is the result of the call cached there, if any
+                    chunk = function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    locals = frame;
+                    pc = 0;
+                    if (sp + chunk.maxStack > stack.length) {
+                        this.stack = stack = Arrays.copyOf(stack, Math.max(sp + chunk.maxStack, stack.length * 2));
+                    }
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    frameCount--;
+                    if (cachedCalls[frameCount] != null) {
+                        runtime.cacheResult(cachedCalls[frameCount], result);
+                        cachedCalls[frameCount] = null;
+                    }
+                    chunk = callerChunks[frameCount];
+                    pc = callerPcs[frameCount];
+                    locals = callerLocals[frameCount];
+                    callerChunks[frameCount] = null;
+                    callerLocals[frameCount] = null;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    stack[sp++] = result;
+                    break;
+                }
+                case OpCode.INVOKE: {
+                    String methodName = (String) constants[code[pc]];
+                    int argCount = code[pc + 1];
+                    pc += 2;
+                    List<Object> args = new ArrayList<>(argCount);
+                    for (int i = sp - argCount; i < sp; i++) {
+                        args.add(stack[i]);
+                    }
+                    sp -= argCount;
+                    stack[sp - 1] = runtime.invoke(stack[sp - 1], methodName, args);
+                    break;
+                }
+                case OpCode.PRINT:
+                    runtime.print(stack[--sp]);
+                    break;
+                case OpCode.EXEC:
+                    runtime.execute(constants[code[pc++]], locals);
+                    globals = runtime.globals();
+                    break;
+                case OpCode.EVAL:
+                case OpCode.EVAL_RAW:
+                    stack[sp++] = runtime.evaluate(constants[code[pc++]], locals, op == OpCode.EVAL);
+                    globals = runtime.globals();
+                    break;
+                case OpCode.HALT:
+                    return sp > 0 ? stack[sp - 1] : null;
+                default:
+                    throw new IllegalStateException("Bad opcode " + op + " in " + chunk.name + " at " + (pc - 1));
+            }
+        }
+    }
+
+    private boolean isTrue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return runtime.isTrue(value);
+    }
+
+    private RuntimeException undefinedVariable(Object name) {
+        return new RuntimeException("Undefined variable: " + name);
+    }
+
+    private void ensureStack(int size) {
+        if (stack.length < size) {
+            stack = new Object[size];
+        }
+    }
+
+    private void growFrames() {
+        int size = callerChunks.length * 2;
+        callerChunks = Arrays.copyOf(callerChunks, size);
+        callerPcs = Arrays.copyOf(callerPcs, size);
+        callerLocals = Arrays.copyOf(callerLocals, size);
+        cachedCalls = Arrays.copyOf(cachedCalls, size);
+    }
+}
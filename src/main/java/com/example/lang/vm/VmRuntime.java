@@ -0,0 +1,69 @@
+package com.example.lang.vm;
+
+import java.util.List;
+
+/**
+ * Everything the VM needs from the language runtime. Keeping this behind an
+ * interface lets the VM stay independent of the AST and share the exact
+ * operator semantics, libraries and variable storage with the tree walker.
+ */
+public interface VmRuntime {
+
+    /** Sentinel stored in slots that have not been assigned yet. */
+    Object undefined();
+
+    /** The current global frame. May be replaced after the host ran code. */
+    Object[] globals();
+
+    /** An empty list for an array literal of {@code size} elements. */
+    List<Object> newList(int size);
+
+    Object binary(int opcode, Object left, Object right);
+
+    /** {@link OpCode#INC} or {@link OpCode#DEC}. */
+    Object unary(int opcode, Object value);
+
+    boolean isTrue(Object value);
+
+    Object unseal(Object value, boolean decrypt);
+
+    void print(Object value);
+
+    void checkIndex(Object target, Object index);
+
+    Object index(Object target, Object index);
+
+    /** {@code opcode} is the compound operator, or -1 for plain assignment. */
+    Object storeIndex(Object target, Object index, int opcode, Object value);
+
+    Object invoke(Object target, String methodName, List<Object> args);
+
+    /**
+     * Looks up (and compiles on first use) the user function whose name has
+     * this symbol. Fails if there is none or it takes another argument count.
+     */
+    FunctionProto function(int symbol, int argCount);
+
+    /**
+     * Called for every user function call, with the number of calls then
+     * active on this VM: counts the call against the budget of the run and
+     * checks the depth limit. For a call whose result the host caches,
+     * returns a handle for {@link #cachedResult} and {@link #cacheResult},
+     * otherwise null.
+     */
+    Object enterCall(FunctionProto function, Object[] frame, int depth);
+
+    /** The cached result of a call, or {@link #undefined()} if there is none yet. */
+    Object cachedResult(Object call);
+
+    void cacheResult(Object call, Object result);
+
+    /** Counts a loop iteration or tail call against the budget of the run. */
+    void step();
+
+    /** Runs an AST statement the compiler left to the host, in the given frame. */
+    void execute(Object node, Object[] locals);
+
+    /** Evaluates an AST expression the compiler left to the host, in the given frame. */
+    Object evaluate(Object node, Object[] locals, boolean decrypt);
+}
@@ -0,0 +1,143 @@
+package com.example.lang;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Programs come back from .nvc files as they were parsed, and a file that
+ * does not match the format version or the script's content is ignored
+ * and written again.
+ */
+class AstCacheTest {
+    // Offsets in a .nvc file: magic, version, token types, then the content key
+    private static final int VERSION_OFFSET = 4;
+    private static final int KEY_OFFSET = 12;
+
+    private static final String SCRIPT = """
+            function square(n) {
+                return n * n;
+            }
+            total = 0;
+            for (i = 1; i <= 10; i++) {
+                total = total + square(i);
+            }
+            print->"total = " + total;
+            """;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void benchScriptsRoundTrip() throws IOException {
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(Path.of("scripts", "bench"))) {
+            scripts = files.filter(file -> file.toString().endsWith(".txt")).sorted().toList();
+        }
+        for (Path script : scripts) {
+            String code = Files.readString(script);
+            byte[] encoded = AstCache.encode(ScriptRunner.parse(code));
+            assertNotNull(encoded, script.toString());
+            List<Node> decoded = AstCache.decode(encoded);
+            assertArrayEquals(encoded, AstCache.encode(decoded), script.toString());
+            assertEquals(Runs.output(code, Interpreter.Engine.TREE, -1),
+                    Runs.output(decoded, Interpreter.Engine.TREE, -1), script.toString());
+        }
+    }
+
+    @Test
+    void parseStoresTheProgramAndLoadsItAgain() throws IOException {
+        Path script = write("square.txt", SCRIPT);
+        List<Node> parsed = AstCache.parse(script);
+        Path cache = AstCache.cacheFile(script);
+        assertEquals(dir.resolve("square.nvc"), cache);
+        assertTrue(Files.exists(cache));
+
+        List<Node> loaded = AstCache.load(cache, key(SCRIPT));
+        assertNotNull(loaded);
+        assertArrayEquals(AstCache.encode(parsed), AstCache.encode(loaded));
+        assertEquals("total = 385\n", Runs.output(AstCache.parse(script), Interpreter.Engine.TREE, -1));
+    }
+
+    @Test
+    void otherVersionIsIgnoredAndRewritten() throws IOException {
+        Path script = write("square.txt", SCRIPT);
+        AstCache.parse(script);
+        Path cache = AstCache.cacheFile(script);
+        byte[] valid = Files.readAllBytes(cache);
+
+        byte[] otherVersion = valid.clone();
+        otherVersion[VERSION_OFFSET + 3]++;
+        Files.write(cache, otherVersion);
+        assertNull(AstCache.load(cache, key(SCRIPT)));
+
+        assertEquals("total = 385\n", Runs.output(AstCache.parse(script), Interpreter.Engine.TREE, -1));
+        assertArrayEquals(valid, Files.readAllBytes(cache));
+    }
+
+    @Test
+    void changedScriptIsParsedAgain() throws IOException {
+        Path script = write("square.txt", SCRIPT);
+        AstCache.parse(script);
+        Path cache = AstCache.cacheFile(script);
+
+        // Same length, so only the checksums tell the two apart
+        String edited = SCRIPT.replace("i <= 10", "i <= 20");
+        assertEquals(SCRIPT.length(), edited.length());
+        assertNull(AstCache.load(cache, key(edited)));
+        write("square.txt", edited);
+        assertEquals("total = 2870\n", Runs.output(AstCache.parse(script), Interpreter.Engine.TREE, -1));
+        assertNotNull(AstCache.load(cache, key(edited)));
+        assertNull(AstCache.load(cache, key(SCRIPT)));
+    }
+
+    @Test
+    void damagedFilesAreIgnored() throws IOException {
+        Path script = write("square.txt", SCRIPT);
+        AstCache.parse(script);
+        Path cache = AstCache.cacheFile(script);
+        byte[] valid = Files.readAllBytes(cache);
+        byte[] key = key(SCRIPT);
+
+        byte[] otherChecksum = valid.clone();
+        otherChecksum[KEY_OFFSET + 8]++; // the CRC32C after the length
+        Files.write(cache, otherChecksum);
+        assertNull(AstCache.load(cache, key));
+
+        Files.write(cache, Arrays.copyOf(valid, valid.length - 1));
+        assertNull(AstCache.load(cache, key));
+
+        Files.write(cache, Arrays.copyOf(valid, valid.length + 1));
+        assertNull(AstCache.load(cache, key));
+    }
+
+    @Test
+    void programsWithSyntaxErrorsAreNotStored() throws IOException {
+        Path script = write("broken.txt", "x = 1;\nprint->(x;\n");
+        assertEquals(1, AstCache.parse(script).size());
+        assertFalse(Files.exists(AstCache.cacheFile(script)));
+    }
+
+    private Path write(String name, String code) throws IOException {
+        return Files.writeString(dir.resolve(name), code, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] key(String code) {
+        return AstCache.contentKey(ByteBuffer.wrap(code.getBytes(StandardCharsets.UTF_8)));
+    }
+}
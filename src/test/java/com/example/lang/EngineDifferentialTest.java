@@ -0,0 +1,42 @@
+package com.example.lang;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the scripts in scripts/bench on every engine, with and without the
+ * JIT, and checks that each prints what the tree walker prints. The example
+ * scripts in scripts/ are left out: they train models and draw charts into
+ * files, and print ciphertexts that differ from run to run.
+ */
+class EngineDifferentialTest {
+    // Low enough that the benchmark functions get compiled while they run
+    private static final int JIT_THRESHOLD = 10;
+
+    @Test
+    void benchScriptsPrintTheSameOnEveryEngine() throws IOException {
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(Path.of("scripts", "bench"))) {
+            scripts = files.filter(file -> file.toString().endsWith(".txt")).sorted().toList();
+        }
+        assertFalse(scripts.isEmpty(), "no scripts in scripts/bench");
+        for (Path script : scripts) {
+            String code = Files.readString(script);
+            String expected = Runs.output(code, Interpreter.Engine.TREE, -1);
+            assertFalse(expected.contains("Error:"), script + " fails: " + expected);
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                assertEquals(expected, Runs.output(code, engine, -1), script + " on " + engine);
+                assertEquals(expected, Runs.output(code, engine, JIT_THRESHOLD),
+                        script + " on " + engine + " with the JIT");
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.lang;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Scheduled events take turns with the program on every engine, and see the
+ * program's variables as they are when they run.
+ */
+class EventsTest {
+    private static final long EVENT_TIMEOUT_MILLIS = 10_000;
+
+    @Test
+    void eventDeclaredInAFunctionSeesGlobals() {
+        // x is global, so f assigns the global; the event must not take h's r for it
+        String global = """
+                x = 0;
+                function f(p) {
+                    x = p * 2;
+                    @EVENT_TRIGGER(0.1, "seconds", 1) -> x = x + 1;
+                }
+                function h(q, r) {
+                    n = 0;
+                    while (x == 20 && n < 10000000) {
+                        n = n + 1;
+                    }
+                    return q;
+                }
+                f(10);
+                print->h("hq", "hr");
+                print->x;
+                """;
+        String local = """
+                function f(p) {
+                    y = p * 2;
+                    @EVENT_TRIGGER(0.1, "seconds", 1) -> print->y;
+                }
+                f(10);
+                """;
+        assertOnEveryEngine("hq\n21\n", global);
+        assertOnEveryEngine("Error: Undefined variable: y\n", local);
+    }
+
+    @Test
+    void busyWaitSeesTheEvent() {
+        String whileLoop = """
+                flag = 0;
+                n = 0;
+                @EVENT_TRIGGER(0.1, "seconds", 1) -> flag = 1;
+                while (flag == 0) {
+                    n = n + 1;
+                }
+                print->"released";
+                """;
+        String forLoop = """
+                flag = 0;
+                @EVENT_TRIGGER(0.1, "seconds", 1) -> flag = 1;
+                for (n = 0; flag == 0; n = n + 1) {
+                    last = n;
+                }
+                print->"released";
+                """;
+        assertOnEveryEngine("released\n", whileLoop);
+        assertOnEveryEngine("released\n", forLoop);
+    }
+
+    @Test
+    void eventChangingAListEndsUncheckedIndexing() {
+        String replaced = """
+                a = [1, 2, 3, 4, 5];
+                b = a;
+                @EVENT_TRIGGER(0.1, "seconds", 1) -> a = [9];
+                for (i = 0; i < 5; i = i + 1) {
+                    print->a[i];
+                    while (a == b) {
+                        n = 1;
+                    }
+                    print->a[i];
+                }
+                """;
+        String retyped = """
+                a = [1, 2, 3, 4, 5];
+                @EVENT_TRIGGER(0.1, "seconds", 1) -> a = "zz";
+                for (i = 0; i < 5; i = i + 1) {
+                    print->a[i];
+                    while (a != "zz") {
+                        n = 1;
+                    }
+                    print->a[i];
+                }
+                """;
+        assertOnEveryEngine("1\n9\nError: Index out of bounds: 1", replaced);
+        assertOnEveryEngine("1\nError: Target of indexing is not a list or map.", retyped);
+    }
+
+    private static void assertOnEveryEngine(String expected, String code) {
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            assertEquals(expected, run(code, engine), engine.toString());
+        }
+    }
+
+    // Like Runs.output, but waits for the events before it looks at the output
+    private static String run(String code, Interpreter.Engine engine) {
+        Interpreter interpreter = new Interpreter(engine);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        interpreter.setConsole(Console.of(new PrintStream(buffer, true, StandardCharsets.UTF_8),
+                InputStream.nullInputStream()));
+        String error = "";
+        try {
+            interpreter.execute(ScriptRunner.parse(code));
+            assertTrue(interpreter.awaitEvents(EVENT_TIMEOUT_MILLIS), "events still pending");
+        } catch (RuntimeException e) {
+            error = "Error: " + e.getMessage();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        } finally {
+            interpreter.cancelEvents();
+        }
+        return buffer.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n") + error;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.lang;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs that go over a limit of their budget stop with the limit they went
+ * over. The closure engine does not count steps, so only the tree walker
+ * and the VM are held to the step and time limits; the memory limit holds
+ * on every engine.
+ */
+class ExecutionBudgetTest {
+    private static final long UNLIMITED = ExecutionBudget.UNLIMITED;
+    private static final String ENDLESS_LOOP = """
+            i = 0;
+            while (true) {
+                i = i + 1;
+            }
+            """;
+    private static final List<Interpreter.Engine> STEPPING_ENGINES =
+            List.of(Interpreter.Engine.TREE, Interpreter.Engine.VM);
+
+    @Test
+    void stepLimitEndsTheRun() {
+        ScriptRunner.Result result = ScriptRunner.run(ScriptRunner.parse(ENDLESS_LOOP), "",
+                new ExecutionBudget(100_000, UNLIMITED, UNLIMITED), 0);
+        ExecutionBudget.Exceeded exceeded = result.getBudgetExceeded();
+        assertEquals(ExecutionBudget.Limit.STEPS, exceeded.getLimit());
+        assertEquals(100_000, exceeded.getMaximum());
+        assertEquals(100_000, exceeded.getUsed());
+        assertEquals("Error: " + exceeded.getMessage() + System.lineSeparator(), result.getOutput());
+        for (Interpreter.Engine engine : STEPPING_ENGINES) {
+            assertEquals(ExecutionBudget.Limit.STEPS,
+                    exceeded(ENDLESS_LOOP, engine, new ExecutionBudget(100_000, UNLIMITED, UNLIMITED)).getLimit(),
+                    "on " + engine);
+        }
+    }
+
+    @Test
+    void timeLimitEndsTheRun() {
+        for (Interpreter.Engine engine : STEPPING_ENGINES) {
+            long start = System.nanoTime();
+            ExecutionBudget.Exceeded exceeded = exceeded(ENDLESS_LOOP, engine,
+                    new ExecutionBudget(UNLIMITED, 200, UNLIMITED));
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(ExecutionBudget.Limit.TIME, exceeded.getLimit(), "on " + engine);
+            assertTrue(exceeded.getUsed() >= 200, "on " + engine);
+            assertTrue(elapsedMillis < 5_000, "on " + engine + " the run took " + elapsedMillis + " ms");
+        }
+    }
+
+    @Test
+    void timeLimitStopsPendingEvents() {
+        ScriptRunner.Result result = ScriptRunner.run(
+                ScriptRunner.parse("@EVENT_TRIGGER(1, \"seconds\") -> print->\"tick\";"), "",
+                new ExecutionBudget(UNLIMITED, 300, UNLIMITED), ScriptRunner.DEFAULT_EVENT_TIMEOUT_MILLIS);
+        assertEquals(ExecutionBudget.Limit.TIME, result.getBudgetExceeded().getLimit());
+    }
+
+    @Test
+    void memoryLimitEndsTheRun() {
+        String doubling = """
+                s = "x";
+                while (true) {
+                    s = s + s;
+                }
+                """;
+        String growing = """
+                l = [];
+                while (true) {
+                    l = l + [1];
+                }
+                """;
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            for (String code : List.of(doubling, growing)) {
+                ExecutionBudget.Exceeded exceeded = exceeded(code, engine,
+                        new ExecutionBudget(UNLIMITED, UNLIMITED, 1_000_000));
+                assertEquals(ExecutionBudget.Limit.MEMORY, exceeded.getLimit(), code + " on " + engine);
+                assertTrue(exceeded.getUsed() > 1_000_000, code + " on " + engine);
+            }
+        }
+    }
+
+    @Test
+    void runWithinItsBudgetIsNotStopped() {
+        ScriptRunner.Result result = ScriptRunner.run(
+                ScriptRunner.parse("s = 0;\nfor (i = 0; i < 1000; i++) {\n    s = s + i;\n}\nprint->s;"), "",
+                new ExecutionBudget(100_000, 10_000, 1_000_000), 0);
+        assertNull(result.getBudgetExceeded());
+        assertEquals("499500" + System.lineSeparator(), result.getOutput());
+    }
+
+    // Runs code that has to go over its budget, and returns the limit it went over
+    private static ExecutionBudget.Exceeded exceeded(String code, Interpreter.Engine engine, ExecutionBudget budget) {
+        Interpreter interpreter = new Interpreter(engine);
+        interpreter.setConsole(Console.of(new PrintStream(OutputStream.nullOutputStream()),
+                InputStream.nullInputStream()));
+        interpreter.setBudget(budget);
+        List<Node> program = ScriptRunner.parse(code);
+        ExecutionBudget.Exceeded exceeded = assertThrows(ExecutionBudget.Exceeded.class,
+                () -> interpreter.execute(program));
+        assertSame(exceeded, interpreter.getBudgetExceeded());
+        return exceeded;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.lang;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * After every edit, the incremental parser gives the statements and errors
+ * a fresh parse of the whole program gives.
+ */
+class IncrementalParserTest {
+    private static final String PROGRAM = """
+            // Sums and products
+            total = 0;
+            function add(a, b) {
+                return a + b;
+            }
+            for (i = 0; i < 10; i++) {
+                total = add(total, i);
+            }
+            if (total > 40) {
+                print->"big " + total;
+            } else {
+                print->"small";
+            }
+            names = ["a", "b"];
+            print->names[1];
+            """;
+
+    @Test
+    void editsParseAsTheWholeProgramDoes() {
+        IncrementalParser parser = new IncrementalParser();
+        String[] versions = {
+            PROGRAM,
+            // A statement inserted in the middle
+            PROGRAM.replace("names = [", "count = 3;\nnames = ["),
+            // A literal changed inside a function body
+            PROGRAM.replace("return a + b;", "return a + b * 2;"),
+            // A line removed
+            PROGRAM.replace("    total = add(total, i);\n", ""),
+            // Statements added at both ends
+            "x = 1;\n" + PROGRAM + "print->x;\n",
+            // A comment and blank lines between statements
+            PROGRAM.replace("total = 0;\n", "total = 0;\n\n// the loop\n\n"),
+            // Two statements joined on one line
+            PROGRAM.replace("total = 0;\nfunction", "total = 0; function"),
+            "",
+            PROGRAM,
+        };
+        for (String version : versions) {
+            assertMatchesFreshParse(parser, version);
+        }
+    }
+
+    @Test
+    void errorsAreReportedLikeAFreshParse() {
+        IncrementalParser parser = new IncrementalParser();
+        assertMatchesFreshParse(parser, PROGRAM);
+
+        String broken = PROGRAM.replace("total = 0;", "total = (0;").replace("print->names[1];", "print->names[1;");
+        parser.parse(broken);
+        List<String> errors = parser.getErrors();
+        assertEquals(2, errors.size(), errors.toString());
+        Parser fresh = new Parser(new Lexer(broken).tokenize());
+        List<Node> program = fresh.parse();
+        assertEquals(fresh.error(), errors.get(0));
+        assertEquals(fresh.error(), parser.getProgramError());
+        assertArrayEquals(AstCache.encode(program), AstCache.encode(parser.getProgram()));
+
+        // Fixing the first error leaves the second
+        String halfFixed = PROGRAM.replace("print->names[1];", "print->names[1;");
+        parser.parse(halfFixed);
+        assertEquals(1, parser.getErrors().size());
+        fresh = new Parser(new Lexer(halfFixed).tokenize());
+        program = fresh.parse();
+        assertEquals(fresh.error(), parser.getProgramError());
+        assertArrayEquals(AstCache.encode(program), AstCache.encode(parser.getProgram()));
+
+        assertMatchesFreshParse(parser, PROGRAM);
+    }
+
+    @Test
+    void lexerErrorsFailTheProgram() {
+        IncrementalParser parser = new IncrementalParser();
+        parser.parse(PROGRAM);
+        String broken = PROGRAM.replace("names = [", "names = # [");
+        parser.parse(broken);
+        RuntimeException expected = assertThrows(RuntimeException.class, () -> new Lexer(broken).tokenize());
+        RuntimeException actual = assertThrows(ParseException.class, parser::getProgram);
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertTrue(parser.getErrors().contains(expected.getMessage()), parser.getErrors().toString());
+    }
+
+    @Test
+    void editOnlyReparsesTheStatementsAroundIt() {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            program.append("x").append(i).append(" = ").append(i).append(";\n");
+        }
+        IncrementalParser parser = new IncrementalParser();
+        assertMatchesFreshParse(parser, program.toString());
+        assertEquals(50, parser.getReparsedCount());
+
+        String edited = program.toString().replace("x25 = 25;", "x25 = 25 + 1;");
+        assertMatchesFreshParse(parser, edited);
+        assertTrue(parser.getReparsedCount() <= 3, "reparsed " + parser.getReparsedCount());
+    }
+
+    private static void assertMatchesFreshParse(IncrementalParser parser, String source) {
+        List<Node> statements = parser.parse(source);
+        Parser fresh = new Parser(new Lexer(source).tokenize());
+        byte[] expected = AstCache.encode(fresh.parse());
+        assertNotNull(expected);
+        assertNull(fresh.error(), source);
+        assertTrue(parser.getErrors().isEmpty(), parser.getErrors() + " in\n" + source);
+        assertArrayEquals(expected, AstCache.encode(statements), source);
+        assertArrayEquals(expected, AstCache.encode(parser.getProgram()), source);
+    }
+}
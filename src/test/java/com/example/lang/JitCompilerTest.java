@@ -0,0 +1,86 @@
+package com.example.lang;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.List;
+
+import javax.tools.ToolProvider;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compiled functions give the interpreter's results for arguments and
+ * results outside their int-only assumptions, by deoptimizing the call.
+ */
+class JitCompilerTest {
+    private static final long COMPILE_TIMEOUT_MILLIS = 30_000;
+
+    @Test
+    void overflowDeoptimizes() throws InterruptedException {
+        for (Interpreter.Engine engine : List.of(Interpreter.Engine.TREE, Interpreter.Engine.CLOSURE)) {
+            Interpreter interpreter = new Interpreter(engine);
+            JitCompiler.JitCode code = compileAdd(interpreter).jitCode;
+            String output = Runs.output(interpreter, ScriptRunner.parse(
+                    "print->add(2, 3);\nprint->add(2147483647, 1);\nprint->add(0 - 2147483647, 0 - 2);"));
+            assertEquals("5\n2147483648\n-2147483649\n", output, "on " + engine);
+            assertEquals(2, code.deopts, "on " + engine);
+        }
+    }
+
+    @Test
+    void nonIntArgumentsDeoptimize() throws InterruptedException {
+        for (Interpreter.Engine engine : List.of(Interpreter.Engine.TREE, Interpreter.Engine.CLOSURE)) {
+            Interpreter interpreter = new Interpreter(engine);
+            JitCompiler.JitCode code = compileAdd(interpreter).jitCode;
+            String output = Runs.output(interpreter, ScriptRunner.parse(
+                    "print->add(1.5, 2);\nprint->add(\"a\", 1);\nprint->add(2000000000, 1000000000);"));
+            assertEquals("3.5\na1\n3000000000\n", output, "on " + engine);
+            assertEquals(3, code.deopts, "on " + engine);
+        }
+    }
+
+    @Test
+    void keepsDeoptimizingFunctionsInTheInterpreter() throws InterruptedException {
+        Interpreter interpreter = new Interpreter();
+        FunctionDefNode add = compileAdd(interpreter);
+        StringBuilder program = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            program.append("print->add(2147483647, ").append(i).append(");\n");
+            expected.append(2147483647L + i).append('\n');
+        }
+        assertEquals(expected.toString(), Runs.output(interpreter, ScriptRunner.parse(program.toString())));
+        assertTrue(add.jitDisabled, "add was not sent back to the interpreter");
+        assertNull(add.jitCode);
+    }
+
+    // Defines add(a, b) and calls it until it is compiled
+    private static FunctionDefNode compileAdd(Interpreter interpreter) throws InterruptedException {
+        assumeTrue(ToolProvider.getSystemJavaCompiler() != null, "the JIT needs a JDK");
+        interpreter.enableJit(10);
+        List<Node> program = ScriptRunner.parse("""
+                function add(a, b) {
+                    return a + b;
+                }
+                i = 0;
+                while (i < 20) {
+                    add(i, 1);
+                    i = i + 1;
+                }
+                """);
+        assertEquals("", Runs.output(interpreter, program));
+        FunctionDefNode add = (FunctionDefNode) program.get(0);
+        long deadline = System.currentTimeMillis() + COMPILE_TIMEOUT_MILLIS;
+        while (add.jitCode == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(add.jitCode, "add was not compiled");
+        assertEquals("7\n", Runs.output(interpreter, ScriptRunner.parse("print->add(3, 4);")));
+        assertEquals(0, add.jitCode.deopts);
+        return add;
+    }
+}
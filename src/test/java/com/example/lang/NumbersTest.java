@@ -0,0 +1,61 @@
+package com.example.lang;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Integer arithmetic widens from int to long to BigInteger when a result
+ * overflows, and narrows back when it fits again, on every engine.
+ */
+class NumbersTest {
+    private static final String FACTORIAL = """
+            function fact(n) {
+                result = 1;
+                for (i = 2; i <= n; i = i + 1) {
+                    result = result * i;
+                }
+                return result;
+            }
+            """;
+
+    @Test
+    void intOverflowWidensToLong() {
+        assertPrints("2147483648\n", "x = 2147483647;\nprint->x + 1;");
+        assertPrints("-2147483649\n", "x = 0 - 2147483647 - 1;\nprint->x - 1;");
+        assertPrints("4294967296\n", "print->65536 * 65536;");
+    }
+
+    @Test
+    void longOverflowWidensToBigInteger() {
+        assertPrints("9223372036854775808\n", "x = 9223372036854775807;\nprint->x + 1;");
+        assertPrints("9223372037000250000\n", "print->3037000500 * 3037000500;");
+        assertPrints("15511210043330985984000000\n600\n", FACTORIAL + "print->fact(25);\nprint->fact(25) / fact(23);");
+    }
+
+    @Test
+    void resultsNarrowBackWhenTheyFit() {
+        assertPrints("2147483647\n", "x = 2147483647;\nprint->(x + 1) - 1;");
+        assertPrints("9223372036854775807\n", "x = 9223372036854775807;\nprint->(x + 1) - 1;");
+        assertEquals(Integer.valueOf(2147483647),
+                Numbers.apply(Long.valueOf(2147483648L), Integer.valueOf(1), TokenType.MINUS));
+        assertEquals(Long.valueOf(Long.MAX_VALUE),
+                Numbers.apply(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE), 1, TokenType.MINUS));
+        assertEquals(new BigInteger("9223372036854775808"), Numbers.apply(Long.MAX_VALUE, 1, TokenType.PLUS));
+    }
+
+    @Test
+    void literalsTakeTheNarrowestType() {
+        assertEquals(Integer.valueOf(2147483647), Numbers.parseInteger("2147483647"));
+        assertEquals(Long.valueOf(2147483648L), Numbers.parseInteger("2147483648"));
+        assertEquals(new BigInteger("9223372036854775808"), Numbers.parseInteger("9223372036854775808"));
+    }
+
+    private static void assertPrints(String expected, String code) {
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            assertEquals(expected, Runs.output(code, engine, -1), code + " on " + engine);
+        }
+    }
+}
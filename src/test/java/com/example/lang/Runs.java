@@ -0,0 +1,49 @@
+package com.example.lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Runs programs in the test JVM and returns what they printed.
+ */
+final class Runs {
+    private Runs() {
+    }
+
+    /**
+     * What {@code code} prints on {@code engine}, compiling functions once
+     * they have been called {@code jitThreshold} times unless that is
+     * negative. A runtime error ends the output with "Error: message".
+     */
+    static String output(String code, Interpreter.Engine engine, int jitThreshold) {
+        return output(ScriptRunner.parse(code), engine, jitThreshold);
+    }
+
+    static String output(List<Node> program, Interpreter.Engine engine, int jitThreshold) {
+        Interpreter interpreter = new Interpreter(engine);
+        if (jitThreshold >= 0) {
+            interpreter.enableJit(jitThreshold);
+        }
+        return output(interpreter, program);
+    }
+
+    /**
+     * What {@code program} prints on {@code interpreter}, which keeps the
+     * functions it defines for later programs. Lines end in "\n".
+     */
+    static String output(Interpreter interpreter, List<Node> program) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        interpreter.setConsole(Console.of(new PrintStream(buffer, true, StandardCharsets.UTF_8),
+                InputStream.nullInputStream()));
+        String error = "";
+        try {
+            interpreter.execute(program);
+        } catch (RuntimeException e) {
+            error = "Error: " + e.getMessage();
+        }
+        return buffer.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n") + error;
+    }
+}